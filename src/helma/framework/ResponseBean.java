@@ -17,6 +17,7 @@
 package helma.framework;
 
 import helma.objectmodel.db.Transactor;
+import helma.objectmodel.db.WeightedNodeCache;
 import helma.scripting.ScriptingException;
 
 import javax.servlet.http.HttpServletResponse;
@@ -634,6 +635,37 @@ public class ResponseBean implements Serializable {
         }
     }
 
+    /**
+     * Make the current transaction write its changes to the database whenever
+     * the given number of objects have been modified, rather than holding
+     * on to all of them until it is committed. This overrides the
+     * transactionFlushSize app property for the current transaction.
+     * Note that changes written this way aren't undone by rollback().
+     *
+     * @param nodes the number of modified objects, or 0 to disable
+     */
+    public void setFlushSize(int nodes) {
+        Transactor tx = Transactor.getInstance();
+        if (tx != null) {
+            tx.setFlushSize(nodes);
+        }
+    }
+
+    /**
+     * Make the current transaction write its changes to the database whenever
+     * the modified objects are estimated to use the given amount of memory.
+     * This overrides the transactionFlushMemory app property for the current
+     * transaction.
+     *
+     * @param size the size such as "64M", or null to disable
+     */
+    public void setFlushMemory(String size) {
+        Transactor tx = Transactor.getInstance();
+        if (tx != null) {
+            tx.setFlushMemory(size == null ? 0 : WeightedNodeCache.parseByteSize(size));
+        }
+    }
+
     /**
      * Rollback the current transaction and start a new one.
      *
@@ -543,6 +543,11 @@ public final class Application implements Runnable {
             System.err.println("Error shutting down embedded db: " + dbx);
         }
 
+        // close pooled connections of relational data sources
+        for (Enumeration e = dbSources.elements(); e.hasMoreElements();) {
+            ((DbSource) e.nextElement()).shutdown();
+        }
+
         // tell the extensions that we're stopped.
         if (Server.getServer() != null) {
             Vector extensions = Server.getServer().getExtensions();
@@ -824,11 +829,22 @@ public final class Application implements Runnable {
 
     /**
      * Returns the number of elements in the NodeManager's cache
+     * @see #getCacheWeights()
      */
     public int getCacheUsage() {
         return nmgr.countCacheEntries();
     }
 
+    /**
+     * Returns the estimated number of bytes retained by the NodeManager's cache
+     * for each prototype, if the cache is bounded by memory (cachememory setting).
+     *
+     * @return a map of lower case prototype names to byte counts, or null
+     */
+    public Map getCacheWeights() {
+        return nmgr.getCacheWeights();
+    }
+
     /**
      *  Set the application's root element to an arbitrary object. After this is called
      *  with a non-null object, the helma node manager will be bypassed. This function
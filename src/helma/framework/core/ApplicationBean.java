@@ -394,6 +394,15 @@ public class ApplicationBean implements Serializable {
         return app.getCacheUsage();
     }
 
+    /**
+     * Returns the estimated memory retained by cached objects of each prototype,
+     * or null if the cache is not bounded by memory
+     */
+    public Map getCacheweights() {
+        Map weights = app.getCacheWeights();
+        return weights == null ? null : new WrappedMap(weights, true);
+    }
+
     /**
      * Returns the app's data node used to share data between the app's evaluators
      *
@@ -486,7 +495,8 @@ public class ApplicationBean implements Serializable {
     }
 
     /**
-     * Return a DbSource object for a given name.
+     * Return a DbSource object for a given name. Connection pool statistics
+     * are available through the DbSource's connectionPool property.
      */
     public DbSource getDbSource(String name) {
         return app.getDbSource(name);
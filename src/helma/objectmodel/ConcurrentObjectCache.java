@@ -0,0 +1,54 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel;
+
+/**
+ * Interface for object caches that provide atomic compound operations, so
+ * callers don't have to lock the whole cache to check and update an entry.
+ * Caches not implementing this interface are locked by synchronizing on
+ * the cache object.
+ */
+public interface ConcurrentObjectCache extends ObjectCache {
+
+    /**
+     * Puts the specified element into the cache unless the key is already
+     * associated with a value.
+     * @param key the key
+     * @param value the element to store
+     * @return the value currently associated with the key, or null if the
+     *         element was stored
+     */
+    Object putIfAbsent(Object key, Object value);
+
+    /**
+     * Replaces the element for a key only if it is currently associated
+     * with the given value. Values are compared by identity.
+     * @param key the key
+     * @param oldValue the value expected to be associated with the key
+     * @param newValue the value to store
+     * @return true if the value was replaced
+     */
+    boolean replace(Object key, Object oldValue, Object newValue);
+
+    /**
+     * Set a listener to be notified when elements are discarded to keep
+     * the cache within its capacity.
+     * @param listener the listener, or null to remove the current listener
+     */
+    void setEvictionListener(EvictionListener listener);
+
+}
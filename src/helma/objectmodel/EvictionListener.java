@@ -0,0 +1,35 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel;
+
+/**
+ * Interface for objects that want to be notified when a cache discards an
+ * element to stay within its capacity. Elements that are removed explicitly
+ * are not reported.
+ */
+public interface EvictionListener {
+
+    /**
+     * Called when an element has been evicted from the cache. This is called
+     * while the cache is locked, so implementations should return quickly.
+     *
+     * @param key the key of the evicted element
+     * @param value the evicted element
+     */
+    public void evicted(Object key, Object value);
+
+}
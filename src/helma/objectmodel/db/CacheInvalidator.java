@@ -0,0 +1,343 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Keeps the node caches of several Helma instances that use the same databases
+ * consistent. Committed changes are collected as NodeChangeListener events,
+ * coalesced for a short interval and published through an
+ * {@link InvalidationTransport}. Messages received from other instances evict
+ * the changed nodes from the local cache and mark the data of their types as
+ * changed, so cached collections are reloaded.
+ *
+ * Messages carry a sequence number per sender, so a receiver notices when it
+ * has missed messages of a transport that may lose them, such as multicast.
+ * It then clears its whole cache. Senders that have nothing to publish send
+ * an empty message every heartbeat interval, so the loss of their last
+ * message is noticed as well.
+ *
+ * Enabled by setting the cluster.transport app property to "multicast" or the
+ * class name of an InvalidationTransport. Other settings are
+ * cluster.flushInterval (milliseconds to coalesce changes, default 50),
+ * cluster.maxPendingKeys (above which other instances are told to clear their
+ * whole cache instead, default 10000) and cluster.heartbeatInterval
+ * (milliseconds between empty messages, default 5000, 0 to disable).
+ */
+public final class CacheInvalidator implements NodeChangeListener, Runnable {
+
+    static final int MAGIC = 0x484d4932;
+    // maximum message size, keys that don't fit are sent in further messages
+    static final int MAX_MESSAGE = 8192;
+
+    // record tags
+    static final byte KEY = 'K';
+    static final byte TYPE = 'T';
+    static final byte CLEAR = 'C';
+
+    private final NodeManager nmgr;
+    private final Application app;
+    private final long senderId = new Random().nextLong();
+    private InvalidationTransport transport;
+
+    // the sequence number of the last message sent, and the time it was sent
+    private long sequence = 0;
+    private long lastSent = 0;
+    // the sequence number of the last message received, by sender id
+    private final HashMap received = new HashMap();
+
+    // changes waiting to be published
+    private LinkedHashSet pendingKeys = new LinkedHashSet();
+    private LinkedHashSet pendingTypes = new LinkedHashSet();
+    private boolean pendingClear = false;
+    private final Object lock = new Object();
+
+    private long flushInterval = 50;
+    private int maxPendingKeys = 10000;
+    private long heartbeatInterval = 5000;
+    private Thread flusher;
+    private volatile boolean running;
+
+    /**
+     * Create a new invalidator for the given node manager.
+     */
+    CacheInvalidator(NodeManager nmgr) {
+        this.nmgr = nmgr;
+        this.app = nmgr.app;
+    }
+
+    /**
+     * Set up the transport and start publishing changes.
+     *
+     * @param transportName "multicast" or the class name of an InvalidationTransport
+     */
+    void init(String transportName) throws IOException, ClassNotFoundException,
+                                           IllegalAccessException, InstantiationException {
+        updateProperties(app.getProperties());
+
+        if ("multicast".equalsIgnoreCase(transportName)) {
+            transport = new MulticastTransport();
+        } else {
+            transport = (InvalidationTransport) Class.forName(transportName).newInstance();
+        }
+        transport.init(app, this);
+
+        running = true;
+        flusher = new Thread(this, app.getName() + "-invalidation-sender");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * The app properties have been modified, reload settings.
+     */
+    void updateProperties(Properties props) {
+        try {
+            flushInterval = Long.parseLong(props.getProperty("cluster.flushInterval", "50").trim());
+            maxPendingKeys = Integer.parseInt(props.getProperty("cluster.maxPendingKeys", "10000").trim());
+            heartbeatInterval = Long.parseLong(props.getProperty("cluster.heartbeatInterval", "5000").trim());
+        } catch (NumberFormatException x) {
+            app.logError("Invalid cluster setting: " + x.getMessage());
+        }
+    }
+
+    /**
+     * Stop publishing changes, sending out those still pending.
+     */
+    void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (flusher != null) {
+            try {
+                flusher.join(1000);
+            } catch (InterruptedException ignore) {
+                // shutting down anyway
+            }
+        }
+        if (transport != null) {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * Collect the keys and types of committed nodes to be published.
+     */
+    public void nodesChanged(List inserted, List updated, List deleted, List parents) {
+        synchronized (lock) {
+            // inserted nodes may be cached as missing by other instances
+            addNodes(inserted, true);
+            addNodes(updated, true);
+            addNodes(deleted, true);
+            // child collections of parents have changed
+            addNodes(parents, false);
+
+            if (pendingKeys.size() > maxPendingKeys) {
+                pendingKeys.clear();
+                pendingClear = true;
+            }
+        }
+    }
+
+    private void addNodes(List nodes, boolean markType) {
+        if (nodes == null) {
+            return;
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = (Node) nodes.get(i);
+            DbMapping dbm = node.getDbMapping();
+            if (!pendingClear) {
+                pendingKeys.add(node.getKey());
+            }
+            if (markType && dbm != null && dbm.isRelational()) {
+                pendingTypes.add(dbm.getStorageTypeName());
+            }
+        }
+    }
+
+    /**
+     * Publish pending changes every flushInterval milliseconds.
+     */
+    public void run() {
+        while (running) {
+            synchronized (lock) {
+                try {
+                    lock.wait(flushInterval);
+                } catch (InterruptedException ir) {
+                    // fall through and flush
+                }
+            }
+            flush();
+        }
+        // send out changes committed while we were waiting
+        flush();
+    }
+
+    /**
+     * Send all pending changes, or an empty message if nothing has been sent
+     * for the heartbeat interval.
+     */
+    void flush() {
+        LinkedHashSet keys;
+        LinkedHashSet types;
+        boolean clear;
+
+        synchronized (lock) {
+            if (pendingKeys.isEmpty() && pendingTypes.isEmpty() && !pendingClear &&
+                    (heartbeatInterval <= 0 ||
+                     System.currentTimeMillis() - lastSent < heartbeatInterval)) {
+                return;
+            }
+            keys = pendingKeys;
+            types = pendingTypes;
+            clear = pendingClear;
+            pendingKeys = new LinkedHashSet();
+            pendingTypes = new LinkedHashSet();
+            pendingClear = false;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(MAX_MESSAGE);
+            DataOutputStream out = startMessage(bytes);
+            if (clear) {
+                out.writeByte(CLEAR);
+            }
+            for (Iterator it = types.iterator(); it.hasNext(); ) {
+                out = checkSize(bytes, out);
+                out.writeByte(TYPE);
+                out.writeUTF((String) it.next());
+            }
+            for (Iterator it = keys.iterator(); it.hasNext(); ) {
+                Key key = (Key) it.next();
+                if (!(key instanceof DbKey)) {
+                    // synthetic keys refer to nodes that are evicted by their DbKey
+                    continue;
+                }
+                out = checkSize(bytes, out);
+                DbKey dbkey = (DbKey) key;
+                String storage = dbkey.getStorageName();
+                out.writeByte(KEY);
+                out.writeUTF(storage == null ? "" : storage);
+                out.writeUTF(dbkey.getID());
+            }
+            out.flush();
+            transport.send(bytes.toByteArray());
+        } catch (IOException iox) {
+            app.logError("Error sending cache invalidation", iox);
+        }
+    }
+
+    /**
+     * Send the current message and start a new one if it has reached the
+     * maximum size.
+     */
+    private DataOutputStream checkSize(ByteArrayOutputStream bytes, DataOutputStream out)
+            throws IOException {
+        if (bytes.size() <= MAX_MESSAGE) {
+            return out;
+        }
+        out.flush();
+        transport.send(bytes.toByteArray());
+        bytes.reset();
+        return startMessage(bytes);
+    }
+
+    private DataOutputStream startMessage(ByteArrayOutputStream bytes) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeUTF(app.getName());
+        out.writeLong(senderId);
+        synchronized (lock) {
+            out.writeLong(++sequence);
+            lastSent = System.currentTimeMillis();
+        }
+        return out;
+    }
+
+    /**
+     * Apply a message received from another instance. Messages sent by
+     * ourselves or by other applications are ignored.
+     */
+    public void receive(byte[] data, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+        if (in.readInt() != MAGIC || !app.getName().equals(in.readUTF())) {
+            return;
+        }
+        long sender = in.readLong();
+        if (sender == senderId) {
+            return;
+        }
+
+        long seq = in.readLong();
+        Long previous;
+        synchronized (received) {
+            previous = (Long) received.get(new Long(sender));
+            if (previous == null || seq > previous.longValue()) {
+                received.put(new Long(sender), new Long(seq));
+            }
+        }
+        if (previous != null && seq > previous.longValue() + 1) {
+            // we don't know what the missing messages invalidated
+            app.logEvent("Missed " + (seq - previous.longValue() - 1) +
+                    " cache invalidation messages, clearing cache");
+            nmgr.clearCache();
+        }
+
+        int evicted = 0;
+        while (true) {
+            int tag = in.read();
+            if (tag == -1) {
+                break;
+            } else if (tag == KEY) {
+                String storage = in.readUTF();
+                String id = in.readUTF();
+                DbMapping dbm = storage.length() == 0 ? null : app.getDbMapping(storage);
+                if (storage.length() == 0 || dbm != null) {
+                    nmgr.evictNodeByKey(new DbKey(dbm, id));
+                    evicted++;
+                }
+            } else if (tag == TYPE) {
+                DbMapping dbm = app.getDbMapping(in.readUTF());
+                if (dbm != null) {
+                    dbm.setLastDataChange();
+                }
+            } else if (tag == CLEAR) {
+                nmgr.clearCache();
+            } else {
+                throw new IOException("Invalid record in cache invalidation: " + tag);
+            }
+        }
+
+        if (app.getEventLog().isDebugEnabled()) {
+            app.getEventLog().debug("applied remote invalidation, evicted " + evicted + " keys");
+        }
+    }
+}
@@ -0,0 +1,729 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.INode;
+import helma.objectmodel.IProperty;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Indexes of the children of embedded objects by the values of their
+ * properties, as declared by the _children.index setting in the type.properties
+ * of the parent's prototype:
+ * <pre>
+ * _children.index = email, created
+ * </pre>
+ * The index of a parent is built from its children the first time they are
+ * looked up, and is then kept up to date with the changes committed by
+ * transactions. Up to childIndexCacheSize parents (default 1000) are indexed
+ * at once. The indexes are saved to the db directory when the application is
+ * stopped and read back when it is started. If the application isn't stopped
+ * cleanly, indexes are built again on demand.
+ *
+ * Lookups return the ids of candidate children. Callers must check the
+ * children against the query, as changes committed outside of a node change
+ * event may not yet be reflected by the index.
+ */
+final class ChildIndex implements NodeChangeListener {
+
+    static final int MAGIC = 0x48434958; // HCIX
+    static final int VERSION = 1;
+
+    // value ranks, values of different ranks are never equal
+    static final int BOOLEAN = 0;
+    static final int NUMBER = 1;
+    static final int DATE = 2;
+    static final int STRING = 3;
+    static final int NODE = 4;
+    // marks children without a value
+    static final int NONE = 255;
+
+    private final NodeManager nmgr;
+    private final File file;
+    private int capacity;
+
+    // ParentIndexes by parent id, in access order
+    private final LinkedHashMap parents;
+    // ids of the indexed parents of each child, by child id
+    private final HashMap memberships = new HashMap();
+    // indexes currently being built
+    private final ArrayList builds = new ArrayList();
+    private boolean listening = false;
+
+    // statistics
+    private long lookups = 0;
+    private long built = 0;
+
+    /**
+     * Create a new child index.
+     *
+     * @param nmgr the node manager
+     * @param file the file the indexes are saved to
+     * @param size the maximum number of parents to index
+     */
+    ChildIndex(NodeManager nmgr, File file, int size) {
+        this.nmgr = nmgr;
+        this.file = file;
+        this.capacity = size;
+        this.parents = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() > capacity) {
+                    unregister((ParentIndex) eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Set the maximum number of parents to index.
+     */
+    synchronized void setCapacity(int size) {
+        capacity = size;
+        while (parents.size() > capacity) {
+            Iterator it = parents.values().iterator();
+            unregister((ParentIndex) it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Look up the children of a node by the value of an indexed property,
+     * building the node's index if necessary.
+     *
+     * @param parent the parent node, which must be clean
+     * @param propname the property name
+     * @param from the value to look up, or the lower bound of the range
+     * @param to the upper bound of the range
+     * @param range whether to look up a range rather than a single value
+     * @return the ids of the matching children
+     */
+    String[] find(Node parent, String propname, Object from, Object to, boolean range) {
+        Value vfrom = toValue(from);
+        Value vto = toValue(to);
+        if (!range && vfrom == null) {
+            return new String[0];
+        }
+
+        String[] props = parent.getDbMapping().getChildIndexes();
+        SubnodeList subnodes = parent.getSubnodeList();
+        int size = subnodes == null ? 0 : subnodes.size();
+        String parentId = parent.getID();
+        Build build;
+
+        synchronized (this) {
+            if (!listening) {
+                nmgr.addNodeChangeListener(this);
+                listening = true;
+            }
+            lookups++;
+            ParentIndex index = (ParentIndex) parents.get(parentId);
+            if (index != null) {
+                if (index.children.size() == size && index.covers(props)) {
+                    return index.find(propname, vfrom, vto, range);
+                }
+                parents.remove(parentId);
+                unregister(index);
+            }
+            build = new Build(parentId);
+            for (int i = 0; i < size; i++) {
+                build.children.add(subnodes.get(i).getID());
+            }
+            builds.add(build);
+        }
+
+        ParentIndex index = new ParentIndex(parentId, props);
+        try {
+            String[] ids = (String[]) build.children.toArray(new String[build.children.size()]);
+            Node[] children = parent.getSubnodes(ids);
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] == null || children[i].getState() != Node.CLEAN) {
+                    // not a committed version, the index would be wrong
+                    build.stale = true;
+                } else {
+                    index.put(children[i]);
+                }
+            }
+        } finally {
+            synchronized (this) {
+                builds.remove(build);
+                if (!build.stale && index.children.size() == size) {
+                    parents.put(parentId, index);
+                    register(index);
+                    built++;
+                }
+            }
+        }
+        return index.find(propname, vfrom, vto, range);
+    }
+
+    /**
+     * Update the indexes with the changes committed by a transaction.
+     */
+    public synchronized void nodesChanged(List inserted, List updated, List deleted,
+                                          List changedParents) {
+        if (parents.isEmpty() && builds.isEmpty()) {
+            return;
+        }
+
+        // embedded parents whose child collections have changed
+        HashSet parentIds = new HashSet();
+        for (int i = 0; i < changedParents.size(); i++) {
+            Node node = (Node) changedParents.get(i);
+            if (isEmbedded(node)) {
+                parentIds.add(node.getID());
+            }
+        }
+        // parents whose changes are accounted for by added or removed children
+        HashSet accounted = new HashSet();
+
+        for (int i = 0; i < deleted.size(); i++) {
+            Node node = (Node) deleted.get(i);
+            if (!isEmbedded(node)) {
+                continue;
+            }
+            String id = node.getID();
+            markBuilds(id);
+            Set set = (Set) memberships.remove(id);
+            if (set != null) {
+                for (Iterator it = set.iterator(); it.hasNext(); ) {
+                    String parentId = (String) it.next();
+                    ParentIndex index = (ParentIndex) parents.get(parentId);
+                    if (index != null) {
+                        index.remove(id);
+                        accounted.add(parentId);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < inserted.size(); i++) {
+            Node node = (Node) inserted.get(i);
+            if (!isEmbedded(node)) {
+                continue;
+            }
+            markBuilds(node.getID());
+            NodeHandle parentHandle = node.parentHandle;
+            String parentId = parentHandle == null ? null : parentHandle.getID();
+            if (parentId != null && parentIds.contains(parentId)) {
+                ParentIndex index = (ParentIndex) parents.get(parentId);
+                if (index != null) {
+                    index.put(node);
+                    addMembership(node.getID(), parentId);
+                    accounted.add(parentId);
+                }
+            }
+        }
+
+        for (int i = 0; i < updated.size(); i++) {
+            Node node = (Node) updated.get(i);
+            if (!isEmbedded(node)) {
+                continue;
+            }
+            markBuilds(node.getID());
+            Set set = (Set) memberships.get(node.getID());
+            if (set != null) {
+                for (Iterator it = set.iterator(); it.hasNext(); ) {
+                    ParentIndex index = (ParentIndex) parents.get(it.next());
+                    if (index != null) {
+                        index.put(node);
+                    }
+                }
+            }
+        }
+
+        // drop the indexes of parents whose children changed in other ways
+        for (int i = 0; i < changedParents.size(); i++) {
+            Node node = (Node) changedParents.get(i);
+            if (!isEmbedded(node)) {
+                continue;
+            }
+            String parentId = node.getID();
+            markBuilds(parentId);
+            ParentIndex index = (ParentIndex) parents.get(parentId);
+            if (index == null) {
+                continue;
+            }
+            SubnodeList subnodes = node.getSubnodeList();
+            int size = subnodes == null ? 0 : subnodes.size();
+            if (!accounted.contains(parentId) || index.children.size() != size) {
+                parents.remove(parentId);
+                unregister(index);
+            }
+        }
+    }
+
+    // mark builds involving the node with the given id as stale
+    private void markBuilds(String id) {
+        for (int i = 0; i < builds.size(); i++) {
+            Build build = (Build) builds.get(i);
+            if (build.parentId.equals(id) || build.children.contains(id)) {
+                build.stale = true;
+            }
+        }
+    }
+
+    private void register(ParentIndex index) {
+        for (Iterator it = index.children.iterator(); it.hasNext(); ) {
+            addMembership((String) it.next(), index.id);
+        }
+    }
+
+    private void addMembership(String childId, String parentId) {
+        Set set = (Set) memberships.get(childId);
+        if (set == null) {
+            set = new HashSet(4);
+            memberships.put(childId, set);
+        }
+        set.add(parentId);
+    }
+
+    private void unregister(ParentIndex index) {
+        for (Iterator it = index.children.iterator(); it.hasNext(); ) {
+            String childId = (String) it.next();
+            Set set = (Set) memberships.get(childId);
+            if (set != null) {
+                set.remove(index.id);
+                if (set.isEmpty()) {
+                    memberships.remove(childId);
+                }
+            }
+        }
+    }
+
+    private static boolean isEmbedded(Node node) {
+        DbMapping dbmap = node.getDbMapping();
+        return dbmap == null || !dbmap.isRelational();
+    }
+
+    /**
+     * Discard all indexes.
+     */
+    synchronized void clear() {
+        parents.clear();
+        memberships.clear();
+    }
+
+    /**
+     * Check if a property value matches a lookup.
+     *
+     * @param value the property value
+     * @param from the value to look up, or the lower bound of the range
+     * @param to the upper bound of the range
+     * @param range whether the lookup is for a range
+     */
+    static boolean matches(Object value, Object from, Object to, boolean range) {
+        Value v = toValue(value);
+        if (v == null) {
+            return false;
+        }
+        Value vfrom = toValue(from);
+        if (!range) {
+            return v.equals(vfrom);
+        }
+        Value vto = toValue(to);
+        int rank = vfrom != null ? vfrom.rank : (vto != null ? vto.rank : v.rank);
+        return v.rank == rank && (vfrom == null || v.compareTo(vfrom) >= 0) &&
+               (vto == null || v.compareTo(vto) <= 0);
+    }
+
+    /**
+     * Convert a property or lookup value to an index value.
+     *
+     * @return the index value, or null if the value can't be indexed
+     */
+    static Value toValue(Object value) {
+        if (value instanceof IProperty) {
+            IProperty prop = (IProperty) value;
+            switch (prop.getType()) {
+                case IProperty.BOOLEAN:
+                    value = prop.getBooleanValue() ? Boolean.TRUE : Boolean.FALSE;
+                    break;
+                case IProperty.INTEGER:
+                case IProperty.FLOAT:
+                    value = new Double(prop.getFloatValue());
+                    break;
+                case IProperty.DATE:
+                    value = prop.getDateValue();
+                    break;
+                case IProperty.STRING:
+                    value = prop.getStringValue();
+                    break;
+                case IProperty.NODE:
+                    value = prop instanceof Property ?
+                            (Object) ((Property) prop).getNodeHandle() : prop.getNodeValue();
+                    break;
+                default:
+                    return null;
+            }
+        }
+
+        if (value == null) {
+            return null;
+        } else if (value instanceof String) {
+            return new Value(STRING, (String) value);
+        } else if (value instanceof Number) {
+            return new Value(NUMBER, new Double(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            return new Value(BOOLEAN, value.toString());
+        } else if (value instanceof Date) {
+            return new Value(DATE, new Long(((Date) value).getTime()));
+        } else if (value instanceof NodeHandle) {
+            return new Value(NODE, ((NodeHandle) value).getKey().toString());
+        } else if (value instanceof Node) {
+            return new Value(NODE, ((Node) value).getKey().toString());
+        } else if (value instanceof INode) {
+            return new Value(NODE, ((INode) value).getID());
+        }
+        return null;
+    }
+
+    /**
+     * Save the indexes to the file, so they are available when the
+     * application is started again.
+     */
+    synchronized void save() throws IOException {
+        if (parents.isEmpty()) {
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(parents.size());
+            for (Iterator it = parents.values().iterator(); it.hasNext(); ) {
+                ((ParentIndex) it.next()).write(out);
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists()) {
+            file.delete();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Can't rename " + tmp + " to " + file);
+        }
+    }
+
+    /**
+     * Read the indexes saved by save(), and delete the file so outdated
+     * indexes aren't read again if the application isn't stopped cleanly.
+     */
+    synchronized void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ParentIndex index = ParentIndex.read(in);
+                parents.put(index.id, index);
+                register(index);
+            }
+            if (!parents.isEmpty()) {
+                nmgr.addNodeChangeListener(this);
+                listening = true;
+            }
+        } finally {
+            in.close();
+            file.delete();
+        }
+    }
+
+    public synchronized String toString() {
+        return "ChildIndex[parents: " + parents.size() + ", lookups: " + lookups +
+               ", built: " + built + "]";
+    }
+
+    /**
+     * A normalized property value. Values are ordered by rank first, so
+     * lookups never match values of a different kind.
+     */
+    static final class Value implements Comparable {
+        final int rank;
+        final Comparable value;
+
+        Value(int rank, Comparable value) {
+            this.rank = rank;
+            this.value = value;
+        }
+
+        public int compareTo(Object obj) {
+            Value other = (Value) obj;
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            // a null value is the lowest value of its rank
+            if (value == null || other.value == null) {
+                return value == other.value ? 0 : (value == null ? -1 : 1);
+            }
+            return value.compareTo(other.value);
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof Value && compareTo(obj) == 0;
+        }
+
+        public int hashCode() {
+            return rank * 31 + (value == null ? 0 : value.hashCode());
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeByte(rank);
+            switch (rank) {
+                case NUMBER:
+                    out.writeDouble(((Double) value).doubleValue());
+                    break;
+                case DATE:
+                    out.writeLong(((Long) value).longValue());
+                    break;
+                default:
+                    writeString(out, (String) value);
+            }
+        }
+
+        static Value read(DataInputStream in) throws IOException {
+            int rank = in.readUnsignedByte();
+            switch (rank) {
+                case NONE:
+                    return null;
+                case NUMBER:
+                    return new Value(rank, new Double(in.readDouble()));
+                case DATE:
+                    return new Value(rank, new Long(in.readLong()));
+                case BOOLEAN:
+                case STRING:
+                case NODE:
+                    return new Value(rank, readString(in));
+                default:
+                    throw new IOException("Invalid value type " + rank);
+            }
+        }
+    }
+
+    /**
+     * The index of one property of the children of a parent.
+     */
+    static final class PropertyIndex {
+        // sets of child ids by Value
+        final TreeMap values = new TreeMap();
+        // Values by child id, for children with a value
+        final HashMap byId = new HashMap();
+
+        void put(String id, Value value) {
+            Value previous = (Value) byId.get(id);
+            if (previous != null && previous.equals(value)) {
+                return;
+            }
+            remove(id);
+            if (value != null) {
+                byId.put(id, value);
+                Set set = (Set) values.get(value);
+                if (set == null) {
+                    set = new LinkedHashSet(4);
+                    values.put(value, set);
+                }
+                set.add(id);
+            }
+        }
+
+        void remove(String id) {
+            Value value = (Value) byId.remove(id);
+            if (value != null) {
+                Set set = (Set) values.get(value);
+                if (set != null) {
+                    set.remove(id);
+                    if (set.isEmpty()) {
+                        values.remove(value);
+                    }
+                }
+            }
+        }
+
+        void find(Value from, Value to, boolean range, List result) {
+            if (!range) {
+                Set set = (Set) values.get(from);
+                if (set != null) {
+                    result.addAll(set);
+                }
+                return;
+            }
+            Map tail = values;
+            int rank = -1;
+            if (from != null) {
+                tail = values.tailMap(from);
+                rank = from.rank;
+            } else if (to != null) {
+                tail = values.tailMap(new Value(to.rank, null));
+                rank = to.rank;
+            }
+            for (Iterator it = tail.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Value value = (Value) entry.getKey();
+                if ((rank >= 0 && value.rank != rank) ||
+                        (to != null && value.compareTo(to) > 0)) {
+                    break;
+                }
+                result.addAll((Set) entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * The property indexes of the children of a parent.
+     */
+    static final class ParentIndex {
+        final String id;
+        // the ids of the indexed children
+        final HashSet children = new HashSet();
+        // PropertyIndexes by property name
+        final HashMap props = new HashMap();
+
+        ParentIndex(String id, String[] propnames) {
+            this.id = id;
+            for (int i = 0; i < propnames.length; i++) {
+                props.put(propnames[i], new PropertyIndex());
+            }
+        }
+
+        // check if all given properties are indexed
+        boolean covers(String[] propnames) {
+            if (propnames == null) {
+                return false;
+            }
+            for (int i = 0; i < propnames.length; i++) {
+                if (!props.containsKey(propnames[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void put(Node child) {
+            String childId = child.getID();
+            children.add(childId);
+            for (Iterator it = props.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Value value = toValue(child.get((String) entry.getKey()));
+                ((PropertyIndex) entry.getValue()).put(childId, value);
+            }
+        }
+
+        void remove(String childId) {
+            children.remove(childId);
+            for (Iterator it = props.values().iterator(); it.hasNext(); ) {
+                ((PropertyIndex) it.next()).remove(childId);
+            }
+        }
+
+        String[] find(String propname, Value from, Value to, boolean range) {
+            PropertyIndex index = (PropertyIndex) props.get(propname);
+            ArrayList result = new ArrayList();
+            if (index != null) {
+                index.find(from, to, range, result);
+            }
+            return (String[]) result.toArray(new String[result.size()]);
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(id);
+            out.writeInt(props.size());
+            for (Iterator it = props.keySet().iterator(); it.hasNext(); ) {
+                out.writeUTF((String) it.next());
+            }
+            out.writeInt(children.size());
+            for (Iterator it = children.iterator(); it.hasNext(); ) {
+                String childId = (String) it.next();
+                out.writeUTF(childId);
+                for (Iterator p = props.values().iterator(); p.hasNext(); ) {
+                    Value value = (Value) ((PropertyIndex) p.next()).byId.get(childId);
+                    if (value == null) {
+                        out.writeByte(NONE);
+                    } else {
+                        value.write(out);
+                    }
+                }
+            }
+        }
+
+        static ParentIndex read(DataInputStream in) throws IOException {
+            String id = in.readUTF();
+            String[] propnames = new String[in.readInt()];
+            for (int i = 0; i < propnames.length; i++) {
+                propnames[i] = in.readUTF();
+            }
+            ParentIndex index = new ParentIndex(id, propnames);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String childId = in.readUTF();
+                index.children.add(childId);
+                for (int j = 0; j < propnames.length; j++) {
+                    PropertyIndex pindex = (PropertyIndex) index.props.get(propnames[j]);
+                    pindex.put(childId, Value.read(in));
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * An index being built, which must not be used if one of the nodes
+     * involved changes meanwhile.
+     */
+    static final class Build {
+        final String parentId;
+        final HashSet children = new HashSet();
+        volatile boolean stale = false;
+
+        Build(String parentId) {
+            this.parentId = parentId;
+        }
+    }
+
+    // strings are written with their length, as values may exceed 64K bytes
+    static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collects the relational nodes written by a transaction, grouped by operation
+ * and DbMapping, so they can be written using JDBC batch updates.
+ *
+ * Consecutive nodes written with the same operation on the same DbMapping are
+ * collected in one group. Any other node starts a new group, and groups are
+ * executed in the order they were started, so the statements are executed in
+ * the order in which the nodes were added. Interleaved writes to several
+ * tables, e.g. a parent row followed by a child row referencing it, keep their
+ * order and don't violate foreign key constraints.
+ */
+final class CommitBatch {
+
+    static final int INSERT = 0;
+    static final int UPDATE = 1;
+    static final int DELETE = 2;
+    // operation symbols for the access log
+    private static final char[] OPS = {'+', '~', '-'};
+
+    private final NodeManager nmgr;
+    private final int batchSize;
+
+    // the groups in the order they were started
+    private final List groups = new ArrayList();
+
+    /**
+     * Create a new batch.
+     *
+     * @param nmgr the node manager
+     * @param batchSize the maximum number of statements per JDBC batch
+     */
+    CommitBatch(NodeManager nmgr, int batchSize) {
+        this.nmgr = nmgr;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Add a new node to the batch. onPersist() is invoked on the node.
+     *
+     * @return true if the node was added, false if it isn't stored in a
+     *         relational database and must be inserted directly
+     */
+    boolean insert(Node node) {
+        return add(INSERT, node, true);
+    }
+
+    /**
+     * Add a modified node to the batch. onPersist() is invoked on the node.
+     *
+     * @return true if the node was added, false if it isn't stored in a
+     *         relational database and must be updated directly
+     */
+    boolean update(Node node) {
+        return add(UPDATE, node, true);
+    }
+
+    /**
+     * Add a deleted node to the batch.
+     *
+     * @return true if the node was added, false if it isn't stored in a
+     *         relational database and must be deleted directly
+     */
+    boolean delete(Node node) {
+        return add(DELETE, node, false);
+    }
+
+    private boolean add(int op, Node node, boolean persist) {
+        DbMapping dbm = node.getDbMapping();
+
+        if ((dbm == null) || !dbm.isRelational()) {
+            return false;
+        }
+
+        if (persist) {
+            nmgr.invokeOnPersist(node);
+        }
+
+        // only the most recent group may be extended without reordering statements
+        Group group = groups.isEmpty() ? null : (Group) groups.get(groups.size() - 1);
+        if (group == null || group.op != op || group.dbm != dbm) {
+            group = new Group(op, dbm);
+            groups.add(group);
+        }
+        group.nodes.add(node);
+        return true;
+    }
+
+    /**
+     * Check if any nodes have been added to this batch.
+     */
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Write all collected nodes to their databases.
+     *
+     * @param dirtyDbMappings the set to add DbMappings to that are to be
+     *                        marked as changed
+     */
+    void execute(Set dirtyDbMappings) throws ClassNotFoundException, SQLException {
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = (Group) groups.get(i);
+            switch (group.op) {
+                case INSERT:
+                    nmgr.insertRelationalNodes(group.dbm, group.nodes, batchSize);
+                    dirtyDbMappings.add(group.dbm);
+                    break;
+                case UPDATE:
+                    // only mark DbMapping as dirty if updateRelationalNodes returns true
+                    if (nmgr.updateRelationalNodes(group.dbm, group.nodes, batchSize)) {
+                        dirtyDbMappings.add(group.dbm);
+                    }
+                    break;
+                default:
+                    nmgr.deleteRelationalNodes(group.dbm, group.nodes, batchSize);
+                    dirtyDbMappings.add(group.dbm);
+            }
+        }
+    }
+
+    /**
+     * Render the group sizes of this batch for the access log,
+     * e.g. "+12 Story, ~3 Comment, -1 Story".
+     */
+    public String toString() {
+        StringBuffer b = new StringBuffer();
+        for (int i = 0; i < groups.size(); i++) {
+            Group group = (Group) groups.get(i);
+            if (b.length() > 0) {
+                b.append(", ");
+            }
+            b.append(OPS[group.op]).append(group.nodes.size()).append(" ")
+             .append(group.dbm.getTypeName());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Consecutive nodes of one DbMapping written with the same operation.
+     */
+    static final class Group {
+        final int op;
+        final DbMapping dbm;
+        final List nodes = new ArrayList();
+
+        Group(int op, DbMapping dbm) {
+            this.op = op;
+            this.dbm = dbm;
+        }
+    }
+}
@@ -0,0 +1,604 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.objectmodel.IProperty;
+
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The property map of a node loaded from a relational database. Properties
+ * mapped to columns of the node's table are kept in an array indexed by the
+ * column's slot in the DbMapping's {@link SlotTable}. Column values are stored
+ * as they are read from the database, and only wrapped in a Property object
+ * when the property is first accessed. Other properties are kept in the
+ * underlying Hashtable, which stays empty for most nodes.
+ *
+ * Slots of properties with loadmode = lazy are marked as not loaded until
+ * they are first accessed through get(), which makes the node manager fetch
+ * them from the database. Properties that haven't been loaded yet are not
+ * counted by size() and not included in the enumerations and collection views.
+ *
+ * Only the methods of the java.util.Map and Hashtable interfaces available
+ * in Java 1.4 consider the slot values. Collection views and enumerations are
+ * read-only and don't store the Property objects they create for raw slot
+ * values, so iterating over the map keeps it compact.
+ */
+final class CompactPropertyMap extends Hashtable {
+
+    // marks a slot whose property has been removed
+    static final Object ABSENT = new Object();
+    // marks a lazy slot whose value hasn't been fetched yet
+    static final Object NOT_LOADED = new Object();
+
+    private final SlotTable table;
+    private final Object[] values;
+    private final Node node;
+
+    /**
+     * Create a property map for the given node. Slots are initially empty.
+     */
+    CompactPropertyMap(SlotTable table, Node node) {
+        super(1);
+        this.table = table;
+        this.node = node;
+        this.values = new Object[table.propNames.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ABSENT;
+        }
+    }
+
+    private CompactPropertyMap(CompactPropertyMap other) {
+        super(1);
+        this.table = other.table;
+        this.node = other.node;
+        this.values = new Object[other.values.length];
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        super.putAll(other.overflow());
+    }
+
+    /**
+     * Set the raw database value of a slot. The value is converted to
+     * a clean Property when it is first accessed.
+     */
+    void setSlotValue(int slot, Object value) {
+        values[slot] = value;
+    }
+
+    /**
+     * Set the raw value of a lazy slot that has been fetched from the
+     * database, unless the property has been set or removed meanwhile.
+     */
+    synchronized void setLoadedValue(int slot, Object value) {
+        if (values[slot] == NOT_LOADED) {
+            values[slot] = value;
+        }
+    }
+
+    /**
+     * Mark all lazy slots that don't have a value as not loaded.
+     */
+    synchronized void markLazySlots() {
+        for (int i = 0; i < values.length; i++) {
+            if (table.lazy[i] && values[i] == ABSENT) {
+                values[i] = NOT_LOADED;
+            }
+        }
+    }
+
+    /**
+     * Check if any lazy slots still have to be fetched from the database.
+     */
+    boolean hasUnloadedSlots() {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == NOT_LOADED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the slot table of this map.
+     */
+    SlotTable getSlotTable() {
+        return table;
+    }
+
+    /**
+     * Get the values of all properties without creating Property objects,
+     * e.g. to estimate the memory used by the node.
+     */
+    synchronized Object[] getPropertyValues() {
+        ArrayList list = new ArrayList(values.length + super.size());
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value instanceof Property) {
+                list.add(((Property) value).getValue());
+            } else if (value != ABSENT && value != NOT_LOADED) {
+                list.add(value);
+            }
+        }
+        for (Enumeration en = super.elements(); en.hasMoreElements(); ) {
+            list.add(((Property) en.nextElement()).getValue());
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Get a copy of the slot values without wrapping raw values in Property
+     * objects, e.g. to serialize the node. Slots contain either a Property,
+     * a raw database value, ABSENT or NOT_LOADED.
+     */
+    synchronized Object[] getSlotValues() {
+        Object[] copy = new Object[values.length];
+        System.arraycopy(values, 0, copy, 0, values.length);
+        return copy;
+    }
+
+    /**
+     * Get the property type of a raw slot value as returned by getSlotValues().
+     */
+    int getRawType(int slot, Object value) {
+        if (value == null) {
+            return table.references[slot] ? IProperty.NODE : IProperty.STRING;
+        } else if (value instanceof String) {
+            return IProperty.STRING;
+        } else if (value instanceof Long) {
+            return IProperty.INTEGER;
+        } else if (value instanceof Double) {
+            return IProperty.FLOAT;
+        } else if (value instanceof Boolean) {
+            return IProperty.BOOLEAN;
+        } else if (value instanceof Date) {
+            return IProperty.DATE;
+        } else if (value instanceof NodeHandle) {
+            return IProperty.NODE;
+        }
+        return IProperty.JAVAOBJECT;
+    }
+
+    /**
+     * Get the properties that aren't mapped to a slot.
+     */
+    synchronized Property[] getOverflowProperties() {
+        Property[] props = new Property[super.size()];
+        int i = 0;
+        for (Enumeration en = super.elements(); en.hasMoreElements(); ) {
+            props[i++] = (Property) en.nextElement();
+        }
+        return props;
+    }
+
+    // get the property in a slot, wrapping its raw value and storing the
+    // Property in the slot if necessary
+    private Object getSlot(int slot) {
+        Object value = peekSlot(slot);
+        if (value != null) {
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    // get the property in a slot, wrapping its raw value in a Property
+    // that is not stored in the slot
+    private Object peekSlot(int slot) {
+        Object value = values[slot];
+        if (value == ABSENT || value == NOT_LOADED) {
+            return null;
+        } else if (value instanceof Property) {
+            return value;
+        }
+
+        Property prop = new Property(table.propNames[slot], node);
+        if (value == null) {
+            if (table.references[slot]) {
+                prop.setNodeHandle(null);
+            } else {
+                prop.setStringValue(null);
+            }
+        } else if (value instanceof String) {
+            prop.setStringValue((String) value);
+        } else if (value instanceof Long) {
+            prop.setIntegerValue(((Long) value).longValue());
+        } else if (value instanceof Double) {
+            prop.setFloatValue(((Double) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            prop.setBooleanValue(((Boolean) value).booleanValue());
+        } else if (value instanceof Date) {
+            prop.setDateValue((Date) value);
+        } else if (value instanceof NodeHandle) {
+            prop.setNodeHandle((NodeHandle) value);
+        } else {
+            prop.setJavaObjectValue(value);
+        }
+        // mark property as clean, since it's fresh from the db
+        prop.dirty = false;
+        return prop;
+    }
+
+    // a snapshot of the properties not mapped to a slot
+    private Map overflow() {
+        if (super.isEmpty()) {
+            return Collections.EMPTY_MAP;
+        }
+        HashMap map = new HashMap();
+        for (Enumeration en = super.keys(); en.hasMoreElements(); ) {
+            Object key = en.nextElement();
+            map.put(key, super.get(key));
+        }
+        return map;
+    }
+
+    public synchronized int size() {
+        int size = super.size();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != ABSENT && values[i] != NOT_LOADED) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public Object get(Object key) {
+        int slot = table.getSlot(key);
+        if (slot < 0) {
+            return super.get(key);
+        }
+        if (values[slot] == NOT_LOADED) {
+            // not holding our lock, since other nodes' lazy slots may be loaded as well
+            node.nmgr.loadLazyProperties(node);
+        }
+        synchronized (this) {
+            return getSlot(slot);
+        }
+    }
+
+    public synchronized boolean containsKey(Object key) {
+        int slot = table.getSlot(key);
+        return slot < 0 ? super.containsKey(key) : values[slot] != ABSENT;
+    }
+
+    public synchronized boolean contains(Object value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        for (Iterator it = new PropertyIterator(PropertyIterator.VALUES); it.hasNext(); ) {
+            if (value.equals(it.next())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean containsValue(Object value) {
+        return contains(value);
+    }
+
+    public synchronized Object put(Object key, Object value) {
+        int slot = table.getSlot(key);
+        if (slot < 0) {
+            return super.put(key, value);
+        }
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        Object old = getSlot(slot);
+        values[slot] = value;
+        return old;
+    }
+
+    public synchronized Object remove(Object key) {
+        int slot = table.getSlot(key);
+        if (slot < 0) {
+            return super.remove(key);
+        }
+        Object old = getSlot(slot);
+        values[slot] = ABSENT;
+        return old;
+    }
+
+    public synchronized void putAll(Map map) {
+        for (Iterator it = map.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized void clear() {
+        super.clear();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = ABSENT;
+        }
+    }
+
+    public synchronized Object clone() {
+        return new CompactPropertyMap(this);
+    }
+
+    public synchronized Enumeration keys() {
+        return new PropertyIterator(PropertyIterator.KEYS);
+    }
+
+    public synchronized Enumeration elements() {
+        return new PropertyIterator(PropertyIterator.VALUES);
+    }
+
+    public Set keySet() {
+        return new AbstractSet() {
+            public Iterator iterator() {
+                return new PropertyIterator(PropertyIterator.KEYS);
+            }
+            public int size() {
+                return CompactPropertyMap.this.size();
+            }
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+        };
+    }
+
+    public Collection values() {
+        return new AbstractCollection() {
+            public Iterator iterator() {
+                return new PropertyIterator(PropertyIterator.VALUES);
+            }
+            public int size() {
+                return CompactPropertyMap.this.size();
+            }
+        };
+    }
+
+    public Set entrySet() {
+        return new AbstractSet() {
+            public Iterator iterator() {
+                return new PropertyIterator(PropertyIterator.ENTRIES);
+            }
+            public int size() {
+                return CompactPropertyMap.this.size();
+            }
+        };
+    }
+
+    public synchronized boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof Map) || ((Map) obj).size() != size()) {
+            return false;
+        }
+        Map other = (Map) obj;
+        for (Iterator it = new PropertyIterator(PropertyIterator.ENTRIES); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            if (!entry.getValue().equals(other.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int hashCode() {
+        // Property doesn't implement hashCode(), so hash the property values
+        int hash = 0;
+        for (Iterator it = new PropertyIterator(PropertyIterator.ENTRIES); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            Object value = ((Property) entry.getValue()).getValue();
+            hash += entry.getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+        return hash;
+    }
+
+    public synchronized String toString() {
+        StringBuffer b = new StringBuffer("{");
+        for (Iterator it = new PropertyIterator(PropertyIterator.ENTRIES); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            b.append(entry.getKey()).append('=').append(entry.getValue());
+            if (it.hasNext()) {
+                b.append(", ");
+            }
+        }
+        return b.append('}').toString();
+    }
+
+    /**
+     * Iterates over the slots and then over a snapshot of the other properties.
+     * Raw slot values are wrapped in Property objects that are not stored in
+     * the map.
+     */
+    private final class PropertyIterator implements Iterator, Enumeration {
+        static final int KEYS = 0;
+        static final int VALUES = 1;
+        static final int ENTRIES = 2;
+
+        private final int mode;
+        // the next slot to look at
+        private int slot = 0;
+        // the properties not mapped to a slot, once the slots are done
+        private Iterator overflow;
+        private Object nextKey;
+        private Object nextValue;
+
+        PropertyIterator(int mode) {
+            this.mode = mode;
+        }
+
+        public boolean hasNext() {
+            if (nextKey != null) {
+                return true;
+            }
+            synchronized (CompactPropertyMap.this) {
+                while (slot < values.length) {
+                    int i = slot++;
+                    if (values[i] != ABSENT && values[i] != NOT_LOADED) {
+                        nextKey = table.propNames[i];
+                        nextValue = mode == KEYS ? null : peekSlot(i);
+                        return true;
+                    }
+                }
+                if (overflow == null) {
+                    overflow = overflow().entrySet().iterator();
+                }
+            }
+            if (overflow.hasNext()) {
+                Map.Entry entry = (Map.Entry) overflow.next();
+                nextKey = entry.getKey();
+                nextValue = entry.getValue();
+                return true;
+            }
+            return false;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Object key = nextKey;
+            final Object value = nextValue;
+            nextKey = null;
+            nextValue = null;
+            switch (mode) {
+                case KEYS:
+                    return key;
+                case VALUES:
+                    return value;
+                default:
+                    return new Map.Entry() {
+                        public Object getKey() {
+                            return key;
+                        }
+                        public Object getValue() {
+                            return value;
+                        }
+                        public Object setValue(Object obj) {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public boolean hasMoreElements() {
+            return hasNext();
+        }
+
+        public Object nextElement() {
+            return next();
+        }
+    }
+
+    /**
+     * The assignment of property names to slots for the columns of a DbMapping.
+     * Only columns mapped to primitive or reference properties get a slot.
+     */
+    static final class SlotTable {
+        // the columns the slots were assigned for
+        final DbColumn[] columns;
+        // the columns that are selected when a node is loaded
+        final DbColumn[] selectColumns;
+        final String[] propNames;
+        final String[] columnNames;
+        // the index of each slot's column in the DbMapping's columns
+        final int[] columnIndexes;
+        // whether the slot holds a reference to another node
+        final boolean[] references;
+        // the type of nodes referenced by reference slots
+        final DbMapping[] referenceTypes;
+        // the index of each slot's column in the select columns, or -1
+        final int[] selectIndexes;
+        // whether the slot is loaded on demand
+        final boolean[] lazy;
+        private final HashMap slots = new HashMap();
+
+        SlotTable(DbColumn[] columns, DbColumn[] selectColumns) {
+            this.columns = columns;
+            this.selectColumns = selectColumns;
+            ArrayList list = new ArrayList();
+            for (int i = 0; i < columns.length; i++) {
+                Relation rel = columns[i].getRelation();
+                if (rel != null && rel.isPrimitiveOrReference()) {
+                    Integer slot = (Integer) slots.get(rel.propName);
+                    if (slot == null) {
+                        slots.put(rel.propName, new Integer(list.size()));
+                        list.add(new Integer(i));
+                    } else {
+                        // the last column mapped to a property wins
+                        list.set(slot.intValue(), new Integer(i));
+                    }
+                }
+            }
+            int count = list.size();
+            propNames = new String[count];
+            columnNames = new String[count];
+            columnIndexes = new int[count];
+            references = new boolean[count];
+            referenceTypes = new DbMapping[count];
+            selectIndexes = new int[count];
+            lazy = new boolean[count];
+            for (int k = 0; k < count; k++) {
+                int i = ((Integer) list.get(k)).intValue();
+                Relation rel = columns[i].getRelation();
+                propNames[k] = rel.propName;
+                columnNames[k] = columns[i].getName();
+                columnIndexes[k] = i;
+                references[k] = rel.isReference() && rel.usesPrimaryKey();
+                referenceTypes[k] = rel.otherType;
+                selectIndexes[k] = -1;
+                for (int j = 0; j < selectColumns.length; j++) {
+                    if (selectColumns[j] == columns[i]) {
+                        selectIndexes[k] = j;
+                        break;
+                    }
+                }
+                lazy[k] = selectIndexes[k] < 0;
+            }
+        }
+
+        /**
+         * Get the slot for a property name, or -1 if it isn't mapped to a column.
+         */
+        int getSlot(Object propName) {
+            Integer slot = (Integer) slots.get(propName);
+            return slot == null ? -1 : slot.intValue();
+        }
+
+        /**
+         * Get the number of slots.
+         */
+        int size() {
+            return propNames.length;
+        }
+    }
+}
@@ -0,0 +1,693 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded pool of JDBC connections for a single DbSource.
+ *
+ * Connections are handed out wrapped in a proxy whose close() method returns the
+ * physical connection to the pool. A proxy becomes unusable once it has been
+ * closed, so code holding on to a stale handle can't interfere with the thread
+ * that checked out the connection next.
+ *
+ * Each pooled connection keeps a bounded LRU cache of prepared statements keyed
+ * by their SQL text. Calling prepareStatement(String) on a connection handle
+ * returns a cached statement if one for the same SQL is available, and closing
+ * the statement returns it to the cache. The caches are discarded through
+ * clearStatementCache() when a type mapping changes.
+ *
+ * The pool is configured through the data source's entries in db.properties:
+ * <pre>
+ * mySource.pool.maxActive          = 20      (max. number of open connections)
+ * mySource.pool.maxIdle            = 20      (max. number of idle connections kept)
+ * mySource.pool.maxWait            = 10000   (millis to wait for a free connection)
+ * mySource.pool.idleTimeout        = 300000  (millis after which idle connections are closed)
+ * mySource.pool.validationInterval = 30000   (millis of idleness before a connection is tested)
+ * mySource.pool.leakThreshold      = 300000  (millis after which a checked out connection is reported)
+ * mySource.pool.leakTrace          = false   (log where leaked connections were checked out)
+ * mySource.pool.statementCacheSize = 50      (max. cached prepared statements per connection, 0 to disable)
+ * </pre>
+ */
+public class ConnectionPool {
+
+    // the connection settings currently in use
+    private String url;
+    private Properties conProps;
+    private String name;
+
+    // idle connections, most recently returned at the end of the list
+    private final LinkedList idle = new LinkedList();
+    // connections currently checked out
+    private final HashSet active = new HashSet();
+
+    private int maxActive = 20;
+    private int maxIdle = 20;
+    private long maxWait = 10000L;
+    private long idleTimeout = 300000L;
+    private long validationInterval = 30000L;
+    private long leakThreshold = 300000L;
+    private boolean leakTrace = false;
+    private int statementCacheSize = 50;
+
+    // incremented each time the connection settings change. Connections belonging
+    // to an older generation are closed instead of being returned to the pool.
+    private int generation = 0;
+
+    // incremented to invalidate the prepared statements cached by all connections
+    private volatile int statementGeneration = 0;
+
+    // statistics
+    private long checkouts = 0;
+    private long waits = 0;
+    private long totalWaitTime = 0;
+    private long maxWaitTime = 0;
+    private long created = 0;
+    private long leaks = 0;
+
+    private long lastMaintenance = System.currentTimeMillis();
+
+    static final Log log = LogFactory.getLog(ConnectionPool.class);
+
+    /**
+     * Create a new connection pool.
+     *
+     * @param name the name of the data source, used for log messages
+     */
+    public ConnectionPool(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Set the JDBC URL, driver properties and pool settings. Idle connections
+     * created with earlier settings are closed, active ones are closed when they
+     * are returned.
+     *
+     * @param url the JDBC URL
+     * @param conProps the properties to pass to the JDBC driver
+     * @param poolProps the pool settings, without the "pool." prefix and with lower case keys
+     */
+    public synchronized void configure(String url, Properties conProps, Properties poolProps) {
+        this.url = url;
+        this.conProps = conProps;
+        maxActive = getInt(poolProps, "maxActive", 20);
+        maxIdle = getInt(poolProps, "maxIdle", maxActive);
+        maxWait = getInt(poolProps, "maxWait", 10000);
+        idleTimeout = getInt(poolProps, "idleTimeout", 300000);
+        validationInterval = getInt(poolProps, "validationInterval", 30000);
+        leakThreshold = getInt(poolProps, "leakThreshold", 300000);
+        leakTrace = "true".equalsIgnoreCase(poolProps == null ?
+                null : poolProps.getProperty("leaktrace"));
+        statementCacheSize = getInt(poolProps, "statementCacheSize", 50);
+        generation += 1;
+        closeIdleConnections(0);
+        notifyAll();
+    }
+
+    /**
+     * Get a connection from the pool, creating a new one if no idle connection
+     * is available and the pool isn't exhausted. If the pool is exhausted, this
+     * waits for up to maxWait milliseconds for another thread to return one.
+     *
+     * @return a pooled connection
+     * @throws SQLException if no connection could be obtained
+     */
+    public Connection getConnection() throws SQLException {
+        return getConnection(true);
+    }
+
+    /**
+     * Get a connection from the pool without waiting. This is used for extra
+     * connections taken by a thread that already holds one, which would
+     * otherwise wait for itself if the pool is exhausted.
+     *
+     * @return a pooled connection, or null if the pool is exhausted
+     * @throws SQLException if a connection couldn't be created
+     */
+    public Connection tryGetConnection() throws SQLException {
+        return getConnection(false);
+    }
+
+    private Connection getConnection(boolean wait) throws SQLException {
+        long now = System.currentTimeMillis();
+        PooledConnection pooled = null;
+        boolean create = false;
+        String conUrl;
+        Properties props;
+
+        synchronized (this) {
+            maintain(now);
+            long waitStart = now;
+            while (true) {
+                if (!idle.isEmpty()) {
+                    pooled = (PooledConnection) idle.removeLast();
+                    break;
+                } else if (maxActive <= 0 || active.size() < maxActive) {
+                    create = true;
+                    break;
+                } else if (!wait) {
+                    return null;
+                }
+                long elapsed = System.currentTimeMillis() - waitStart;
+                if (elapsed >= maxWait) {
+                    recordWait(elapsed);
+                    throw new SQLException("Timed out after " + elapsed +
+                            " millis waiting for a connection to " + name +
+                            " (" + active.size() + " connections in use)");
+                }
+                try {
+                    wait(maxWait - elapsed);
+                } catch (InterruptedException ir) {
+                    throw new SQLException("Interrupted while waiting for a connection to " + name);
+                }
+            }
+            long waited = System.currentTimeMillis() - waitStart;
+            if (waited > 0) {
+                recordWait(waited);
+            }
+            conUrl = url;
+            props = conProps;
+            if (create) {
+                // reserve the slot while we create the connection outside the monitor
+                pooled = new PooledConnection(generation);
+            }
+            pooled.statementCacheSize = statementCacheSize;
+            active.add(pooled);
+            checkouts += 1;
+        }
+
+        try {
+            if (create) {
+                pooled.connection = DriverManager.getConnection(conUrl, props);
+                synchronized (this) {
+                    created += 1;
+                }
+            } else if (System.currentTimeMillis() - pooled.lastUsed > validationInterval
+                    && !validate(pooled.connection)) {
+                closeQuietly(pooled.connection);
+                pooled.statements.clear();
+                pooled.connection = DriverManager.getConnection(conUrl, props);
+                synchronized (this) {
+                    created += 1;
+                }
+            }
+        } catch (SQLException x) {
+            synchronized (this) {
+                active.remove(pooled);
+                notifyAll();
+            }
+            throw x;
+        } catch (RuntimeException x) {
+            synchronized (this) {
+                active.remove(pooled);
+                notifyAll();
+            }
+            throw x;
+        }
+
+        pooled.checkoutTime = System.currentTimeMillis();
+        // capturing a stack trace on every checkout is expensive
+        pooled.checkoutTrace = leakTrace && leakThreshold > 0 ?
+                new Exception("Connection checked out by " + Thread.currentThread()) : null;
+        pooled.leakReported = false;
+        return pooled.createHandle();
+    }
+
+    /**
+     * Return a connection to the pool. Called when the close() method of a connection
+     * handle is invoked.
+     */
+    void release(PooledConnection pooled) {
+        boolean discard;
+        Connection con = pooled.connection;
+        // reset state a previous user may have changed
+        try {
+            if (con.isClosed()) {
+                discard = true;
+            } else {
+                if (!con.getAutoCommit()) {
+                    con.rollback();
+                    con.setAutoCommit(true);
+                }
+                discard = false;
+            }
+        } catch (SQLException x) {
+            discard = true;
+        }
+        pooled.lastUsed = System.currentTimeMillis();
+        pooled.checkoutTrace = null;
+        if (!discard) {
+            pooled.releaseStatements();
+        }
+
+        synchronized (this) {
+            active.remove(pooled);
+            if (!discard && pooled.generation == generation && idle.size() < maxIdle) {
+                idle.addLast(pooled);
+                con = null;
+            }
+            notifyAll();
+        }
+
+        if (con != null) {
+            closeQuietly(con);
+        }
+    }
+
+    /**
+     * Check whether a connection is still usable by running a trivial statement on it.
+     */
+    private boolean validate(Connection con) {
+        try {
+            Statement stmt = con.createStatement();
+            stmt.execute("SELECT 1");
+            stmt.close();
+            return true;
+        } catch (SQLException sx) {
+            return false;
+        }
+    }
+
+    /**
+     * Evict idle connections that have timed out and report connections that have
+     * been checked out for longer than the leak threshold. This is piggybacked on
+     * getConnection() and runs at most every few seconds.
+     */
+    private void maintain(long now) {
+        if (now - lastMaintenance < 5000) {
+            return;
+        }
+        lastMaintenance = now;
+        if (idleTimeout > 0) {
+            closeIdleConnections(idleTimeout);
+        }
+        if (leakThreshold > 0) {
+            for (Iterator it = active.iterator(); it.hasNext(); ) {
+                PooledConnection pooled = (PooledConnection) it.next();
+                if (!pooled.leakReported && pooled.checkoutTime > 0 &&
+                        now - pooled.checkoutTime > leakThreshold) {
+                    pooled.leakReported = true;
+                    leaks += 1;
+                    log.warn("Connection to " + name + " has been checked out for " +
+                            (now - pooled.checkoutTime) + " millis", pooled.checkoutTrace);
+                }
+            }
+        }
+    }
+
+    /**
+     * Close idle connections that have not been used for the given number of
+     * milliseconds. Must be called while holding the pool monitor.
+     */
+    private void closeIdleConnections(long minIdleTime) {
+        long now = System.currentTimeMillis();
+        ArrayList expired = new ArrayList();
+        for (Iterator it = idle.iterator(); it.hasNext(); ) {
+            PooledConnection pooled = (PooledConnection) it.next();
+            if (now - pooled.lastUsed >= minIdleTime) {
+                it.remove();
+                expired.add(pooled.connection);
+            }
+        }
+        for (int i = 0; i < expired.size(); i++) {
+            closeQuietly((Connection) expired.get(i));
+        }
+    }
+
+    /**
+     * Close all idle connections. Active connections are closed when they are returned.
+     */
+    public synchronized void shutdown() {
+        generation += 1;
+        closeIdleConnections(0);
+    }
+
+    /**
+     * Discard the prepared statements cached by all connections of this pool.
+     * Statements are closed the next time their connection is used.
+     */
+    public void clearStatementCache() {
+        statementGeneration += 1;
+    }
+
+    private void recordWait(long millis) {
+        waits += 1;
+        totalWaitTime += millis;
+        maxWaitTime = Math.max(maxWaitTime, millis);
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (Exception ignore) {
+            // nothing to do
+        }
+    }
+
+    private static int getInt(Properties props, String key, int defaultValue) {
+        // keys are expected in lower case
+        String value = props == null ? null : props.getProperty(key.toLowerCase());
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException nfx) {
+                log.error("Invalid value for pool." + key + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the idle time in millis after which a connection is tested before it is used
+     */
+    public synchronized long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * @return the number of connections currently checked out
+     */
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return the number of idle connections in the pool
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return the maximum number of connections this pool will open
+     */
+    public synchronized int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * @return the total number of connections handed out by this pool
+     */
+    public synchronized long getCheckoutCount() {
+        return checkouts;
+    }
+
+    /**
+     * @return the number of physical connections created by this pool
+     */
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * @return the number of times a thread had to wait for a connection
+     */
+    public synchronized long getWaitCount() {
+        return waits;
+    }
+
+    /**
+     * @return the accumulated time threads spent waiting for a connection in millis
+     */
+    public synchronized long getTotalWaitTime() {
+        return totalWaitTime;
+    }
+
+    /**
+     * @return the longest time a thread spent waiting for a connection in millis
+     */
+    public synchronized long getMaxWaitTime() {
+        return maxWaitTime;
+    }
+
+    /**
+     * @return the number of connections reported as potentially leaked
+     */
+    public synchronized long getLeakCount() {
+        return leaks;
+    }
+
+    public synchronized String toString() {
+        return "ConnectionPool[" + name + ", active: " + active.size() +
+                ", idle: " + idle.size() + ", waits: " + waits +
+                ", wait time: " + totalWaitTime + "]";
+    }
+
+    /**
+     * A physical connection managed by the pool
+     */
+    class PooledConnection {
+        Connection connection;
+        final int generation;
+        long lastUsed;
+        long checkoutTime;
+        Exception checkoutTrace;
+        boolean leakReported;
+
+        // cached prepared statements by SQL text, least recently used first.
+        // only accessed by the thread that has checked out the connection.
+        final LinkedHashMap statements = new LinkedHashMap(16, 0.75f, true);
+        int statementCacheSize;
+        int statementGeneration = ConnectionPool.this.statementGeneration;
+
+        PooledConnection(int generation) {
+            this.generation = generation;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        Connection createHandle() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[] {Connection.class}, new Handle(this));
+        }
+
+        /**
+         * Get a prepared statement for the given SQL, from the cache if possible.
+         */
+        PreparedStatement prepareStatement(String sql, Connection handle)
+                throws SQLException {
+            if (statementGeneration != ConnectionPool.this.statementGeneration) {
+                statementGeneration = ConnectionPool.this.statementGeneration;
+                closeStatements();
+            }
+            if (statementCacheSize <= 0) {
+                return connection.prepareStatement(sql);
+            }
+            CachedStatement cached = (CachedStatement) statements.get(sql);
+            if (cached == null) {
+                cached = new CachedStatement(sql, connection.prepareStatement(sql));
+                statements.put(sql, cached);
+                if (statements.size() > statementCacheSize) {
+                    evictStatement();
+                }
+            } else if (cached.owner != null) {
+                // the cached statement for this SQL is in use, don't share it
+                return connection.prepareStatement(sql);
+            }
+            StatementHandle owner = new StatementHandle(cached, handle);
+            cached.owner = owner;
+            return (PreparedStatement) Proxy.newProxyInstance(
+                    PreparedStatement.class.getClassLoader(),
+                    new Class[] {PreparedStatement.class}, owner);
+        }
+
+        private void evictStatement() {
+            Iterator it = statements.values().iterator();
+            CachedStatement eldest = (CachedStatement) it.next();
+            it.remove();
+            // statements in use are closed when they are returned
+            eldest.evicted = true;
+            if (eldest.owner == null) {
+                eldest.closeQuietly();
+            }
+        }
+
+        /**
+         * Invalidate handles to cached statements that were not closed by the
+         * previous user of this connection.
+         */
+        void releaseStatements() {
+            for (Iterator it = statements.values().iterator(); it.hasNext(); ) {
+                CachedStatement cached = (CachedStatement) it.next();
+                if (cached.owner != null) {
+                    cached.owner = null;
+                    cached.reset();
+                }
+            }
+        }
+
+        private void closeStatements() {
+            for (Iterator it = statements.values().iterator(); it.hasNext(); ) {
+                CachedStatement cached = (CachedStatement) it.next();
+                cached.evicted = true;
+                if (cached.owner == null) {
+                    cached.closeQuietly();
+                }
+            }
+            statements.clear();
+        }
+    }
+
+    /**
+     * A prepared statement in the statement cache of a pooled connection.
+     */
+    static class CachedStatement {
+        final String sql;
+        final PreparedStatement statement;
+        // the handle currently using this statement, or null if available
+        StatementHandle owner;
+        // set when the statement was removed from the cache while in use
+        boolean evicted;
+
+        CachedStatement(String sql, PreparedStatement statement) {
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        void reset() {
+            try {
+                statement.clearParameters();
+                statement.clearBatch();
+                statement.clearWarnings();
+            } catch (SQLException x) {
+                // the statement is no longer usable, close it when it's evicted
+                evicted = true;
+                closeQuietly();
+            }
+        }
+
+        void closeQuietly() {
+            try {
+                statement.close();
+            } catch (Exception ignore) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Invocation handler for the cached prepared statements handed out to callers.
+     */
+    static class StatementHandle implements InvocationHandler {
+        final CachedStatement cached;
+        final Connection connection;
+
+        StatementHandle(CachedStatement cached, Connection connection) {
+            this.cached = cached;
+            this.connection = connection;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String methodName = method.getName();
+            boolean valid = cached.owner == this;
+            if ("close".equals(methodName)) {
+                if (valid) {
+                    cached.owner = null;
+                    if (cached.evicted) {
+                        cached.closeQuietly();
+                    } else {
+                        cached.reset();
+                    }
+                }
+                return null;
+            } else if ("isClosed".equals(methodName)) {
+                return valid ? Boolean.FALSE : Boolean.TRUE;
+            } else if ("getConnection".equals(methodName)) {
+                return connection;
+            } else if ("equals".equals(methodName)) {
+                return (proxy == args[0]) ? Boolean.TRUE : Boolean.FALSE;
+            } else if ("hashCode".equals(methodName)) {
+                return new Integer(System.identityHashCode(proxy));
+            } else if ("toString".equals(methodName)) {
+                return "Cached[" + cached.sql + "]";
+            } else if (!valid) {
+                throw new SQLException("Statement has already been closed");
+            }
+            try {
+                return method.invoke(cached.statement, args);
+            } catch (InvocationTargetException x) {
+                throw x.getTargetException();
+            }
+        }
+    }
+
+    /**
+     * Invocation handler for the connection proxies handed out to callers.
+     */
+    class Handle implements InvocationHandler {
+        PooledConnection pooled;
+
+        Handle(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+                throws Throwable {
+            String methodName = method.getName();
+            PooledConnection p;
+            synchronized (this) {
+                p = pooled;
+                if ("close".equals(methodName) && method.getParameterTypes().length == 0) {
+                    pooled = null;
+                }
+            }
+            if ("close".equals(methodName) && method.getParameterTypes().length == 0) {
+                if (p != null) {
+                    release(p);
+                }
+                return null;
+            } else if ("isClosed".equals(methodName)) {
+                return (p == null) ? Boolean.TRUE : method.invoke(p.connection, args);
+            } else if ("equals".equals(methodName)) {
+                return (proxy == args[0]) ? Boolean.TRUE : Boolean.FALSE;
+            } else if ("hashCode".equals(methodName)) {
+                return new Integer(System.identityHashCode(proxy));
+            } else if ("toString".equals(methodName)) {
+                return "Pooled[" + (p == null ? "closed" : String.valueOf(p.connection)) + "]";
+            } else if (p == null) {
+                throw new SQLException("Connection has already been returned to the pool");
+            } else if ("prepareStatement".equals(methodName) &&
+                    method.getParameterTypes().length == 1) {
+                return p.prepareStatement((String) args[0], (Connection) proxy);
+            }
+            try {
+                return method.invoke(p.connection, args);
+            } catch (InvocationTargetException x) {
+                throw x.getTargetException();
+            }
+        }
+    }
+}
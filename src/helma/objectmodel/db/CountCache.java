@@ -0,0 +1,320 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache for the sizes of relational collections, keyed by the data
+ * source and the rendered count query. Like the QueryCache, each count
+ * remembers the data and type change serial numbers of the collection at the
+ * time it was counted and is only used as long as they are unchanged.
+ *
+ * Counts of collections that are only restricted by the values of their
+ * partition columns are maintained incrementally: when a transaction inserts
+ * or deletes objects in such a collection's partition, the count is adjusted
+ * and moved to the new serial number instead of being counted again. This is
+ * only done if no other transaction writes at the same time, otherwise the
+ * counts of the affected partitions are simply invalidated.
+ *
+ * Enabled by setting the countCacheSize app property to the number of counts
+ * to cache.
+ */
+final class CountCache {
+
+    private int capacity;
+
+    // entries by cache key, in access order
+    private final LinkedHashMap entries;
+    // sets of incrementally maintained entries, by storage type and partition key
+    private final HashMap partitions = new HashMap();
+
+    // number of transactions currently writing their changes
+    private int writers = 0;
+    // incremented each time a transaction starts writing
+    private long writeSerial = 0;
+    // true if transactions have been writing at the same time
+    private boolean overlapping = false;
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+    private long updates = 0;
+
+    /**
+     * Create a new count cache.
+     *
+     * @param size the number of counts to cache
+     */
+    CountCache(int size) {
+        this.capacity = size;
+        this.entries = new LinkedHashMap(Math.min(size, 1000), 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() > capacity) {
+                    unindex((CachedCount) eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Set the number of counts to cache.
+     */
+    synchronized void setCapacity(int size) {
+        capacity = size;
+        while (entries.size() > capacity) {
+            Iterator it = entries.values().iterator();
+            unindex((CachedCount) it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Get the key for the index of incrementally maintained counts.
+     *
+     * @param storage the storage mapping of the counted objects
+     * @param partitionKey the partition key of the collection
+     */
+    static String getPartitionIndexKey(DbMapping storage, String partitionKey) {
+        return storage.getTypeName() + '\u0000' + partitionKey;
+    }
+
+    /**
+     * Get the serial number to pass to put() for a count that is about to
+     * be run. This must be called before the serial numbers of the collection
+     * are read.
+     *
+     * @return the write serial number, or -1 if the count can't be cached
+     *         because a transaction is writing
+     */
+    synchronized long beginCount() {
+        return writers > 0 ? -1 : writeSerial;
+    }
+
+    /**
+     * Get a cached count if it is still valid.
+     *
+     * @param key the key built by QueryCache.getKey()
+     * @param dataChange the current data change serial number of the collection
+     * @param typeChange the current type change serial number of the counted mapping
+     * @return the count, or -1
+     */
+    synchronized int get(String key, long dataChange, long typeChange) {
+        CachedCount entry = (CachedCount) entries.get(key);
+        if (entry != null && entry.dataChange == dataChange &&
+                entry.typeChange == typeChange) {
+            hits++;
+            return entry.count;
+        }
+        misses++;
+        return -1;
+    }
+
+    /**
+     * Cache a count. The count is discarded if a transaction has started
+     * writing since beginCount() was called.
+     *
+     * @param key the key built by QueryCache.getKey()
+     * @param indexKey the key built by getPartitionIndexKey() if the count can
+     *                 be maintained incrementally, or null
+     * @param dataChange the data change serial number read before counting
+     * @param typeChange the type change serial number read before counting
+     * @param count the count
+     * @param serial the serial number returned by beginCount()
+     */
+    synchronized void put(String key, String indexKey, long dataChange,
+                          long typeChange, int count, long serial) {
+        if (serial < 0 || serial != writeSerial || writers > 0) {
+            return;
+        }
+        CachedCount entry = new CachedCount(key, indexKey, dataChange, typeChange, count);
+        CachedCount previous = (CachedCount) entries.put(key, entry);
+        if (previous != null) {
+            unindex(previous);
+        }
+        if (indexKey != null) {
+            Set set = (Set) partitions.get(indexKey);
+            if (set == null) {
+                set = new HashSet();
+                partitions.put(indexKey, set);
+            }
+            set.add(entry);
+        }
+    }
+
+    /**
+     * Called by a transaction before it writes its changes.
+     */
+    synchronized void beginWrite() {
+        if (writers++ > 0) {
+            overlapping = true;
+        }
+        writeSerial++;
+    }
+
+    /**
+     * Record the partitions and count deltas of a transaction's changes
+     * before the changes are committed.
+     *
+     * @param dataChanges map of storage DbMappings to PartitionChanges
+     * @return the list of pending updates to pass to endWrite()
+     */
+    List prepareUpdates(Map dataChanges) {
+        List list = new ArrayList();
+        for (Iterator it = dataChanges.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            DbMapping storage = (DbMapping) entry.getKey();
+            DbMapping.PartitionChange change = (DbMapping.PartitionChange) entry.getValue();
+            if (change.keys == null) {
+                // partitions are unknown, counts are invalidated
+                continue;
+            }
+            for (Iterator k = change.keys.iterator(); k.hasNext(); ) {
+                String partitionKey = (String) k.next();
+                list.add(new Update(storage, partitionKey, change,
+                        change.getDelta(partitionKey)));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Called by a transaction after it has written its changes and assigned
+     * new serial numbers to the affected partitions. Applies the count deltas
+     * to the counts that were valid right before the change, unless other
+     * transactions have been writing at the same time.
+     *
+     * @param pending the list returned by prepareUpdates(), or null if the
+     *                transaction failed
+     */
+    void endWrite(List pending) {
+        // read the new serial numbers outside our lock
+        long[] stamps = null;
+        if (pending != null) {
+            stamps = new long[pending.size()];
+            for (int i = 0; i < stamps.length; i++) {
+                Update update = (Update) pending.get(i);
+                stamps[i] = update.storage.getPartitionStamp(update.partitionKey);
+            }
+        }
+
+        synchronized (this) {
+            if (pending == null) {
+                // changes may have been written without incrementing serial numbers
+                clear();
+            } else if (!overlapping) {
+                for (int i = 0; i < stamps.length; i++) {
+                    Update update = (Update) pending.get(i);
+                    long serial = update.change.serial;
+                    long previous = update.change.getPreviousStamp(update.partitionKey);
+                    if (serial == 0 || previous < 0 || stamps[i] != serial) {
+                        // partition changed by someone else as well
+                        continue;
+                    }
+                    Set set = (Set) partitions.get(getPartitionIndexKey(
+                            update.storage, update.partitionKey));
+                    if (set == null) {
+                        continue;
+                    }
+                    for (Iterator it = set.iterator(); it.hasNext(); ) {
+                        CachedCount entry = (CachedCount) it.next();
+                        if (entry.dataChange == previous) {
+                            entry.dataChange = stamps[i];
+                            entry.count = Math.max(0, entry.count + update.delta);
+                            updates++;
+                        }
+                    }
+                }
+            }
+            if (--writers == 0) {
+                overlapping = false;
+            }
+        }
+    }
+
+    /**
+     * Discard all cached counts.
+     */
+    synchronized void clear() {
+        entries.clear();
+        partitions.clear();
+    }
+
+    // remove an entry from the partition index
+    private void unindex(CachedCount entry) {
+        if (entry.indexKey != null) {
+            Set set = (Set) partitions.get(entry.indexKey);
+            if (set != null) {
+                set.remove(entry);
+                if (set.isEmpty()) {
+                    partitions.remove(entry.indexKey);
+                }
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        return "CountCache[size: " + entries.size() + ", hits: " + hits +
+                ", misses: " + misses + ", updates: " + updates + "]";
+    }
+
+    /**
+     * A cached count.
+     */
+    static final class CachedCount {
+        final String key;
+        final String indexKey;
+        long dataChange;
+        final long typeChange;
+        int count;
+
+        CachedCount(String key, String indexKey, long dataChange, long typeChange, int count) {
+            this.key = key;
+            this.indexKey = indexKey;
+            this.dataChange = dataChange;
+            this.typeChange = typeChange;
+            this.count = count;
+        }
+    }
+
+    /**
+     * The count delta of a partition changed by a transaction.
+     */
+    static final class Update {
+        final DbMapping storage;
+        final String partitionKey;
+        final DbMapping.PartitionChange change;
+        final int delta;
+
+        Update(DbMapping storage, String partitionKey, DbMapping.PartitionChange change,
+               int delta) {
+            this.storage = storage;
+            this.partitionKey = partitionKey;
+            this.change = change;
+            this.delta = delta;
+        }
+    }
+}
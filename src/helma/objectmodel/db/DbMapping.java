@@ -53,6 +53,9 @@ public final class DbMapping {
     // list of properties to try for parent
     private ParentInfo[] parentInfo;
 
+    // properties the children of embedded objects are indexed by
+    private String[] childIndexes;
+
     // Relations describing subnodes and properties.
     protected Relation subRelation;
     protected Relation propRelation;
@@ -72,6 +75,12 @@ public final class DbMapping {
     // list of columns to fetch from db
     private DbColumn[] columns = null;
 
+    // columns to fetch with each object, without lazy loaded columns
+    private DbColumn[] selectColumns = null;
+
+    // property slots for the columns, used by relational nodes
+    private CompactPropertyMap.SlotTable slotTable = null;
+
     // Map of db columns by name
     private HashMap columnMap;
 
@@ -106,6 +115,12 @@ public final class DbMapping {
     // descriptor for key generation method
     private String idgen;
 
+    // number of ids reserved at once by block id generation, 0 if not set
+    private int idgenBlockSize;
+
+    // counter table used by the [table] id generation method
+    private String idgenTable;
+
     // remember last key generated for this table
     private long lastID;
 
@@ -114,8 +129,42 @@ public final class DbMapping {
     // the underlying properties file is non-existent
     long lastTypeChange = -1;
 
-    // timestamp of last modification of an object of this type
-    long lastDataChange = 0;
+    // serial number of last modification of an object of this type
+    volatile long lastDataChange = 0;
+
+    // serial number of the last data change that could not be attributed
+    // to collection partitions
+    volatile long lastUnpartitionedChange = 0;
+
+    // serial numbers of the last change to each collection partition, keyed by
+    // partition key. A partition is the set of objects matching the constraint
+    // values of a collection. All serial numbers are taken from one global
+    // sequence, so they never repeat even when a partition is forgotten.
+    final Map partitionChanges = new LinkedHashMap(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry eldest) {
+            if (size() > MAX_PARTITIONS) {
+                // forgotten partitions fall back to the latest forgotten serial
+                long[] stamp = (long[]) eldest.getValue();
+                lastEvictedChange = Math.max(lastEvictedChange, stamp[0]);
+                return true;
+            }
+            return false;
+        }
+    };
+
+    // highest serial number of the partitions dropped from partitionChanges
+    private long lastEvictedChange = 0;
+
+    // global sequence for data change serial numbers
+    private static long dataChangeSerial = 0;
+
+    // the partition column signatures used by collections of this type
+    private volatile Map partitionSignatures = new HashMap();
+    // incremented whenever a new partition signature is registered
+    private volatile int partitionVersion = 0;
+
+    // max number of partition change counters kept per mapping
+    static final int MAX_PARTITIONS = 10000;
 
     // Set of mappings that depend on us and should be forwarded last data change events
     HashSet dependentMappings = new HashSet();
@@ -221,6 +270,14 @@ public final class DbMapping {
         // read in properties
         readBasicProperties();
         idgen = props.getProperty("_idgen");
+        idgenTable = props.getProperty("_idgen.table");
+        String blockSize = props.getProperty("_idgen.blocksize");
+        try {
+            idgenBlockSize = blockSize == null ? 0 : Integer.parseInt(blockSize.trim());
+        } catch (NumberFormatException x) {
+            app.logError("Invalid _idgen.blocksize for prototype " + typename + ": " + blockSize);
+            idgenBlockSize = 0;
+        }
         // if id field is null, we assume "ID" as default. We don't set it
         // however, so that if null we check the parent prototype first.
         idField = props.getProperty("_id");
@@ -240,6 +297,19 @@ public final class DbMapping {
             parentInfo = null;
         }
 
+        String indexSetting = props.getProperty("_children.index");
+        if (indexSetting != null) {
+            // comma-separated list of child properties to index
+            StringTokenizer st = new StringTokenizer(indexSetting, ",;");
+            childIndexes = new String[st.countTokens()];
+
+            for (int i = 0; i < childIndexes.length; i++) {
+                childIndexes[i] = st.nextToken().trim();
+            }
+        } else {
+            childIndexes = null;
+        }
+
         lastTypeChange = props instanceof ResourceProperties ?
                 ((ResourceProperties) props).lastModified() : System.currentTimeMillis();
 
@@ -299,8 +369,15 @@ public final class DbMapping {
 
         // null the cached columns and select string
         columns = null;
+        selectColumns = null;
+        slotTable = null;
         columnMap.clear();
         selectString = insertString = updateString = null;
+        // discard prepared statements that were created for the old mapping
+        DbSource src = getDbSource();
+        if (src != null) {
+            src.clearStatementCache();
+        }
 
         HashMap p2d = new HashMap();
         HashMap d2p = new HashMap();
@@ -491,6 +568,16 @@ public final class DbMapping {
         return dbSource.getConnection();
     }
 
+    /**
+     * Get a JDBC connection for read-only statements of this DbMapping, which
+     * may be a connection to a read replica of the data source.
+     */
+    public Connection getReadConnection() throws ClassNotFoundException, SQLException {
+        DbSource source = getDbSource();
+        // let getConnection() report a missing data source
+        return source == null ? getConnection() : source.getReadConnection();
+    }
+
     /**
      * Get the DbSource object for this DbMapping. The DbSource describes a JDBC
      * data source including URL, JDBC driver, username and password.
@@ -714,6 +801,34 @@ public final class DbMapping {
         return parentInfo;
     }
 
+    /**
+     * @return the names of the properties the children of embedded objects
+     * of this type are indexed by, as set by _children.index, or null
+     */
+    public synchronized String[] getChildIndexes() {
+        if ((childIndexes == null) && (parentMapping != null)) {
+            return parentMapping.getChildIndexes();
+        }
+
+        return childIndexes;
+    }
+
+    /**
+     * Check if the children of embedded objects of this type are indexed
+     * by the given property.
+     */
+    public boolean isChildIndex(String propname) {
+        String[] indexes = getChildIndexes();
+        if (indexes != null) {
+            for (int i = 0; i < indexes.length; i++) {
+                if (indexes[i].equals(propname)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      *
      *
@@ -901,6 +1016,41 @@ public final class DbMapping {
         return idgen;
     }
 
+    /**
+     * Get the number of ids reserved at once when generating ids from a
+     * sequence or a counter table, as set by _idgen.blocksize. The [table]
+     * method defaults to blocks of 100 ids, sequences to 1, i.e. no blocks.
+     * A sequence used with a block size must be defined with an increment of
+     * the block size, e.g. INCREMENT BY 100, since each value it returns is
+     * used as the first id of a block. The block size must not be changed
+     * without changing the increment.
+     *
+     * @return the id block size
+     */
+    public int getIDgenBlockSize() {
+        if ((idgenBlockSize <= 0) && (parentMapping != null) && (idgen == null)) {
+            return parentMapping.getIDgenBlockSize();
+        }
+        if (idgenBlockSize > 0) {
+            return idgenBlockSize;
+        }
+        return "[table]".equalsIgnoreCase(getIDgen()) ? 100 : 1;
+    }
+
+    /**
+     * Get the name of the counter table used by the [table] id generation
+     * method, as set by _idgen.table. Defaults to HELMA_IDGEN.
+     *
+     * @return the counter table name
+     */
+    public String getIDgenTable() {
+        if ((idgenTable == null) && (parentMapping != null)) {
+            return parentMapping.getIDgenTable();
+        }
+
+        return idgenTable == null ? "HELMA_IDGEN" : idgenTable;
+    }
+
     /**
      *
      *
@@ -972,6 +1122,70 @@ public final class DbMapping {
         return columns;
     }
 
+    /**
+     * Get the assignment of property slots to the columns returned by getColumns(),
+     * used to store the properties of nodes loaded from the database.
+     */
+    synchronized CompactPropertyMap.SlotTable getSlotTable()
+                                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getColumns();
+        DbColumn[] selCols = getSelectColumns();
+        if (slotTable == null || slotTable.columns != cols || slotTable.selectColumns != selCols) {
+            slotTable = new CompactPropertyMap.SlotTable(cols, selCols);
+        }
+        return slotTable;
+    }
+
+    /**
+     * Return the columns fetched by the select statement returned by getSelect(),
+     * i.e. all columns except those mapped to properties with loadmode = lazy.
+     * If there are no lazy columns, this is the array returned by getColumns().
+     */
+    public synchronized DbColumn[] getSelectColumns()
+                                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getColumns();
+        if (selectColumns == null) {
+            ArrayList list = new ArrayList(cols.length);
+            for (int i = 0; i < cols.length; i++) {
+                if (!isLazyColumn(cols[i])) {
+                    list.add(cols[i]);
+                }
+            }
+            selectColumns = list.size() == cols.length ?
+                    cols : (DbColumn[]) list.toArray(new DbColumn[list.size()]);
+        }
+        return selectColumns;
+    }
+
+    /**
+     * Check if a column is only loaded when its property is accessed.
+     * Id, name and prototype columns are always loaded.
+     */
+    boolean isLazyColumn(DbColumn col) {
+        Relation rel = col.getRelation();
+        return rel != null && rel.isLazyColumn() && !col.isIdField() &&
+               !col.isNameField() && !col.isPrototypeField();
+    }
+
+    /**
+     * Append the columns to select for objects of this type to a query.
+     */
+    private void appendSelectColumns(StringBuffer s, String alias)
+                                       throws ClassNotFoundException, SQLException {
+        DbColumn[] cols = getSelectColumns();
+        if (cols == getColumns()) {
+            // no lazy columns
+            s.append(alias).append(".*");
+            return;
+        }
+        for (int i = 0; i < cols.length; i++) {
+            if (i > 0) {
+                s.append(", ");
+            }
+            s.append(alias).append(".").append(cols[i].getName());
+        }
+    }
+
     /**
      *  Return the array of relations that are fetched with objects of this type.
      */
@@ -1016,7 +1230,8 @@ public final class DbMapping {
      *            Is null if selecting by primary key.
      * @return the StringBuffer containing the first part of the select query
      */
-    public StringBuffer getSelect(Relation rel) {
+    public StringBuffer getSelect(Relation rel)
+                                       throws ClassNotFoundException, SQLException {
         // assign to local variable first so we are thread safe
         // (selectString may be reset by other threads)
         String sel = selectString;
@@ -1034,18 +1249,15 @@ public final class DbMapping {
 
         String table = getTableName();
 
-        // all columns from the main table
-        s.append(table);
-        s.append(".*");
+        // all columns from the main table, except lazy ones
+        appendSelectColumns(s, table);
 
         for (int i = 0; i < joins.length; i++) {
             if (!joins[i].otherType.isRelational()) {
                 continue;
             }
             s.append(", ");
-            s.append(Relation.JOIN_PREFIX);
-            s.append(joins[i].propName);
-            s.append(".*");
+            joins[i].otherType.appendSelectColumns(s, Relation.JOIN_PREFIX + joins[i].propName);
         }
 
         s.append(" FROM ");
@@ -1291,16 +1503,193 @@ public final class DbMapping {
         }
     }
 
+    /**
+     * Get a serial number for the last data change that may affect the collection
+     * defined by the given relation and home node. If the relation's constraints
+     * allow it, this only considers changes to objects within the collection's
+     * partition, otherwise it is equivalent to getLastDataChange().
+     *
+     * @param rel the collection relation, with this mapping as other type
+     * @param home the node holding the collection
+     * @return a serial number that increases with each relevant data change
+     */
+    public long getLastDataChange(Relation rel, Node home) {
+        DbMapping storage = getStorageMapping();
+        String[] columns = isRelational() ? rel.getPartitionColumns() : null;
+        String key = columns == null ? null : rel.getPartitionKey(home);
+
+        if (key == null) {
+            return storage.lastDataChange;
+        }
+
+        storage.registerPartitionSignature(columns);
+
+        return storage.getPartitionStamp(key);
+    }
+
+    /**
+     * Get the serial number for the last data change within a collection
+     * partition of this mapping's storage.
+     *
+     * @param key the partition key
+     * @return a serial number that increases with each change to the partition
+     */
+    long getPartitionStamp(String key) {
+        DbMapping storage = getStorageMapping();
+        synchronized (storage.partitionChanges) {
+            long[] stamp = (long[]) storage.partitionChanges.get(key);
+            return Math.max(storage.lastUnpartitionedChange,
+                            stamp == null ? storage.lastEvictedChange : stamp[0]);
+        }
+    }
+
+    /**
+     * Get the next serial number for a data change. Serial numbers are unique
+     * across all mappings.
+     */
+    private static synchronized long nextDataChangeSerial() {
+        return ++dataChangeSerial;
+    }
+
+    /**
+     * Register the columns that partition the collections of some relation.
+     */
+    private void registerPartitionSignature(String[] columns) {
+        String signature = Relation.getPartitionSignature(columns);
+        if (!partitionSignatures.containsKey(signature)) {
+            synchronized (this) {
+                if (!partitionSignatures.containsKey(signature)) {
+                    // copy on write, the map is read without synchronization
+                    Map signatures = new HashMap(partitionSignatures);
+                    signatures.put(signature, columns);
+                    partitionSignatures = signatures;
+                    partitionVersion += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collect the collection partitions a pending insert, update or delete of the
+     * given node may affect. This must be called before the node is written, as the
+     * dirty flags of its properties are needed to tell whether values have changed.
+     *
+     * @param node the node
+     * @param changes map of storage DbMappings to PartitionChanges to add to
+     */
+    public void collectDataChange(Node node, Map changes) {
+        if (!isRelational()) {
+            return;
+        }
+        DbMapping storage = getStorageMapping();
+        PartitionChange change = (PartitionChange) changes.get(storage);
+
+        if (change == null) {
+            change = new PartitionChange(storage.partitionVersion);
+            changes.put(storage, change);
+        }
+
+        if (change.keys != null) {
+            Set keys = new HashSet();
+            if (!storage.collectPartitionKeys(node, this, keys)) {
+                // partitions can't be determined, fall back to invalidating all collections
+                change.keys = null;
+                return;
+            }
+            change.keys.addAll(keys);
+            // record how the number of objects in each partition changes
+            int state = node.getState();
+            if (state == Node.NEW || state == Node.DELETED) {
+                for (Iterator it = keys.iterator(); it.hasNext(); ) {
+                    change.addDelta(it.next(), state == Node.NEW ? 1 : -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the partition keys for the given node to the set for each registered
+     * partition signature.
+     *
+     * @return false if the keys can't be determined because a partition column
+     *         isn't mapped or its value was changed since the node was loaded
+     */
+    private boolean collectPartitionKeys(Node node, DbMapping nodeMapping, Set keys) {
+        boolean loaded = node.getState() != Node.NEW;
+
+        for (Iterator it = partitionSignatures.values().iterator(); it.hasNext(); ) {
+            String[] columns = (String[]) it.next();
+            String[] values = new String[columns.length];
+
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].equalsIgnoreCase(nodeMapping.getIDField())) {
+                    values[i] = node.getID();
+                    continue;
+                }
+                String propName = nodeMapping.columnNameToProperty(columns[i]);
+                if (propName == null) {
+                    return false;
+                }
+                Property prop = node.getProperty(propName);
+                if (prop != null && prop.dirty && loaded) {
+                    // we don't know the previous value
+                    return false;
+                }
+                values[i] = prop == null ? null : prop.getStringValue();
+            }
+
+            keys.add(Relation.getPartitionKey(columns, values));
+        }
+
+        return true;
+    }
+
     /**
      * Set the last time something changed in the data, propagating the event
      * to mappings that depend on us through an additionalTables switch.
      */
     public void setLastDataChange() {
+        setLastDataChange(null);
+    }
+
+    /**
+     * Set the last time something changed in the data, propagating the event
+     * to mappings that depend on us through an additionalTables switch.
+     * Only the collection partitions recorded in the changes map for our
+     * storage mapping are marked as changed, if available.
+     *
+     * @param changes map of storage DbMappings to PartitionChanges, may be null
+     */
+    public void setLastDataChange(Map changes) {
         // forward data change timestamp to storage-compatible parent mapping
         if (inheritsStorage()) {
-            parentMapping.setLastDataChange();
+            parentMapping.setLastDataChange(changes);
         } else {
-            lastDataChange += 1;
+            PartitionChange change = changes == null ?
+                    null : (PartitionChange) changes.get(this);
+            synchronized (partitionChanges) {
+                long serial = nextDataChangeSerial();
+                lastDataChange = serial;
+                if (change == null || change.keys == null ||
+                        change.version != partitionVersion) {
+                    lastUnpartitionedChange = serial;
+                } else {
+                    for (Iterator it = change.keys.iterator(); it.hasNext(); ) {
+                        String key = (String) it.next();
+                        // remember the partition's serial before this change
+                        change.setPreviousStamp(key, getPartitionStamp(key));
+                        long[] stamp = (long[]) partitionChanges.get(key);
+                        if (stamp == null) {
+                            partitionChanges.put(key, new long[] {serial});
+                        } else {
+                            stamp[0] = serial;
+                        }
+                    }
+                }
+                if (change != null) {
+                    change.serial = serial;
+                }
+            }
             // propagate data change timestamp to mappings that depend on us
             if (!dependentMappings.isEmpty()) {
                 Iterator it = dependentMappings.iterator();
@@ -1322,7 +1711,67 @@ public final class DbMapping {
         if (inheritsStorage()) {
             parentMapping.setIndirectDataChange();
         } else {
-            lastDataChange += 1;
+            synchronized (partitionChanges) {
+                long serial = nextDataChangeSerial();
+                lastDataChange = serial;
+                lastUnpartitionedChange = serial;
+            }
+        }
+    }
+
+    /**
+     * Get the mapping that defines the storage of this mapping, i.e. the
+     * top-most parent mapping using the same table.
+     */
+    DbMapping getStorageMapping() {
+        DbMapping dbm = this;
+        while (dbm.inheritsStorage()) {
+            dbm = dbm.parentMapping;
+        }
+        return dbm;
+    }
+
+    /**
+     * The collection partitions affected by the changes to a storage mapping
+     * within one transaction.
+     */
+    static class PartitionChange {
+        // partition signature version at the time the first change was collected
+        final int version;
+        // partition keys to mark as changed, or null if all collections are affected
+        Set keys = new HashSet();
+        // net number of objects added to each partition, by partition key
+        final Map deltas = new HashMap();
+        // serial numbers of the partitions before the change, by partition key
+        final Map previousStamps = new HashMap();
+        // serial number assigned to the change when it was committed, 0 before
+        long serial = 0;
+
+        PartitionChange(int version) {
+            this.version = version;
+        }
+
+        void setPreviousStamp(Object key, long stamp) {
+            previousStamps.put(key, new long[] {stamp});
+        }
+
+        long getPreviousStamp(Object key) {
+            long[] value = (long[]) previousStamps.get(key);
+            return value == null ? -1 : value[0];
+        }
+
+        void addDelta(Object key, int delta) {
+            int[] value = (int[]) deltas.get(key);
+            if (value == null) {
+                deltas.put(key, new int[] {delta});
+            } else {
+                value[0] += delta;
+            }
+        }
+
+        int getDelta(Object key) {
+            int[] value = (int[]) deltas.get(key);
+            return value == null ? 0 : value[0];
         }
     }
 
@@ -1556,10 +2005,24 @@ public final class DbMapping {
      */
     protected void appendCondition(StringBuffer q, String column, String val)
             throws SQLException, ClassNotFoundException {
+        appendCondition(q, column, "=", val);
+    }
+
+    /**
+     * Append a sql-condition comparing the given column to the given
+     * value using the given operator to the given StringBuffer.
+     * @param q the StringBuffer to append to
+     * @param column the column to compare
+     * @param op the comparison operator, e.g. "=" or "&gt;"
+     * @param val the value
+     * @throws SQLException
+     */
+    protected void appendCondition(StringBuffer q, String column, String op, String val)
+            throws SQLException, ClassNotFoundException {
         if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
             q.append(getTableName()).append(".");
         }
-        q.append(column).append(" = ");
+        q.append(column).append(" ").append(op).append(" ");
         
         if (needsQuotes(column)) {
             q.append("'").append(escapeString(val)).append("'");
@@ -1568,6 +2031,31 @@ public final class DbMapping {
         }
     }
 
+    /**
+     * Append a parameterized sql-condition for the given column to the given
+     * StringBuffer. The condition is rendered as a simple comparison if count
+     * is 1, or as an IN list with count placeholders otherwise.
+     * @param q the StringBuffer to append to
+     * @param column the column which must match the parameter values
+     * @param count the number of parameters
+     */
+    protected void appendParameterCondition(StringBuffer q, String column, int count) {
+        if (column.indexOf('(') == -1 && column.indexOf('.') == -1) {
+            q.append(getTableName()).append(".");
+        }
+        if (count == 1) {
+            q.append(column).append(" = ?");
+            return;
+        }
+        q.append(column).append(" in (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                q.append(", ");
+            q.append("?");
+        }
+        q.append(")");
+    }
+
     /**
      * a utility method to escape single quotes used for inserting
      * string-values into relational databases.
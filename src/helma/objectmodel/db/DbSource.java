@@ -22,9 +22,13 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Hashtable;
+import java.util.WeakHashMap;
 
 /**
  *  This class describes a releational data source (URL, driver, user and password).
@@ -42,7 +46,17 @@ public class DbSource {
     // compute hashcode statically because it's expensive and we need it often
     private int hashcode;
     // thread local connection holder for non-transactor threads
-    private ThreadLocal connection;
+    private final ThreadLocal connection = new ThreadLocal();
+    // the thread local connections, to close them on shutdown
+    private final Map localConnections = Collections.synchronizedMap(new WeakHashMap());
+    // the pool of physical connections to this data source
+    private final ConnectionPool pool;
+    // the read replicas of this data source, if any
+    private final ReplicaSet replicas;
+    // the time any thread last wrote to the primary
+    private volatile long lastWrite = 0L;
+    // unpooled connection for reserving id blocks
+    private Connection idConnection;
 
     /**
      * Creates a new DbSource object.
@@ -55,18 +69,23 @@ public class DbSource {
              throws ClassNotFoundException {
         this.name = name;
         this.props = props;
+        this.pool = new ConnectionPool(name);
+        this.replicas = new ReplicaSet(name);
         init();
     }
 
     /**
-     * Get a JDBC connection to the db source.
+     * Get a JDBC connection to the db source. Connections for transactors are
+     * taken from the data source's connection pool and are bound to the current
+     * transactor until it releases them. Other threads get their own unpooled
+     * connection, since they never return it.
      *
      * @return a JDBC connection
      *
      * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
      * @throws SQLException if the connection couldn't be created
      */
-    public synchronized Connection getConnection()
+    public Connection getConnection()
             throws ClassNotFoundException, SQLException {
         Connection con;
         Transactor tx = Transactor.getInstance();
@@ -79,17 +98,32 @@ public class DbSource {
         boolean fileUpdated = props.lastModified() > lastRead ||
                 (defaultProps != null && defaultProps.lastModified() > lastRead);
 
-        if (con == null || con.isClosed() || fileUpdated) {
-            init();
-            con = DriverManager.getConnection(url, conProps);
+        if (fileUpdated) {
+            synchronized (this) {
+                // check again, another thread may have been faster
+                if (props.lastModified() > lastRead ||
+                        (defaultProps != null && defaultProps.lastModified() > lastRead)) {
+                    init();
+                }
+            }
+            // release the connection obtained with the previous settings
+            if (con != null) {
+                con.close();
+                con = null;
+            }
+        }
 
-            // If we wanted to use SQL transactions, we'd set autoCommit to
-            // false here and make commit/rollback invocations in Transactor methods;
-            // System.err.println ("Created new Connection to "+url);
+        if (con == null || con.isClosed()) {
+            // connections are used in auto-commit mode unless the transactor
+            // has been flushed, see Transactor.registerConnection()
             if (tx != null) {
+                con = pool.getConnection();
                 tx.registerConnection(this, con);
             } else {
-                connection.set(con);
+                con = DriverManager.getConnection(url, conProps);
+                LocalConnection local = new LocalConnection(con);
+                connection.set(local);
+                localConnections.put(local, null);
             }
         }
 
@@ -97,29 +131,202 @@ public class DbSource {
     }
 
     /**
-     * Used for connections not managed by a Helma transactor
+     * Get a JDBC connection for read-only statements. If the data source has
+     * read replicas, the current transactor hasn't modified any nodes and no
+     * thread has written to the primary within the replicas' sticky time, a
+     * connection to a healthy replica is returned. Otherwise this is the same
+     * as getConnection().
+     *
+     * @return a JDBC connection to a replica or to the primary
+     *
+     * @throws ClassNotFoundException if the JDBC driver couldn't be loaded
+     * @throws SQLException if the connection couldn't be created
+     */
+    public Connection getReadConnection()
+            throws ClassNotFoundException, SQLException {
+        Transactor tx = Transactor.getInstance();
+        if (tx == null || replicas.isEmpty() || tx.hasDirtyNodes() ||
+                System.currentTimeMillis() - lastWrite < replicas.getStickyTime()) {
+            return getConnection();
+        }
+
+        Connection con = tx.getReplicaConnection(this);
+        if (con == null || con.isClosed()) {
+            con = replicas.getConnection();
+            if (con == null) {
+                // no healthy replica available
+                return getConnection();
+            }
+            tx.registerReplicaConnection(this, con);
+        }
+        return con;
+    }
+
+    /**
+     * Record that a transactor has written to the primary, so that all threads
+     * read from the primary until the replicas have caught up.
+     */
+    public void markWritten() {
+        lastWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether the current transactor has read from a replica of this
+     * data source. Results read by such a transactor may lag behind the
+     * primary and must not be cached under the current change stamps.
+     *
+     * @return true if the current transactor holds a replica connection
+     */
+    public boolean isReadingFromReplica() {
+        Transactor tx = Transactor.getInstance();
+        return tx != null && tx.getReplicaConnection(this) != null;
+    }
+
+    /**
+     * Check whether a connection returned by getReadConnection() connects
+     * to a replica.
+     *
+     * @param con the connection
+     * @return true if the current transactor reads from a replica through it
+     */
+    public boolean isReplicaConnection(Connection con) {
+        Transactor tx = Transactor.getInstance();
+        return tx != null && con != null && con == tx.getReplicaConnection(this);
+    }
+
+    /**
+     * Get an additional connection for reading in another thread on behalf of
+     * a transactor, e.g. to run queries in parallel. The connection isn't bound
+     * to any transactor and must be closed by the caller. Since the transactor
+     * usually holds a connection already, this doesn't wait for one to become
+     * free.
+     *
+     * @param replica true to connect to a replica, false for the primary
+     * @return a pooled connection, or null if none is available right away
+     *
+     * @throws SQLException if the connection couldn't be created
+     */
+    public Connection tryGetExtraConnection(boolean replica) throws SQLException {
+        return replica ? replicas.tryGetConnection() : pool.tryGetConnection();
+    }
+
+    /**
+     * Used for connections not managed by a Helma transactor. Like pooled
+     * connections, a connection is only tested if it hasn't been used for
+     * the pool's validation interval.
      * @return a thread local tested connection, or null
      */
     private Connection getThreadLocalConnection() {
-        if (connection == null) {
-            connection = new ThreadLocal();
+        LocalConnection local = (LocalConnection) connection.get();
+        if (local == null) {
             return null;
         }
-        Connection con = (Connection) connection.get();
-        if (con != null) {
+        long now = System.currentTimeMillis();
+        if (now - local.lastUsed > pool.getValidationInterval()) {
             // test if connection is still ok
             try {
-                Statement stmt = con.createStatement();
+                Statement stmt = local.connection.createStatement();
                 stmt.execute("SELECT 1");
                 stmt.close();
             } catch (SQLException sx) {
                 try {
-                    con.close();
+                    local.connection.close();
                 } catch (SQLException ignore) {/* nothing to do */}
+                connection.set(null);
+                localConnections.remove(local);
                 return null;
             }
         }
-        return con;
+        local.lastUsed = now;
+        return local.connection;
+    }
+
+    /**
+     * Close the connections of threads without a transactor.
+     */
+    private void closeThreadLocalConnections() {
+        synchronized (localConnections) {
+            for (Iterator i = localConnections.keySet().iterator(); i.hasNext();) {
+                try {
+                    ((LocalConnection) i.next()).connection.close();
+                } catch (SQLException ignore) {
+                    // nothing to do
+                }
+            }
+            localConnections.clear();
+        }
+    }
+
+    /**
+     * Get the connection pool of this data source. The pool provides statistics
+     * about active and idle connections and the time spent waiting for them.
+     *
+     * @return the connection pool
+     */
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    /**
+     * Get the connection used to reserve blocks of ids. It isn't taken from the
+     * connection pool, so a transaction that already holds a pooled connection
+     * can't wait for itself when the pool is exhausted. The connection is shared,
+     * callers must synchronize on it while they use it.
+     *
+     * @return the id reservation connection
+     *
+     * @throws SQLException if the connection couldn't be created
+     */
+    public synchronized Connection getIDConnection() throws SQLException {
+        if (idConnection == null || idConnection.isClosed()) {
+            idConnection = DriverManager.getConnection(url, conProps);
+        }
+        return idConnection;
+    }
+
+    /**
+     * Close the id reservation connection after an error, so the next
+     * reservation opens a new one.
+     */
+    public synchronized void closeIDConnection() {
+        if (idConnection != null) {
+            try {
+                idConnection.close();
+            } catch (SQLException ignore) {
+                // connection is broken anyway
+            }
+            idConnection = null;
+        }
+    }
+
+    /**
+     * Get the read replicas of this data source.
+     *
+     * @return the replica set, which is empty if no replicas are configured
+     */
+    public ReplicaSet getReplicaSet() {
+        return replicas;
+    }
+
+    /**
+     * Discard the prepared statements cached by the pooled connections of this
+     * data source. This is called when a type mapping using this data source
+     * has changed.
+     */
+    public void clearStatementCache() {
+        pool.clearStatementCache();
+    }
+
+    /**
+     * Close all idle pooled connections and the connections of threads without
+     * a transactor. This is called when the application using this data source
+     * is stopped.
+     */
+    public void shutdown() {
+        pool.shutdown();
+        replicas.shutdown();
+        closeIDConnection();
+        closeThreadLocalConnections();
     }
 
     /**
@@ -179,7 +386,8 @@ public class DbSource {
             conProps.put("password", prop);
         }
 
-        // read any remaining extra properties to be passed to the driver
+        // read pool settings and any remaining extra properties to be passed to the driver
+        Properties poolProps = new Properties();
         for (Enumeration e = subProps.keys(); e.hasMoreElements(); ) {
             String key = (String) e.nextElement();
 
@@ -190,8 +398,20 @@ public class DbSource {
                 "password".equalsIgnoreCase(key)) {
                 continue;
             }
+            if (key.toLowerCase().startsWith("replica.")) {
+                // replica settings are read by the replica set
+                continue;
+            }
+            if (key.toLowerCase().startsWith("pool.")) {
+                poolProps.setProperty(key.substring(5).toLowerCase(), subProps.getProperty(key));
+                continue;
+            }
             conProps.setProperty(key, subProps.getProperty(key));
         }
+
+        pool.configure(url, conProps, poolProps);
+        replicas.configure(subProps, conProps, poolProps, this);
+        closeIDConnection();
     }
 
     /**
@@ -291,4 +511,17 @@ public class DbSource {
     public boolean equals(Object obj) {
         return obj instanceof DbSource && subProps.equals(((DbSource) obj).subProps);
     }
+
+    /**
+     * The unpooled connection of a thread without a transactor.
+     */
+    static final class LocalConnection {
+        final Connection connection;
+        long lastUsed;
+
+        LocalConnection(Connection connection) {
+            this.connection = connection;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
 }
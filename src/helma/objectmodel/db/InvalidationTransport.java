@@ -0,0 +1,51 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.io.IOException;
+
+/**
+ * Interface for transports used by {@link CacheInvalidator} to exchange
+ * cache invalidation messages with other Helma instances using the same
+ * databases. Implementations must deliver received messages by calling
+ * {@link CacheInvalidator#receive(byte[], int, int)}.
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Initialize the transport and start receiving messages.
+     *
+     * @param app the application, used for settings and logging
+     * @param invalidator the invalidator to pass received messages to
+     */
+    public void init(Application app, CacheInvalidator invalidator) throws IOException;
+
+    /**
+     * Send a message to all other instances.
+     *
+     * @param message the encoded message
+     */
+    public void send(byte[] message) throws IOException;
+
+    /**
+     * Stop receiving messages and release all resources.
+     */
+    public void shutdown();
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Properties;
+
+/**
+ * An invalidation transport that sends messages as UDP multicast datagrams.
+ * Multicast loopback is enabled, so several instances on the same machine
+ * receive each other's messages. Configured through the app properties
+ * cluster.multicastGroup (default 239.255.19.98), cluster.multicastPort
+ * (default 4567) and cluster.multicastTtl (default 1).
+ */
+public class MulticastTransport implements InvalidationTransport, Runnable {
+
+    // large enough for any UDP datagram
+    static final int MAX_DATAGRAM = 65507;
+
+    private Application app;
+    private CacheInvalidator invalidator;
+    private MulticastSocket socket;
+    private InetAddress group;
+    private int port;
+    private Thread receiver;
+    private volatile boolean running;
+
+    public void init(Application app, CacheInvalidator invalidator) throws IOException {
+        this.app = app;
+        this.invalidator = invalidator;
+
+        Properties props = app.getProperties();
+        group = InetAddress.getByName(props.getProperty("cluster.multicastGroup", "239.255.19.98"));
+        try {
+            port = Integer.parseInt(props.getProperty("cluster.multicastPort", "4567").trim());
+        } catch (NumberFormatException x) {
+            throw new IOException("Invalid cluster.multicastPort setting: " +
+                                  props.getProperty("cluster.multicastPort"));
+        }
+
+        socket = new MulticastSocket(port);
+        socket.setLoopbackMode(false);
+        try {
+            socket.setTimeToLive(Integer.parseInt(props.getProperty("cluster.multicastTtl", "1").trim()));
+        } catch (NumberFormatException x) {
+            app.logError("Invalid cluster.multicastTtl setting: " +
+                         props.getProperty("cluster.multicastTtl"));
+        }
+        socket.joinGroup(group);
+
+        running = true;
+        receiver = new Thread(this, app.getName() + "-invalidation-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        app.logEvent("Sending cache invalidations to " + group.getHostAddress() + ":" + port);
+    }
+
+    public void send(byte[] message) throws IOException {
+        socket.send(new DatagramPacket(message, message.length, group, port));
+    }
+
+    /**
+     * Receive datagrams until the transport is shut down.
+     */
+    public void run() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        while (running) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                invalidator.receive(packet.getData(), packet.getOffset(), packet.getLength());
+            } catch (IOException iox) {
+                if (running) {
+                    app.logError("Error receiving cache invalidation", iox);
+                }
+            } catch (RuntimeException x) {
+                app.logError("Error applying cache invalidation", x);
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        if (socket != null) {
+            try {
+                socket.leaveGroup(group);
+            } catch (IOException ignore) {
+                // closing the socket is all we need
+            }
+            // unblocks the receiver thread
+            socket.close();
+        }
+    }
+}
@@ -1040,6 +1040,172 @@ public final class Node implements INode {
         return retval;
     }
 
+    /**
+     * Get the child nodes with the given ids. Nodes that aren't cached are
+     * fetched with as few queries as possible instead of one query per node.
+     *
+     * @param subids the ids of the child nodes
+     * @return the child nodes in the order of the ids, with null for ids
+     *         that aren't contained in this node
+     */
+    public Node[] getSubnodes(String[] subids) {
+        NodeHandle[] handles = new NodeHandle[subids.length];
+        loadNodes();
+        if (subnodes == null || subnodes.size() == 0) {
+            return new Node[subids.length];
+        }
+
+        // scan the list for the requested ids, stopping once all have been found
+        HashMap wanted = new HashMap();
+        for (int i = 0; i < subids.length; i++) {
+            if (subids[i] != null) {
+                wanted.put(subids[i], null);
+            }
+        }
+        int missing = wanted.size();
+        int l = subnodes.size();
+        for (int i = 0; i < l && missing > 0; i++) {
+            NodeHandle shandle = subnodes.get(i);
+            if (shandle != null && wanted.containsKey(shandle.getID()) &&
+                    wanted.get(shandle.getID()) == null) {
+                wanted.put(shandle.getID(), shandle);
+                missing--;
+            }
+        }
+
+        for (int i = 0; i < subids.length; i++) {
+            if (subids[i] != null) {
+                handles[i] = (NodeHandle) wanted.get(subids[i]);
+            }
+        }
+        return getSubnodes(handles);
+    }
+
+    /**
+     * Get the child nodes at the given positions, fetching the nodes that
+     * aren't cached with as few queries as possible.
+     *
+     * @param indexes the subnode indexes
+     * @return the child nodes, with null for indexes out of range
+     */
+    public Node[] getSubnodesAt(int[] indexes) {
+        NodeHandle[] handles = new NodeHandle[indexes.length];
+        loadNodes();
+        int size = subnodes == null ? 0 : subnodes.size();
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] >= 0 && indexes[i] < size) {
+                handles[i] = subnodes.get(indexes[i]);
+            }
+        }
+        return getSubnodes(handles);
+    }
+
+    /**
+     * Get the nodes of the given child handles, fetching the ones that aren't
+     * cached with as few queries as possible.
+     */
+    private Node[] getSubnodes(NodeHandle[] handles) {
+        Node[] nodes = new Node[handles.length];
+        Key[] keys = new Key[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            NodeHandle nhandle = handles[i];
+            if (nhandle == null) {
+                continue;
+            } else if (nhandle.hasNode()) {
+                nodes[i] = nhandle.getNode(nmgr);
+            } else {
+                keys[i] = nhandle.getKey();
+            }
+        }
+
+        Node[] fetched = nmgr.getNodes(keys);
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] == null) {
+                nodes[i] = fetched[i];
+            }
+            Node retval = nodes[i];
+            if (retval != null && retval.parentHandle == null && !nmgr.isRootNode(retval)) {
+                retval.setParent(this);
+                retval.anonymous = true;
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Get the child nodes whose property has the given value, or a value within
+     * the given range. If the property is declared in _children.index of an
+     * embedded node's prototype, the candidates are looked up in the index,
+     * otherwise all child nodes are checked.
+     *
+     * @param propname the property name
+     * @param from the value, or the lower bound of the range, null for no bound
+     * @param to the upper bound of the range, null for no bound
+     * @param range true to look up a range, false to look up a single value
+     * @return the matching child nodes, in no particular order
+     */
+    public Node[] findSubnodes(String propname, Object from, Object to, boolean range) {
+        loadNodes();
+        String[] ids = nmgr.findSubnodeIds(this, propname, from, to, range);
+        if (ids == null) {
+            int size = subnodes == null ? 0 : subnodes.size();
+            ids = new String[size];
+            for (int i = 0; i < size; i++) {
+                ids[i] = subnodes.get(i).getID();
+            }
+        }
+
+        Node[] nodes = getSubnodes(ids);
+        ArrayList list = new ArrayList(nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null &&
+                    ChildIndex.matches(nodes[i].get(propname), from, to, range)) {
+                list.add(nodes[i]);
+            }
+        }
+        return (Node[]) list.toArray(new Node[list.size()]);
+    }
+
+    /**
+     * Get the child elements with the given names. For relational collections
+     * with an access name, the children that aren't cached are prefetched with
+     * as few queries as possible.
+     *
+     * @param names the names of the child elements
+     * @return the child elements in the order of the names, with null for
+     *         names that don't resolve to a child element
+     */
+    public IPathElement[] getChildElements(String[] names) {
+        IPathElement[] elements = new IPathElement[names.length];
+        Relation rel = dbmap == null ? null : dbmap.getSubnodeRelation();
+
+        if (rel != null && state != TRANSIENT && rel.otherType != null &&
+                rel.otherType.isRelational() && rel.groupby == null) {
+            if (rel.accessName != null) {
+                nmgr.prefetchNodesByName(this, rel, names);
+            } else {
+                // children are looked up by id, except for mapped properties
+                String[] ids = new String[names.length];
+                for (int i = 0; i < names.length; i++) {
+                    Relation prel = names[i] == null ?
+                            null : dbmap.getExactPropertyRelation(names[i]);
+                    if (prel == null || prel.isPrimitive()) {
+                        ids[i] = names[i];
+                    }
+                }
+                System.arraycopy(getSubnodes(ids), 0, elements, 0, ids.length);
+            }
+        }
+
+        for (int i = 0; i < names.length; i++) {
+            if (elements[i] == null && names[i] != null) {
+                elements[i] = getChildElement(names[i]);
+            }
+        }
+        return elements;
+    }
+
     /**
      * Get a node at a given position. This causes the subnode list to be loaded in case
      * it isn't up to date.
@@ -1413,6 +1579,22 @@ public final class Node implements INode {
         return (subnodes == null) ? 0 : subnodes.size();
     }
 
+    /**
+     * Get the approximate number of subnodes of this node. For large relational
+     * collections, this is an estimate read from the database's statistics
+     * rather than an exact count, which is good enough for things like pagers.
+     *
+     * @return the approximate number of subnodes
+     */
+    public int approximateNumberOfNodes() {
+        Relation rel = (dbmap == null) ? null : dbmap.getSubnodeRelation();
+        if (state == TRANSIENT || state == NEW || subnodeRelation != null ||
+                rel == null || rel.otherType == null || !rel.otherType.isRelational()) {
+            return numberOfNodes();
+        }
+        return nmgr.countNodesApproximately(this, rel);
+    }
+
     /**
      * Make sure the subnode index is loaded for subnodes stored in a relational data source.
      *  Depending on the subnode.loadmode specified in the type.properties, we'll load just the
@@ -1469,6 +1651,19 @@ public final class Node implements INode {
      * @throws Exception ...
      */
     public void prefetchChildren(int startIndex, int length) {
+        prefetchChildren(startIndex, length, null);
+    }
+
+    /**
+     * Prefetch child nodes along with the nodes referenced by some of their
+     * properties, avoiding one query per child when the references are accessed.
+     *
+     * @param startIndex the index of the first child node
+     * @param length the number of child nodes
+     * @param references the names of reference properties to prefetch, or null
+     *                   to use the prefetch option of the subnode relation
+     */
+    public void prefetchChildren(int startIndex, int length, String[] references) {
         if (startIndex < 0) {
             return;
         }
@@ -1479,7 +1674,22 @@ public final class Node implements INode {
             return;
         }
 
-        subnodes.prefetch(startIndex, length);
+        subnodes.prefetch(startIndex, length, references);
+    }
+
+    /**
+     * Open a forward-only cursor over the subnodes of this node. Unlike
+     * getSubnodes(), this doesn't load the complete list of subnode ids for
+     * relational collections, so it can be used to walk huge collections.
+     *
+     * @param windowSize the number of nodes materialized at once
+     * @return a cursor over this node's subnodes
+     */
+    public NodeCursor getCursor(int windowSize) {
+        if (state == TRANSIENT || state == NEW || dbmap == null) {
+            return new NodeCursor(getSubnodes());
+        }
+        return nmgr.openCursor(this, dbmap.getSubnodeRelation(), windowSize);
     }
 
     /**
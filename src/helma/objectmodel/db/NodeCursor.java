@@ -0,0 +1,203 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A forward-only iterator over the child nodes of a collection. For relational
+ * collections, the nodes are read from a server-side cursor on a connection of
+ * their own, in windows of a fixed number of nodes. When a window has been
+ * consumed, its nodes are dropped from the transactor's clean nodes, so the
+ * memory used for iterating stays the same regardless of collection size.
+ * Since the cursor's connection isn't used by the transaction, uncommitted
+ * changes to the collection are not visible to it.
+ *
+ * Cursors are closed when they are exhausted or when the transaction that
+ * opened them ends. They should be closed explicitly when they are abandoned.
+ */
+public final class NodeCursor implements Iterator {
+
+    private final NodeManager nmgr;
+    private final DbMapping dbmap;
+    private final DbColumn[] columns;
+    private final int windowSize;
+
+    private Connection con;
+    private Statement stmt;
+    private ResultSet rs;
+
+    // the subnodes of collections that aren't streamed
+    private Enumeration subnodes;
+
+    private List window = Collections.EMPTY_LIST;
+    private int position = 0;
+    // the nodes of the current window first visited by this cursor
+    private boolean[] visited;
+    private boolean closed = false;
+
+    /**
+     * Create a cursor reading relational nodes from a result set.
+     */
+    NodeCursor(NodeManager nmgr, DbMapping dbmap, DbColumn[] columns, Connection con,
+               Statement stmt, ResultSet rs, int windowSize) {
+        this.nmgr = nmgr;
+        this.dbmap = dbmap;
+        this.columns = columns;
+        this.con = con;
+        this.stmt = stmt;
+        this.rs = rs;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * Create a cursor over the subnodes of a collection that can't be streamed,
+     * e.g. a collection of embedded or grouped nodes.
+     */
+    NodeCursor(Enumeration subnodes) {
+        this.nmgr = null;
+        this.dbmap = null;
+        this.columns = null;
+        this.windowSize = 0;
+        this.subnodes = subnodes;
+    }
+
+    /**
+     * Check if there are more nodes.
+     */
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        } else if (subnodes != null) {
+            return subnodes.hasMoreElements();
+        }
+        if (position >= window.size()) {
+            fetchWindow();
+        }
+        return position < window.size();
+    }
+
+    /**
+     * Get the next node.
+     */
+    public Object next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        } else if (subnodes != null) {
+            return subnodes.nextElement();
+        }
+        Node node = (Node) window.get(position);
+        Transactor tx = Transactor.getInstance();
+        if (tx != null && tx.getCleanNode(node.getKey()) == null) {
+            tx.visitCleanNode(node);
+            visited[position] = true;
+        }
+        position++;
+        return node;
+    }
+
+    /**
+     * Not supported, since cursors are read-only.
+     */
+    public void remove() {
+        throw new UnsupportedOperationException("NodeCursor.remove()");
+    }
+
+    /**
+     * Release the nodes of the current window and read the next one.
+     */
+    private void fetchWindow() {
+        releaseWindow();
+        try {
+            window = nmgr.fetchCursorWindow(rs, dbmap, columns, windowSize);
+        } catch (Exception x) {
+            close();
+            throw new RuntimeException("Error reading from cursor", x);
+        }
+        position = 0;
+        visited = new boolean[window.size()];
+        if (window.isEmpty()) {
+            close();
+        }
+    }
+
+    // drop the nodes visited by this cursor from the transactor's clean nodes
+    private void releaseWindow() {
+        Transactor tx = Transactor.getInstance();
+        for (int i = 0; i < window.size(); i++) {
+            if (tx != null && visited[i]) {
+                tx.dropCleanNode(((Node) window.get(i)).getKey());
+            }
+        }
+        window = Collections.EMPTY_LIST;
+        position = 0;
+    }
+
+    /**
+     * Close the cursor and release its database connection.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        subnodes = null;
+        if (rs != null) {
+            try {
+                rs.close();
+            } catch (Exception ignore) {
+                // closing the statement is what matters
+            }
+            rs = null;
+        }
+        if (stmt != null) {
+            try {
+                stmt.close();
+            } catch (Exception ignore) {
+                // connection is closed anyway
+            }
+            stmt = null;
+        }
+        if (con != null) {
+            try {
+                // return the connection to its pool
+                con.close();
+            } catch (Exception ignore) {
+                // exception releasing db connection, ignore
+            }
+            con = null;
+        }
+        Transactor tx = Transactor.getInstance();
+        if (tx != null) {
+            tx.unregisterCursor(this);
+        }
+    }
+
+    /**
+     * Check if the cursor has been closed.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -38,11 +38,42 @@ public final class NodeManager {
 
     protected Application app;
     private ObjectCache cache;
+    // second level cache for nodes evicted from the object cache, if enabled
+    private OffHeapNodeCache offHeapCache;
     protected IDatabase db;
     protected IDGenerator idgen;
     private boolean logSql;
     private Log sqlLog = null;
-    private ArrayList listeners = new ArrayList();
+    // max number of statements per JDBC batch in batched commit mode, 0 to disable
+    private int commitBatchSize = 0;
+    // max number of connections used to fetch the chunks of a prefetch in parallel
+    private int prefetchThreads = 1;
+    // the threads helping with parallel prefetches
+    private WorkerPool prefetchWorkers;
+    // blocks of reserved ids, keyed by storage type name
+    private final HashMap idBlocks = new HashMap();
+    // shared cache for the id lists of collections, if enabled
+    private QueryCache queryCache;
+    // cache for the sizes of collections, if enabled
+    private CountCache countCache;
+    // collections estimated to be smaller are counted exactly by approximate counts
+    private int approximateCountThreshold = 10000;
+    // number of rows fetched at once by the server-side cursors of NodeCursors
+    private int cursorFetchSize = 1000;
+    // default dirty node count and estimated size causing transactions to flush
+    private int transactionFlushSize = 0;
+    private long transactionFlushMemory = 0;
+
+    // number of ids bound per prefetch statement, prefetched keys are padded to these sizes
+    static final int[] PREFETCH_BUCKETS = {16, 64, 256};
+    // max number of nodes whose lazy properties are loaded with one statement
+    static final int MAX_LAZY_BATCH = 256;
+    private volatile ArrayList listeners = new ArrayList();
+    private final Object listenerLock = new Object();
+    // publishes committed changes to other instances, if enabled
+    private CacheInvalidator invalidator;
+    // property indexes for the children of embedded objects
+    private ChildIndex childIndex;
 
     // a wrapper that catches some Exceptions while accessing this NM
     public final WrappedNodeManager safe;
@@ -63,11 +94,36 @@ public final class NodeManager {
     public void init(File dbHome, Properties props)
             throws DatabaseException, ClassNotFoundException,
                    IllegalAccessException, InstantiationException {
-        String cacheImpl = props.getProperty("cacheimpl", "helma.util.CacheMap");
+        // use the memory-weighted cache if a memory budget is set. The lock-striped
+        // helma.util.ConcurrentCacheMap can be selected with cacheimpl.
+        String cacheImpl = props.getProperty("cacheimpl",
+                props.getProperty("cachememory") != null ?
+                        "helma.objectmodel.db.WeightedNodeCache" :
+                        "helma.util.CacheMap");
 
         cache = (ObjectCache) Class.forName(cacheImpl).newInstance();
         cache.init(app);
 
+        String offHeapSize = props.getProperty("offheapcache");
+
+        if (offHeapSize != null) {
+            if (cache instanceof ConcurrentObjectCache) {
+                offHeapCache = new OffHeapNodeCache(this);
+                try {
+                    offHeapCache.init(WeightedNodeCache.parseByteSize(offHeapSize));
+                    ((ConcurrentObjectCache) cache).setEvictionListener(offHeapCache);
+                } catch (NumberFormatException nfx) {
+                    app.logError("Invalid offheapcache setting: " + offHeapSize);
+                    offHeapCache = null;
+                } catch (OutOfMemoryError oom) {
+                    app.logError("Couldn't allocate off-heap cache, check -XX:MaxDirectMemorySize");
+                    offHeapCache = null;
+                }
+            } else {
+                app.logError("Off-heap cache requires a ConcurrentObjectCache, not " + cacheImpl);
+            }
+        }
+
         String idgenImpl = props.getProperty("idGeneratorImpl");
 
         if (idgenImpl != null) {
@@ -76,9 +132,45 @@ public final class NodeManager {
         }
 
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
-
-        db = new XmlDatabase();
+        commitBatchSize = getIntProperty(props, "commitBatchSize", 0);
+        prefetchThreads = getIntProperty(props, "prefetchThreads", 1);
+        prefetchWorkers = new WorkerPool(app.getName() + "-prefetch", prefetchThreads - 1);
+        cursorFetchSize = getIntProperty(props, "cursorFetchSize", 1000);
+        approximateCountThreshold = getIntProperty(props, "approximateCountThreshold", 10000);
+        updateQueryCache(props);
+        updateTransactionFlush(props);
+
+        String dbImpl = props.getProperty("dbImpl");
+
+        if (dbImpl != null) {
+            db = (IDatabase) Class.forName(dbImpl).newInstance();
+        } else {
+            db = new XmlDatabase();
+        }
         db.init(dbHome, app);
+
+        childIndex = new ChildIndex(this, new File(dbHome, "childindex.dat"),
+                getIntProperty(props, "childIndexCacheSize", 1000));
+        try {
+            childIndex.load();
+        } catch (IOException iox) {
+            app.logError("Error reading child indexes, rebuilding on demand", iox);
+            childIndex.clear();
+        }
+
+        String transport = props.getProperty("cluster.transport");
+
+        if (transport != null) {
+            invalidator = new CacheInvalidator(this);
+            try {
+                invalidator.init(transport);
+                addNodeChangeListener(invalidator);
+            } catch (IOException iox) {
+                app.logError("Error setting up cache invalidation, disabled", iox);
+                invalidator.shutdown();
+                invalidator = null;
+            }
+        }
     }
 
     /**
@@ -109,6 +201,118 @@ public final class NodeManager {
         // notify the cache about the properties update
         cache.updateProperties(props);
         logSql = "true".equalsIgnoreCase(props.getProperty("logsql"));
+        commitBatchSize = getIntProperty(props, "commitBatchSize", 0);
+        prefetchThreads = getIntProperty(props, "prefetchThreads", 1);
+        if (prefetchWorkers != null) {
+            prefetchWorkers.setSize(prefetchThreads - 1);
+        }
+        cursorFetchSize = getIntProperty(props, "cursorFetchSize", 1000);
+        approximateCountThreshold = getIntProperty(props, "approximateCountThreshold", 10000);
+        updateQueryCache(props);
+        updateTransactionFlush(props);
+        if (invalidator != null) {
+            invalidator.updateProperties(props);
+        }
+    }
+
+    /**
+     * Set up, resize or disable the shared query cache according to the
+     * queryCacheSize and queryCacheMaxIds app properties.
+     */
+    private void updateQueryCache(Properties props) {
+        int size = getIntProperty(props, "queryCacheSize", 0);
+        int maxIds = getIntProperty(props, "queryCacheMaxIds", 10000);
+        if (size <= 0) {
+            queryCache = null;
+        } else if (queryCache == null) {
+            queryCache = new QueryCache(size, maxIds);
+        } else {
+            queryCache.setCapacity(size, maxIds);
+        }
+
+        int countSize = getIntProperty(props, "countCacheSize", 0);
+        if (countSize <= 0) {
+            countCache = null;
+        } else if (countCache == null) {
+            countCache = new CountCache(countSize);
+        } else {
+            countCache.setCapacity(countSize);
+        }
+    }
+
+    /**
+     * Get the cache for collection sizes, if enabled via the countCacheSize
+     * app property.
+     *
+     * @return the count cache, or null
+     */
+    CountCache getCountCache() {
+        return countCache;
+    }
+
+    /**
+     * Set the default thresholds for intermediate transaction flushes from the
+     * transactionFlushSize (number of dirty nodes) and transactionFlushMemory
+     * (estimated size of dirty nodes, e.g. 64M) app properties.
+     */
+    private void updateTransactionFlush(Properties props) {
+        transactionFlushSize = getIntProperty(props, "transactionFlushSize", 0);
+        String memory = props.getProperty("transactionFlushMemory");
+        transactionFlushMemory = 0;
+        if (memory != null) {
+            try {
+                transactionFlushMemory = WeightedNodeCache.parseByteSize(memory);
+            } catch (NumberFormatException nfx) {
+                app.logError("Invalid transactionFlushMemory setting: " + memory);
+            }
+        }
+    }
+
+    /**
+     * Get the default number of dirty nodes at which transactions flush their
+     * changes to the database before they are committed.
+     *
+     * @return the dirty node count, or 0 if disabled
+     */
+    public int getTransactionFlushSize() {
+        return transactionFlushSize;
+    }
+
+    /**
+     * Get the default estimated size of dirty nodes in bytes at which
+     * transactions flush their changes to the database before they are committed.
+     *
+     * @return the size in bytes, or 0 if disabled
+     */
+    public long getTransactionFlushMemory() {
+        return transactionFlushMemory;
+    }
+
+    /**
+     * Parse an integer setting from the app properties, logging an error and
+     * returning the default value if it is not a valid number.
+     */
+    private int getIntProperty(Properties props, String name, int defaultValue) {
+        String value = props.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException nfx) {
+            app.logError("Invalid " + name + " setting: " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Get the maximum number of statements per JDBC batch if batched commit
+     * mode is enabled via the commitBatchSize app property.
+     *
+     * @return the batch size, or 0 if relational nodes are written one by one
+     */
+    public int getCommitBatchSize() {
+        return commitBatchSize;
     }
 
     /**
@@ -116,6 +320,22 @@ public final class NodeManager {
      *  using this node manager is stopped.
      */
     public void shutdown() throws DatabaseException {
+        if (invalidator != null) {
+            removeNodeChangeListener(invalidator);
+            invalidator.shutdown();
+            invalidator = null;
+        }
+
+        if (childIndex != null) {
+            removeNodeChangeListener(childIndex);
+            try {
+                childIndex.save();
+            } catch (IOException iox) {
+                app.logError("Error saving child indexes", iox);
+            }
+            childIndex = null;
+        }
+
         db.shutdown();
 
         if (cache != null) {
@@ -123,6 +343,15 @@ public final class NodeManager {
             cache = null;
         }
 
+        if (offHeapCache != null) {
+            offHeapCache.shutdown();
+            offHeapCache = null;
+        }
+
+        if (prefetchWorkers != null) {
+            prefetchWorkers.shutdown();
+        }
+
         if (idgen != null) {
             idgen.shutdown();
         }
@@ -171,7 +400,13 @@ public final class NodeManager {
                     return null;
                 }
             } else if (key instanceof DbKey) {
-                node = getNodeByKey(tx.txn, (DbKey) key);
+                // try nodes evicted to the off-heap cache before going to the database
+                if (offHeapCache != null && tx.getDirtyNode(key) == null) {
+                    node = offHeapCache.get((DbKey) key);
+                }
+                if (node == null) {
+                    node = getNodeByKey(tx.txn, (DbKey) key);
+                }
             }
 
             if (node != null) {
@@ -277,14 +512,12 @@ public final class NodeManager {
                 }
             } else {
                 // node fetched from db is null, cache result using nullNode
-                synchronized (cache) {
-                    // do not use child collection timestamp as cache guard for object references
-                    long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
-                    cache.put(key, new Node(lastchange));
+                // do not use child collection timestamp as cache guard for object references
+                long lastchange = rel.isComplexReference() ? 0 : home.getLastSubnodeChange();
+                cache.put(key, new Node(lastchange));
 
-                    // we ignore the case that onother thread has created the node in the meantime
-                    return null;
-                }
+                // we ignore the case that onother thread has created the node in the meantime
+                return null;
             }
         } else if (node.isNullNode()) {
             // the nullNode caches a null value, i.e. an object that doesn't exist
@@ -292,15 +525,11 @@ public final class NodeManager {
         } else {
             // update primary key in cache to keep it from being flushed, see above
             if (!rel.usesPrimaryKey() && node.getState() != Node.TRANSIENT) {
-                synchronized (cache) {
-                    Node old = (Node) cache.put(node.getKey(), node);
-
-                    if (old != node && old != null && !old.isNullNode() && 
-                            old.getState() != Node.INVALID) {
-                        cache.put(node.getKey(), old);
-                        cache.put(key, old);
-                        node = old;
-                    }
+                Node old = putNodeIfAbsent(node.getKey(), node);
+
+                if (old != null) {
+                    cache.put(key, old);
+                    node = old;
                 }
             }
         }
@@ -312,6 +541,43 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Store a node in the cache unless a valid node is already cached with the
+     * given key. Null nodes and invalid nodes are replaced.
+     *
+     * @param key the key to store the node with
+     * @param node the node
+     * @return the valid node that was already cached, or null if the node was stored
+     */
+    private Node putNodeIfAbsent(Key key, Node node) {
+        if (cache instanceof ConcurrentObjectCache) {
+            ConcurrentObjectCache concurrentCache = (ConcurrentObjectCache) cache;
+            while (true) {
+                Node old = (Node) concurrentCache.putIfAbsent(key, node);
+                if (old == null || old == node) {
+                    return null;
+                } else if (!old.isNullNode() && old.getState() != INode.INVALID) {
+                    return old;
+                } else if (concurrentCache.replace(key, old, node)) {
+                    return null;
+                }
+                // another thread changed the entry in the meantime, try again
+            }
+        }
+
+        // lock the whole cache for implementations without atomic operations
+        synchronized (cache) {
+            Node old = (Node) cache.put(key, node);
+
+            if (old != null && old != node && !old.isNullNode() &&
+                    old.getState() != INode.INVALID) {
+                cache.put(key, old);
+                return old;
+            }
+            return null;
+        }
+    }
+
     /**
      * Register a newly created node in the node cache unless it it is already contained.
      * If so, the previously registered node is kept and returned. Otherwise, the onInit()
@@ -332,18 +598,15 @@ public final class NodeManager {
             return node;
         }
 
-        synchronized(cache) {
-            Node old = (Node) cache.put(key, node);
+        Node old = putNodeIfAbsent(key, node);
 
-            if (old != null && !old.isNullNode() && old.getState() != INode.INVALID) {
-                cache.put(key, old);
-                if (secondaryKey != null) {
-                    cache.put(secondaryKey, old);
-                }
-                return old;
-            } else if (secondaryKey != null) {
-                cache.put(secondaryKey, node);
+        if (old != null) {
+            if (secondaryKey != null) {
+                cache.put(secondaryKey, old);
             }
+            return old;
+        } else if (secondaryKey != null) {
+            cache.put(secondaryKey, node);
         }
         // New node is going ot be used, invoke onInit() on it
         // Invoke onInit() if it is defined by this Node's prototype
@@ -378,6 +641,9 @@ public final class NodeManager {
     public void evictNode(Node node) {
         node.setState(INode.INVALID);
         cache.remove(node.getKey());
+        if (offHeapCache != null) {
+            offHeapCache.remove(node.getKey());
+        }
     }
 
     /**
@@ -387,6 +653,10 @@ public final class NodeManager {
     public void evictNodeByKey(Key key) {
         Node n = (Node) cache.remove(key);
 
+        if (offHeapCache != null) {
+            offHeapCache.remove(key);
+        }
+
         if (n != null) {
             n.setState(INode.INVALID);
 
@@ -402,6 +672,9 @@ public final class NodeManager {
      */
     public void evictKey(Key key) {
         cache.remove(key);
+        if (offHeapCache != null) {
+            offHeapCache.remove(key);
+        }
         // also drop key from thread-local transactor cache
         Transactor tx = Transactor.getInstance();
         if (tx != null) {
@@ -489,30 +762,7 @@ public final class NodeManager {
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
         try {
-            int columnNumber = 1;
-
-            for (int i = 0; i < columns.length; i++) {
-                DbColumn col = columns[i];
-                if (!col.isMapped()) 
-                    continue;
-                if (col.isIdField()) {
-                    setStatementValue(stmt, columnNumber, node.getID(), col);
-                } else if (col.isPrototypeField()) {
-                    setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
-                } else {
-                    Relation rel = col.getRelation();
-                    Property p = rel == null ? null : node.getProperty(rel.getPropName());
- 
-                    if (p != null) {
-                        setStatementValue(stmt, columnNumber, p, col.getType());
-                    } else if (col.isNameField()) {
-                        stmt.setString(columnNumber, node.getName());
-                    } else {
-                        stmt.setNull(columnNumber, col.getType());
-                    }
-                }
-                columnNumber += 1;
-            }
+            setInsertValues(stmt, node, dbm, columns);
             stmt.executeUpdate();
 
         } finally {
@@ -529,10 +779,92 @@ public final class NodeManager {
         }
     }
 
+    /**
+     * Insert a group of new nodes sharing the same DbMapping into a relational
+     * database, using a single prepared statement and JDBC batch updates.
+     * onPersist() must already have been invoked on the nodes.
+     *
+     * @param dbm the DbMapping of all nodes in the list
+     * @param nodes the list of nodes to insert
+     * @param batchSize the maximum number of rows per executeBatch() call
+     */
+    protected void insertRelationalNodes(DbMapping dbm, List nodes, int batchSize)
+                throws ClassNotFoundException, SQLException {
+        Connection con = dbm.getConnection();
+        // set connection to write mode
+        if (con.isReadOnly()) con.setReadOnly(false);
+
+        String insertString = dbm.getInsert();
+        PreparedStatement stmt = con.prepareStatement(insertString);
+        DbColumn[] columns = dbm.getColumns();
+
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            int pending = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                setInsertValues(stmt, (Node) nodes.get(i), dbm, columns);
+                stmt.addBatch();
+                if (++pending >= batchSize) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                stmt.executeBatch();
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL INSERT_BATCH", dbm.getTableName(),
+                                logTimeStart, logTimeStop,
+                                insertString + " [" + nodes.size() + " rows]");
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Set the parameters of an insert statement rendered by DbMapping.getInsert()
+     * to the values of the given node.
+     */
+    private void setInsertValues(PreparedStatement stmt, Node node, DbMapping dbm,
+                                 DbColumn[] columns)
+                throws SQLException {
+        int columnNumber = 1;
+
+        for (int i = 0; i < columns.length; i++) {
+            DbColumn col = columns[i];
+            if (!col.isMapped())
+                continue;
+            if (col.isIdField()) {
+                setStatementValue(stmt, columnNumber, node.getID(), col);
+            } else if (col.isPrototypeField()) {
+                setStatementValue(stmt, columnNumber, dbm.getExtensionId(), col);
+            } else {
+                Relation rel = col.getRelation();
+                Property p = rel == null ? null : node.getProperty(rel.getPropName());
+
+                if (p != null) {
+                    setStatementValue(stmt, columnNumber, p, col.getType());
+                } else if (col.isNameField()) {
+                    stmt.setString(columnNumber, node.getName());
+                } else {
+                    stmt.setNull(columnNumber, col.getType());
+                }
+            }
+            columnNumber += 1;
+        }
+    }
+
     /**
      *  calls onPersist function for the HopObject
      */
-    private void invokeOnPersist(Node node) {
+    void invokeOnPersist(Node node) {
         try {
             // We need to reach deap into helma.framework.core to invoke onPersist(),
             // but the functionality is really worth it.
@@ -562,88 +894,29 @@ public final class NodeManager {
         if ((dbm == null) || !dbm.isRelational()) {
             db.updateNode(txn, node.getID(), node);
         } else {
-            Hashtable propMap = node.getPropMap();
-            Property[] props;
-
-            if (propMap == null) {
-                props = new Property[0];
-            } else {
-                props = new Property[propMap.size()];
-                propMap.values().toArray(props);
-            }
-
-            // make sure table meta info is loaded by dbmapping
-            dbm.getColumns();
-
-            StringBuffer b = dbm.getUpdate();
-
-            // comma flag set after the first dirty column, also tells as
-            // if there are dirty columns at all
-            boolean comma = false;
-
-            for (int i = 0; i < props.length; i++) {
-                // skip clean properties
-                if ((props[i] == null) || !props[i].dirty) {
-                    // null out clean property so we don't consider it later
-                    props[i] = null;
-                    continue;
-                }
-
-                Relation rel = dbm.propertyToRelation(props[i].getName());
-
-                // skip readonly, virtual and collection relations
-                if ((rel == null) || rel.readonly || rel.virtual ||
-                        (!rel.isPrimitiveOrReference())) {
-                    // null out property so we don't consider it later
-                    props[i] = null;
-                    continue;
-                }
-
-                if (comma) {
-                    b.append(", ");
-                } else {
-                    comma = true;
-                }
-
-                b.append(rel.getDbField());
-                b.append(" = ?");
-            }
+            Property[] props = getUpdatedProperties(dbm, node);
 
             // if no columns were updated, return false
-            if (!comma) {
+            if (props == null) {
                 return false;
             }
 
+            StringBuffer b = renderUpdate(dbm, props);
             b.append(" WHERE ");
-            dbm.appendCondition(b, dbm.getIDField(), node.getID());
+            // use a parameter for the id so the statement can be reused
+            dbm.appendParameterCondition(b, dbm.getIDField(), 1);
 
             Connection con = dbm.getConnection();
             // set connection to write mode
             if (con.isReadOnly()) con.setReadOnly(false);
             PreparedStatement stmt = con.prepareStatement(b.toString());
 
-            int stmtNumber = 0;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
             try {
-                for (int i = 0; i < props.length; i++) {
-                    Property p = props[i];
-
-                    if (p == null) {
-                        continue;
-                    }
-
-                    Relation rel = dbm.propertyToRelation(p.getName());
-
-                    stmtNumber++;
-                    setStatementValue(stmt, stmtNumber, p, rel.getColumnType());
-
-                    p.dirty = false;
-
-                    if (!rel.isPrivate()) {
-                        markMappingAsUpdated = true;
-                    }
-                }
+                markMappingAsUpdated = setUpdateValues(stmt, dbm, props);
+                setStatementValue(stmt, countProperties(props) + 1, node.getID(),
+                                  dbm.getColumn(dbm.getIDField()));
 
                 stmt.executeUpdate();
 
@@ -676,68 +949,334 @@ public final class NodeManager {
     }
 
     /**
-     *  Performs the actual deletion of a node from either the embedded or an external
-     *  SQL database.
+     * Update a group of modified nodes sharing the same DbMapping in a relational
+     * database. Nodes with the same set of dirty columns share one prepared statement
+     * and are written using JDBC batch updates. onPersist() must already have been
+     * invoked on the nodes.
+     *
+     * @param dbm the DbMapping of all nodes in the list
+     * @param nodes the list of nodes to update
+     * @param batchSize the maximum number of rows per executeBatch() call
+     * @return true if the DbMapping is to be marked as updated via
+     *              DbMapping.setLastDataChange
      */
-    public void deleteNode(IDatabase db, ITransaction txn, Node node)
-                    throws Exception {
-        DbMapping dbm = node.getDbMapping();
-
-        if ((dbm == null) || !dbm.isRelational()) {
-            db.deleteNode(txn, node.getID());
-        } else {
-            Statement st = null;
-            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
-            String str = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
-                                                         .append(" WHERE ")
-                                                         .append(dbm.getIDField())
-                                                         .append(" = ")
-                                                         .append(node.getID())
-                                                         .toString();
+    protected boolean updateRelationalNodes(DbMapping dbm, List nodes, int batchSize)
+                throws ClassNotFoundException, SQLException {
+        // group nodes and their dirty properties by update statement
+        LinkedHashMap statements = new LinkedHashMap();
+        DbColumn idColumn = dbm.getColumn(dbm.getIDField());
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = (Node) nodes.get(i);
+            Property[] props = getUpdatedProperties(dbm, node);
+            if (props == null) {
+                continue;
+            }
+            StringBuffer b = renderUpdate(dbm, props);
+            b.append(" WHERE ");
+            dbm.appendParameterCondition(b, dbm.getIDField(), 1);
+            String sql = b.toString();
+            List group = (List) statements.get(sql);
+            if (group == null) {
+                group = new ArrayList();
+                statements.put(sql, group);
+            }
+            group.add(new Object[] {node, props});
+        }
 
-            try {
-                Connection con = dbm.getConnection();
-                // set connection to write mode
-                if (con.isReadOnly()) con.setReadOnly(false);
+        if (statements.isEmpty()) {
+            return false;
+        }
 
-                st = con.createStatement();
+        Connection con = dbm.getConnection();
+        // set connection to write mode
+        if (con.isReadOnly()) con.setReadOnly(false);
+        boolean markMappingAsUpdated = false;
 
-                st.executeUpdate(str);
+        for (Iterator it = statements.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            String sql = (String) entry.getKey();
+            List group = (List) entry.getValue();
+            PreparedStatement stmt = con.prepareStatement(sql);
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
+            try {
+                int pending = 0;
+                for (int i = 0; i < group.size(); i++) {
+                    Object[] item = (Object[]) group.get(i);
+                    Node node = (Node) item[0];
+                    Property[] props = (Property[]) item[1];
+                    boolean markNode = setUpdateValues(stmt, dbm, props);
+                    setStatementValue(stmt, countProperties(props) + 1, node.getID(), idColumn);
+                    stmt.addBatch();
+                    if (++pending >= batchSize) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                    if (markNode) {
+                        markMappingAsUpdated = true;
+                        // update may cause changes in the node's parent subnode array
+                        if (node.isAnonymous()) {
+                            Node parent = node.getCachedParent();
+                            if (parent != null) {
+                                parent.markSubnodesChanged();
+                            }
+                        }
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
             } finally {
                 if (logSql) {
                     long logTimeStop = System.currentTimeMillis();
-                    logSqlStatement("SQL DELETE", dbm.getTableName(),
-                                    logTimeStart, logTimeStop, str);
+                    logSqlStatement("SQL UPDATE_BATCH", dbm.getTableName(),
+                                    logTimeStart, logTimeStop,
+                                    sql + " [" + group.size() + " rows]");
                 }
-                if (st != null) {
-                    try {
-                        st.close();
-                    } catch (Exception ignore) {
-                    }
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
                 }
             }
         }
 
-        // node may still be cached via non-primary keys. mark as invalid
-        node.setState(Node.INVALID);
+        return markMappingAsUpdated;
     }
 
-
     /**
-     * Generate a new ID for a given type, delegating to our IDGenerator if set.
+     * Collect the dirty, writable properties of a node for an SQL update.
+     *
+     * @return the properties to update, with skipped entries set to null,
+     *         or null if no column needs to be updated
      */
-    public String generateID(DbMapping map) throws Exception {
-        if (idgen != null) {
-            // use our custom IDGenerator
-            return idgen.generateID(map);
+    private Property[] getUpdatedProperties(DbMapping dbm, Node node)
+                throws ClassNotFoundException, SQLException {
+        Hashtable propMap = node.getPropMap();
+        Property[] props;
+
+        if (propMap == null) {
+            props = new Property[0];
         } else {
-            return doGenerateID(map);
+            props = new Property[propMap.size()];
+            propMap.values().toArray(props);
+        }
+
+        // make sure table meta info is loaded by dbmapping
+        dbm.getColumns();
+
+        boolean dirty = false;
+
+        for (int i = 0; i < props.length; i++) {
+            // skip clean properties
+            if ((props[i] == null) || !props[i].dirty) {
+                // null out clean property so we don't consider it later
+                props[i] = null;
+                continue;
+            }
+
+            Relation rel = dbm.propertyToRelation(props[i].getName());
+
+            // skip readonly, virtual and collection relations
+            if ((rel == null) || rel.readonly || rel.virtual ||
+                    (!rel.isPrimitiveOrReference())) {
+                // null out property so we don't consider it later
+                props[i] = null;
+                continue;
+            }
+
+            dirty = true;
         }
+
+        return dirty ? props : null;
     }
 
     /**
-     * Actually generates an ID, using a method matching the given DbMapping.
+     * Render the first part of an update statement for the given properties,
+     * up to but not including the WHERE clause.
+     */
+    private StringBuffer renderUpdate(DbMapping dbm, Property[] props) {
+        StringBuffer b = dbm.getUpdate();
+
+        // comma flag set after the first dirty column
+        boolean comma = false;
+
+        for (int i = 0; i < props.length; i++) {
+            if (props[i] == null) {
+                continue;
+            }
+
+            if (comma) {
+                b.append(", ");
+            } else {
+                comma = true;
+            }
+
+            b.append(dbm.propertyToRelation(props[i].getName()).getDbField());
+            b.append(" = ?");
+        }
+
+        return b;
+    }
+
+    /**
+     * Set the parameters of an update statement rendered by renderUpdate() and
+     * mark the properties as clean.
+     *
+     * @return true if a non-private property was updated
+     */
+    private boolean setUpdateValues(PreparedStatement stmt, DbMapping dbm, Property[] props)
+                throws SQLException {
+        boolean markMappingAsUpdated = false;
+        int stmtNumber = 0;
+
+        for (int i = 0; i < props.length; i++) {
+            Property p = props[i];
+
+            if (p == null) {
+                continue;
+            }
+
+            Relation rel = dbm.propertyToRelation(p.getName());
+
+            stmtNumber++;
+            setStatementValue(stmt, stmtNumber, p, rel.getColumnType());
+
+            p.dirty = false;
+
+            if (!rel.isPrivate()) {
+                markMappingAsUpdated = true;
+            }
+        }
+
+        return markMappingAsUpdated;
+    }
+
+    private int countProperties(Property[] props) {
+        int count = 0;
+        for (int i = 0; i < props.length; i++) {
+            if (props[i] != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *  Performs the actual deletion of a node from either the embedded or an external
+     *  SQL database.
+     */
+    public void deleteNode(IDatabase db, ITransaction txn, Node node)
+                    throws Exception {
+        DbMapping dbm = node.getDbMapping();
+
+        if ((dbm == null) || !dbm.isRelational()) {
+            db.deleteNode(txn, node.getID());
+        } else {
+            PreparedStatement st = null;
+            long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+            StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
+                                                             .append(" WHERE ");
+            dbm.appendParameterCondition(b, dbm.getIDField(), 1);
+            String str = b.toString();
+
+            try {
+                Connection con = dbm.getConnection();
+                // set connection to write mode
+                if (con.isReadOnly()) con.setReadOnly(false);
+
+                st = con.prepareStatement(str);
+                setStatementValue(st, 1, node.getID(), dbm.getColumn(dbm.getIDField()));
+
+                st.executeUpdate();
+
+            } finally {
+                if (logSql) {
+                    long logTimeStop = System.currentTimeMillis();
+                    logSqlStatement("SQL DELETE", dbm.getTableName(),
+                                    logTimeStart, logTimeStop, str);
+                }
+                if (st != null) {
+                    try {
+                        st.close();
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+        }
+
+        // node may still be cached via non-primary keys. mark as invalid
+        node.setState(Node.INVALID);
+    }
+
+
+    /**
+     * Delete a group of nodes sharing the same DbMapping from a relational database
+     * using a single prepared statement and JDBC batch updates.
+     *
+     * @param dbm the DbMapping of all nodes in the list
+     * @param nodes the list of nodes to delete
+     * @param batchSize the maximum number of rows per executeBatch() call
+     */
+    protected void deleteRelationalNodes(DbMapping dbm, List nodes, int batchSize)
+                throws ClassNotFoundException, SQLException {
+        StringBuffer b = new StringBuffer("DELETE FROM ").append(dbm.getTableName())
+                                                         .append(" WHERE ");
+        dbm.appendParameterCondition(b, dbm.getIDField(), 1);
+        String str = b.toString();
+        DbColumn idColumn = dbm.getColumn(dbm.getIDField());
+
+        Connection con = dbm.getConnection();
+        // set connection to write mode
+        if (con.isReadOnly()) con.setReadOnly(false);
+
+        PreparedStatement stmt = con.prepareStatement(str);
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            int pending = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                Node node = (Node) nodes.get(i);
+                setStatementValue(stmt, 1, node.getID(), idColumn);
+                stmt.addBatch();
+                if (++pending >= batchSize) {
+                    stmt.executeBatch();
+                    pending = 0;
+                }
+                // node may still be cached via non-primary keys. mark as invalid
+                node.setState(Node.INVALID);
+            }
+            if (pending > 0) {
+                stmt.executeBatch();
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL DELETE_BATCH", dbm.getTableName(),
+                                logTimeStart, logTimeStop,
+                                str + " [" + nodes.size() + " rows]");
+            }
+            try {
+                stmt.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    /**
+     * Generate a new ID for a given type, delegating to our IDGenerator if set.
+     */
+    public String generateID(DbMapping map) throws Exception {
+        if (idgen != null) {
+            // use our custom IDGenerator
+            return idgen.generateID(map);
+        } else {
+            return doGenerateID(map);
+        }
+    }
+
+    /**
+     * Actually generates an ID, using a method matching the given DbMapping.
      */
     public String doGenerateID(DbMapping map) throws Exception {
         if ((map == null) || !map.isRelational()) {
@@ -745,12 +1284,18 @@ public final class NodeManager {
             return generateEmbeddedID(map);
         }
         String idMethod = map.getIDgen();
-        if (idMethod == null || "[max]".equalsIgnoreCase(idMethod) || map.isMySQL()) {
+        if ("[table]".equalsIgnoreCase(idMethod)) {
+            // use blocks of ids reserved in a counter table
+            return generateBlockID(map);
+        } else if (idMethod == null || "[max]".equalsIgnoreCase(idMethod) || map.isMySQL()) {
             // use select max as id generator
             return generateMaxID(map);
         } else if ("[hop]".equalsIgnoreCase(idMethod)) {
             // use embedded db id generator
             return generateEmbeddedID(map);
+        } else if (map.getIDgenBlockSize() > 1) {
+            // use hi/lo blocks of ids computed from the db sequence
+            return generateBlockID(map);
         } else {
             // use db sequence as id generator
             return generateSequenceID(map);
@@ -758,9 +1303,150 @@ public final class NodeManager {
     }
 
     /**
-     * Gererates an ID for use with the embedded database.
+     * Generates an ID from the block of ids reserved for the table of the given
+     * mapping, reserving a new block if the current one is used up. Only the
+     * reservation of a new block involves a database round trip, other calls
+     * just increment the block's counter.
+     */
+    String generateBlockID(DbMapping map) throws Exception {
+        String storage = map.getStorageTypeName();
+        IDBlock block;
+
+        synchronized (idBlocks) {
+            block = (IDBlock) idBlocks.get(storage);
+            if (block == null) {
+                block = new IDBlock();
+                idBlocks.put(storage, block);
+            }
+        }
+
+        synchronized (block) {
+            if (block.next >= block.limit) {
+                int size = Math.max(1, map.getIDgenBlockSize());
+                // the sequence must be defined with INCREMENT BY <blocksize>,
+                // so each value is the start of a block of its own
+                long first = "[table]".equalsIgnoreCase(map.getIDgen()) ?
+                        reserveTableBlock(map, size) :
+                        Long.parseLong(generateSequenceID(map));
+                block.next = first;
+                block.limit = first + size;
+            }
+            return Long.toString(block.next++);
+        }
+    }
+
+    /**
+     * Reserve a block of ids for the table of the given mapping in the counter
+     * table, which must have a NAME column holding the table name and a NEXT_ID
+     * column holding the next free id. The reservation is committed on the
+     * data source's id connection, so it is durable regardless of the outcome
+     * of the current transaction and doesn't need a second pooled connection.
+     * If the table has no row yet, it is initialized with the maximum id
+     * currently stored in the table.
+     *
+     * @return the first id of the reserved block
+     */
+    private long reserveTableBlock(DbMapping map, int size) throws Exception {
+        DbSource source = map.getDbSource();
+        Connection con = source.getIDConnection();
+        synchronized (con) {
+            return reserveTableBlock(map, size, source, con);
+        }
+    }
+
+    private long reserveTableBlock(DbMapping map, int size, DbSource source,
+                                   Connection con) throws Exception {
+        String counterTable = map.getIDgenTable();
+        String name = map.getTableName();
+        PreparedStatement stmt = null;
+        String query = null;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            if (con.getAutoCommit()) {
+                con.setAutoCommit(false);
+            }
+
+            for (int attempt = 0; ; attempt++) {
+                query = new StringBuffer("UPDATE ").append(counterTable)
+                        .append(" SET NEXT_ID = NEXT_ID + ? WHERE NAME = ?").toString();
+                stmt = con.prepareStatement(query);
+                stmt.setLong(1, size);
+                stmt.setString(2, name);
+                int updated = stmt.executeUpdate();
+                stmt.close();
+                stmt = null;
+
+                if (updated > 0) {
+                    query = new StringBuffer("SELECT NEXT_ID FROM ").append(counterTable)
+                            .append(" WHERE NAME = ?").toString();
+                    stmt = con.prepareStatement(query);
+                    stmt.setString(1, name);
+                    ResultSet rs = stmt.executeQuery();
+                    if (!rs.next()) {
+                        throw new SQLException("Error reserving ID block: no row for " + name);
+                    }
+                    long next = rs.getLong(1);
+                    con.commit();
+                    return next - size;
+                }
+
+                // no counter row for this table yet, start above the current maximum
+                query = new StringBuffer("SELECT MAX(").append(map.getIDField())
+                        .append(") FROM ").append(name).toString();
+                stmt = con.prepareStatement(query);
+                ResultSet rs = stmt.executeQuery();
+                long first = (rs.next() ? rs.getLong(1) : 0) + 1;
+                stmt.close();
+                stmt = null;
+
+                query = new StringBuffer("INSERT INTO ").append(counterTable)
+                        .append(" (NAME, NEXT_ID) VALUES (?, ?)").toString();
+                stmt = con.prepareStatement(query);
+                stmt.setString(1, name);
+                stmt.setLong(2, first + size);
+                try {
+                    stmt.executeUpdate();
+                    con.commit();
+                    return first;
+                } catch (SQLException x) {
+                    // another instance may have created the row meanwhile
+                    con.rollback();
+                    if (attempt > 0) {
+                        throw x;
+                    }
+                }
+                stmt.close();
+                stmt = null;
+            }
+        } catch (Exception x) {
+            try {
+                con.rollback();
+            } catch (Exception ignore) {
+            }
+            // the connection may be broken, open a new one next time
+            source.closeIDConnection();
+            throw x;
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL RESERVE_IDS", name,
+                                logTimeStart, logTimeStop, query);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Gererates an ID for use with the embedded database. Not synchronized on
+     * the node manager, the database's id generator does its own locking.
      */
-    synchronized String generateEmbeddedID(DbMapping map) throws Exception {
+    String generateEmbeddedID(DbMapping map) throws Exception {
         return db.nextID();
     }
 
@@ -870,41 +1556,91 @@ public final class NodeManager {
             // this should never be called for embedded nodes
             throw new RuntimeException("getNodeIDs called for non-relational node " + home);
         }
-        List retval = new ArrayList();
-
         // if we do a groupby query (creating an intermediate layer of groupby nodes),
         // retrieve the value of that field instead of the primary key
-        Connection con = type.getConnection();
+        StringBuffer b = rel.getIdSelect();
+        String query;
+
+        if (home.getSubnodeRelation() != null) {
+            // subnode relation was explicitly set
+            query = b.append(" ").append(home.getSubnodeRelation()).toString();
+        } else {
+            // let relation object build the query
+            rel.buildQuery(b, home, true, false);
+            query = b.toString();
+        }
+
+        String[] ids = null;
+        String cacheKey = null;
+        // read the serial numbers before running the query, so changes made
+        // meanwhile invalidate the cached result
+        long dataChange = 0;
+        long typeChange = 0;
+        QueryCache queries = queryCache;
+
+        if (queries != null) {
+            cacheKey = QueryCache.getKey(type, query, rel.maxSize);
+            // partitions are derived from the relation's constraints, which an
+            // explicit subnode relation doesn't use
+            dataChange = home.getSubnodeRelation() != null ?
+                    type.getLastDataChange() : type.getLastDataChange(rel, home);
+            typeChange = type.getLastTypeChange();
+            ids = queries.get(cacheKey, dataChange, typeChange);
+        }
+
+        if (ids == null) {
+            ids = getIDs(type, query, rel.maxSize);
+            // results read from a lagging replica may predate the stamps
+            if (queries != null && !type.getDbSource().isReadingFromReplica()) {
+                queries.put(cacheKey, dataChange, typeChange, ids);
+            }
+        }
+
+        List retval = new ArrayList(ids.length);
+        // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
+        Key k = (rel.groupby != null) ? home.getKey() : null;
+
+        for (int i = 0; i < ids.length; i++) {
+            // make the proper key for the object, either a generic DB key or a groupby key
+            Key key = (rel.groupby == null)
+                    ? (Key) new DbKey(rel.otherType, ids[i])
+                    : (Key) new SyntheticKey(k, ids[i]);
+            retval.add(new NodeHandle(key));
+
+            // if these are groupby nodes, evict nullNode keys
+            if (rel.groupby != null) {
+                Node n = (Node) cache.get(key);
+
+                if ((n != null) && n.isNullNode()) {
+                    evictKey(key);
+                }
+            }
+        }
+
+        return retval;
+    }
+
+    /**
+     * Run a query selecting the ids of a collection.
+     */
+    private String[] getIDs(DbMapping type, String query, int maxRows) throws Exception {
+        List retval = new ArrayList();
+        Connection con = type.getReadConnection();
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
         Statement stmt = null;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
-        String query = null;
 
         try {
-            StringBuffer b = rel.getIdSelect();
-
-            if (home.getSubnodeRelation() != null) {
-                // subnode relation was explicitly set
-                query = b.append(" ").append(home.getSubnodeRelation()).toString();
-            } else {
-                // let relation object build the query
-                rel.buildQuery(b, home, true, false);
-                query = b.toString();
-            }
-
             stmt = con.createStatement();
 
-            if (rel.maxSize > 0) {
-                stmt.setMaxRows(rel.maxSize);
+            if (maxRows > 0) {
+                stmt.setMaxRows(maxRows);
             }
 
             ResultSet result = stmt.executeQuery(query);
 
-            // problem: how do we derive a SyntheticKey from a not-yet-persistent Node?
-            Key k = (rel.groupby != null) ? home.getKey() : null;
-
             while (result.next()) {
                 String kstr = result.getString(1);
 
@@ -914,20 +1650,7 @@ public final class NodeManager {
                     continue;
                 }
 
-                // make the proper key for the object, either a generic DB key or a groupby key
-                Key key = (rel.groupby == null)
-                        ? (Key) new DbKey(rel.otherType, kstr)
-                        : (Key) new SyntheticKey(k, kstr);
-                retval.add(new NodeHandle(key));
-
-                // if these are groupby nodes, evict nullNode keys
-                if (rel.groupby != null) {
-                    Node n = (Node) cache.get(key);
-
-                    if ((n != null) && n.isNullNode()) {
-                        evictKey(key);
-                    }
-                }
+                retval.add(kstr);
             }
         } finally {
             if (logSql) {
@@ -943,7 +1666,7 @@ public final class NodeManager {
             }
         }
 
-        return retval;
+        return (String[]) retval.toArray(new String[retval.size()]);
     }
 
     /**
@@ -964,12 +1687,12 @@ public final class NodeManager {
         List retval = new ArrayList();
         DbMapping dbm = rel.otherType;
 
-        Connection con = dbm.getConnection();
+        Connection con = dbm.getReadConnection();
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
         Statement stmt = con.createStatement();
-        DbColumn[] columns = dbm.getColumns();
+        DbColumn[] columns = dbm.getSelectColumns();
         Relation[] joins = dbm.getJoins();
         String query = null;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
@@ -1024,193 +1747,1024 @@ public final class NodeManager {
         return retval;
     }
     
-    protected List collectMissingKeys(SubnodeList list, int start, int length) {
-        List retval = null;
-        for (int i = start; i < start + length; i++) {
-            NodeHandle handle = list.get(i);
-            if (handle != null && !cache.containsKey(handle.getKey())) {
-                if (retval == null) {
-                    retval = new ArrayList();
-                }
-                retval.add(handle.getKey().getID());
-            }
-        }
-        return retval;
-    }
-
     /**
+     * Open a forward-only cursor over the child nodes of the home node which
+     * are defined by Relation rel. Relational collections are read from a
+     * server-side cursor on a pooled connection of their own, so they are never
+     * loaded completely. Other collections are iterated from their subnode list.
      *
+     * @param home the parent node of the collection
+     * @param rel the relation of the collection
+     * @param windowSize the number of nodes to materialize at once
+     * @return the cursor
      */
-    public void prefetchNodes(Node home, Relation rel, SubnodeList list, int start, int length)
-                       throws Exception {
-        DbMapping dbm = rel.otherType;
-
-        // this does nothing for objects in the embedded database
-        if (dbm != null && dbm.isRelational()) {
-            // int missing = cache.containsKeys(keys);
-            List missing = collectMissingKeys(list, start, length);
-
-            if (missing != null) {
-                Connection con = dbm.getConnection();
-                // set connection to read-only mode
-                if (!con.isReadOnly()) con.setReadOnly(true);
-
-                Statement stmt = con.createStatement();
-                DbColumn[] columns = dbm.getColumns();
-                Relation[] joins = dbm.getJoins();
-                String query = null;
-                long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+    public NodeCursor openCursor(Node home, Relation rel, int windowSize) throws Exception {
+        if ((rel == null) || (rel.otherType == null) || !rel.otherType.isRelational() ||
+                rel.groupby != null) {
+            return new NodeCursor(home.getSubnodes());
+        }
 
-                try {
-                    StringBuffer b = dbm.getSelect(null).append(" WHERE ");
-                    String idfield = (rel.groupby != null) ? rel.groupby : dbm.getIDField();
-                    String[] ids = (String[]) missing.toArray(new String[missing.size()]);
+        Transactor tx = Transactor.getInstanceOrFail();
+        DbMapping dbm = rel.otherType;
+        DbColumn[] columns = dbm.getSelectColumns();
+        // the transaction may already hold a connection of the pool, so don't
+        // wait for one that it might have to return itself
+        ConnectionPool pool = dbm.getDbSource().getConnectionPool();
+        Connection con = pool.tryGetConnection();
+        if (con == null) {
+            throw new SQLException("Can't open cursor on " + dbm.getTableName() +
+                    ": all " + pool.getMaxActive() + " connections to " +
+                    dbm.getDbSourceName() + " are in use");
+        }
+        Statement stmt = null;
+        String query = null;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
-                    dbm.appendCondition(b, idfield, ids);
-                    dbm.addJoinConstraints(b, " AND ");
+        try {
+            // set connection to read-only mode
+            if (!con.isReadOnly()) con.setReadOnly(true);
+            // some drivers only use cursors within transactions
+            con.setAutoCommit(false);
 
-                    if (rel.groupby != null) {
-                        rel.renderConstraints(b, home, " AND ");
+            stmt = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(cursorFetchSize);
 
-                        if (rel.order != null) {
-                            b.append(" ORDER BY ");
-                            b.append(rel.order);
-                        }
-                    }
+            StringBuffer b = dbm.getSelect(rel);
 
-                    query = b.toString();
+            if (home.getSubnodeRelation() != null) {
+                b.append(home.getSubnodeRelation());
+            } else {
+                // let relation object build the query
+                rel.buildQuery(b, home, true, false);
+            }
 
-                    ResultSet rs = stmt.executeQuery(query);
+            query = b.toString();
 
-                    String groupbyProp = null;
-                    HashMap groupbySubnodes = null;
+            if (rel.maxSize > 0) {
+                stmt.setMaxRows(rel.maxSize);
+            }
 
-                    if (rel.groupby != null) {
-                        groupbyProp = dbm.columnNameToProperty(rel.groupby);
-                        groupbySubnodes = new HashMap();
-                    }
+            ResultSet rs = stmt.executeQuery(query);
+            NodeCursor cursor = new NodeCursor(this, dbm, columns, con, stmt, rs,
+                                               Math.max(1, windowSize));
+            tx.registerCursor(cursor);
+            return cursor;
+        } catch (Exception x) {
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+            try {
+                con.close();
+            } catch (Exception ignore) {
+            }
+            throw x;
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_CURSOR", dbm.getTableName(),
+                        logTimeStart, logTimeStop, query);
+            }
+        }
+    }
+
+    /**
+     * Read the next window of nodes from the result set of a NodeCursor and
+     * register them with the cache.
+     */
+    List fetchCursorWindow(ResultSet rs, DbMapping dbm, DbColumn[] columns, int size)
+                throws Exception {
+        Relation[] joins = dbm.getJoins();
+        List nodes = new ArrayList(size);
+
+        while (nodes.size() < size && rs.next()) {
+            // create new Nodes.
+            Node node = createNode(dbm, rs, columns, 0);
+            if (node == null) {
+                continue;
+            }
+            nodes.add(registerNewNode(node, null));
+
+            fetchJoinedNodes(rs, joins, columns.length);
+        }
+
+        return nodes;
+    }
+
+    protected List collectMissingKeys(SubnodeList list, int start, int length) {
+        List retval = null;
+        for (int i = start; i < start + length; i++) {
+            NodeHandle handle = list.get(i);
+            if (handle != null && !cache.containsKey(handle.getKey())) {
+                if (retval == null) {
+                    retval = new ArrayList();
+                }
+                retval.add(handle.getKey().getID());
+            }
+        }
+        return retval;
+    }
+
+    /**
+     *
+     */
+    public void prefetchNodes(Node home, Relation rel, SubnodeList list, int start, int length)
+                       throws Exception {
+        DbMapping dbm = rel.otherType;
+
+        // this does nothing for objects in the embedded database
+        if (dbm != null && dbm.isRelational()) {
+            // int missing = cache.containsKeys(keys);
+            List missing = collectMissingKeys(list, start, length);
 
-                    String accessProp = null;
+            if (missing != null) {
+                String[][] chunks = splitPrefetchKeys(missing);
+                List[] results = new List[chunks.length];
 
-                    if ((rel.accessName != null) && !rel.usesPrimaryKey()) {
-                        accessProp = dbm.columnNameToProperty(rel.accessName);
+                try {
+                    Connection con = dbm.getReadConnection();
+                    // set connection to read-only mode
+                    if (!con.isReadOnly()) con.setReadOnly(true);
+
+                    // grouped collections are fetched sequentially as their constraints
+                    // are rendered from the home node
+                    if (prefetchThreads > 1 && chunks.length > 1 && rel.groupby == null) {
+                        fetchChunksInParallel(con, home, rel, dbm, chunks, results);
+                    } else {
+                        for (int i = 0; i < chunks.length; i++) {
+                            results[i] = fetchPrefetchChunk(con, home, rel, dbm, chunks[i]);
+                        }
                     }
+                } catch (Exception x) {
+                    app.logError("Error in prefetchNodes()", x);
+                }
 
-                    while (rs.next()) {
-                        // create new Nodes.
-                        Node node = createNode(dbm, rs, columns, 0);
-                        if (node == null) {
-                            continue;
+                // register the nodes in this thread as onInit() may be invoked on them
+                registerPrefetchedNodes(home, rel, dbm, results);
+            }
+        }
+    }
+
+    /**
+     * Prefetch the nodes referenced by the given properties of a range of
+     * child nodes. The foreign keys of the children are collected, and the
+     * referenced nodes missing from the cache are fetched with one query per
+     * chunk of ids and registered with the cache. Properties that aren't
+     * simple references to the primary key of a relational type are ignored.
+     *
+     * @param home the parent node of the collection
+     * @param rel the relation of the collection
+     * @param list the subnode list of the collection
+     * @param start the index of the first child node
+     * @param length the number of child nodes
+     * @param propNames the names of the reference properties to prefetch
+     */
+    public void prefetchReferences(Node home, Relation rel, SubnodeList list, int start,
+                                   int length, String[] propNames)
+                       throws Exception {
+        DbMapping dbm = rel.otherType;
+
+        if (dbm == null || !dbm.isRelational() || rel.groupby != null ||
+                propNames == null || propNames.length == 0) {
+            return;
+        }
+
+        // collect the ids of referenced nodes missing from the cache
+        Relation[] refs = new Relation[propNames.length];
+        Set[] missing = new Set[propNames.length];
+        for (int i = 0; i < propNames.length; i++) {
+            Relation ref = dbm.propertyToRelation(propNames[i]);
+            if (ref != null && ref.isReference() && ref.usesPrimaryKey() &&
+                    ref.otherType != null && ref.otherType.isRelational()) {
+                refs[i] = ref;
+                missing[i] = new LinkedHashSet();
+            }
+        }
+
+        int end = Math.min(start + length, list.size());
+        for (int c = start; c < end; c++) {
+            NodeHandle handle = list.get(c);
+            Node child = handle == null ? null : getNode(handle.getKey());
+            if (child == null) {
+                continue;
+            }
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] == null) {
+                    continue;
+                }
+                Property prop = (Property) child.getPropMap().get(refs[i].propName);
+                NodeHandle ref = prop == null || prop.getType() != Property.NODE ?
+                        null : prop.getNodeHandle();
+                if (ref != null && !cache.containsKey(ref.getKey())) {
+                    missing[i].add(ref.getKey().getID());
+                }
+            }
+        }
+
+        for (int i = 0; i < refs.length; i++) {
+            if (refs[i] == null || missing[i].isEmpty()) {
+                continue;
+            }
+            DbMapping refdbm = refs[i].otherType;
+            String[][] chunks = splitPrefetchKeys(new ArrayList(missing[i]));
+            List[] results = new List[chunks.length];
+
+            try {
+                Connection con = refdbm.getReadConnection();
+                // set connection to read-only mode
+                if (!con.isReadOnly()) con.setReadOnly(true);
+
+                for (int c = 0; c < chunks.length; c++) {
+                    results[c] = fetchPrefetchChunk(con, home, refs[i], refdbm, chunks[c]);
+                }
+            } catch (Exception x) {
+                app.logError("Error in prefetchReferences()", x);
+            }
+
+            for (int c = 0; c < results.length; c++) {
+                if (results[c] == null) {
+                    continue;
+                }
+                for (Iterator it = results[c].iterator(); it.hasNext(); ) {
+                    Node[] row = (Node[]) it.next();
+                    for (int j = 0; j < row.length; j++) {
+                        if (row[j] != null) {
+                            registerNewNode(row[j], null);
                         }
-                        Key key = node.getKey();
-                        Key secondaryKey = null;
-
-                        // for grouped nodes, collect subnode lists for the intermediary
-                        // group nodes.
-                        String groupName = null;
-
-                        if (groupbyProp != null) {
-                            groupName = node.getString(groupbyProp);
-                            if (groupName != null) {
-                                Node groupNode = (Node) groupbySubnodes.get(groupName);
-
-                                if (groupNode == null) {
-                                    groupNode = home.getGroupbySubnode(groupName, true);
-                                    groupbySubnodes.put(groupName, groupNode);
-                                }
-
-                                SubnodeList subnodes = groupNode.getSubnodeList();
-                                if (subnodes == null) {
-                                    subnodes = groupNode.createSubnodeList();
-                                    // mark subnodes as up-to-date
-                                    subnodes.lastSubnodeFetch = subnodes.getLastSubnodeChange();
-                                }
-                                subnodes.add(new NodeHandle(key));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the nodes for a list of keys. Nodes found in the transactor or the
+     * cache are used as they are. The other nodes are fetched with one query
+     * per chunk of ids of the same relational type and registered with the
+     * cache, remaining keys are resolved one by one.
+     *
+     * @param keys the keys
+     * @return the nodes in the order of the keys, with null for missing nodes
+     */
+    public Node[] getNodes(Key[] keys) throws Exception {
+        Transactor tx = Transactor.getInstanceOrFail();
+        Node[] nodes = new Node[keys.length];
+        // ids to fetch, by DbMapping
+        HashMap missing = new HashMap();
+
+        for (int i = 0; i < keys.length; i++) {
+            Key key = keys[i];
+            if (key == null) {
+                continue;
+            }
+            Node node = tx.getCleanNode(key);
+            if (node == null || node.getState() == Node.INVALID) {
+                node = (Node) cache.get(key);
+            }
+            if (node != null && node.getState() != Node.INVALID && !node.isNullNode()) {
+                tx.visitCleanNode(key, node);
+                nodes[i] = node;
+                continue;
+            }
+            DbMapping dbm = key instanceof DbKey ? app.getDbMapping(key.getStorageName()) : null;
+            if (dbm != null && dbm.isRelational() && tx.getDirtyNode(key) == null &&
+                    isValidID(dbm, key.getID())) {
+                Set ids = (Set) missing.get(dbm);
+                if (ids == null) {
+                    ids = new LinkedHashSet();
+                    missing.put(dbm, ids);
+                }
+                ids.add(key.getID());
+            }
+        }
+
+        // nodes by the keys that were queried, null if they don't exist
+        HashMap fetched = new HashMap();
+
+        for (Iterator it = missing.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            DbMapping dbm = (DbMapping) entry.getKey();
+            Set ids = (Set) entry.getValue();
+            String[][] chunks = splitPrefetchKeys(new ArrayList(ids));
+
+            Connection con = dbm.getReadConnection();
+            // set connection to read-only mode
+            if (!con.isReadOnly()) con.setReadOnly(true);
+
+            for (int c = 0; c < chunks.length; c++) {
+                List rows = fetchPrefetchChunk(con, null, null, dbm, chunks[c], null);
+                for (Iterator r = rows.iterator(); r.hasNext(); ) {
+                    Node[] row = (Node[]) r.next();
+                    for (int j = 0; j < row.length; j++) {
+                        if (row[j] != null) {
+                            Node node = registerNewNode(row[j], null);
+                            if (j == 0) {
+                                fetched.put(node.getKey(), node);
                             }
                         }
+                    }
+                }
+            }
+            for (Iterator i = ids.iterator(); i.hasNext(); ) {
+                Key key = new DbKey(dbm, (String) i.next());
+                if (!fetched.containsKey(key)) {
+                    fetched.put(key, null);
+                }
+            }
+        }
 
-                        // if relation doesn't use primary key as accessName, get secondary key
-                        if (accessProp != null) {
-                            String accessName = node.getString(accessProp);
-                            if (accessName != null) {
-                                if (groupName == null) {
-                                    secondaryKey = new SyntheticKey(home.getKey(), accessName);
-                                } else {
-                                    Key groupKey = new SyntheticKey(home.getKey(), groupName);
-                                    secondaryKey = new SyntheticKey(groupKey, accessName);
-                                }
-                            }
+        for (int i = 0; i < keys.length; i++) {
+            if (nodes[i] == null && keys[i] != null) {
+                if (fetched.containsKey(keys[i])) {
+                    Node node = (Node) fetched.get(keys[i]);
+                    if (node != null) {
+                        tx.visitCleanNode(keys[i], node);
+                        nodes[i] = node;
+                    }
+                } else if (!(keys[i] instanceof DbKey) ||
+                        isValidID(app.getDbMapping(keys[i].getStorageName()), keys[i].getID())) {
+                    nodes[i] = getNode(keys[i]);
+                }
+            }
+        }
+
+        return nodes;
+    }
+
+    /**
+     * Fetch the child nodes of a relational collection with the given access
+     * names that are missing from the cache with one query per chunk of names,
+     * and register them with the cache under their secondary keys. The nodes
+     * can then be retrieved with getNode(Node, String, Relation).
+     *
+     * @param home the parent node of the collection
+     * @param rel the relation of the collection, which must have an access name
+     * @param names the access names
+     */
+    public void prefetchNodesByName(Node home, Relation rel, String[] names)
+                throws Exception {
+        DbMapping dbm = rel.otherType;
+
+        if (dbm == null || !dbm.isRelational() || rel.accessName == null ||
+                rel.groupby != null || rel.virtual || rel.usesPrimaryKey()) {
+            return;
+        }
+
+        List missing = new ArrayList();
+        for (int i = 0; i < names.length; i++) {
+            Key key = new SyntheticKey(home.getKey(), names[i]);
+            if (names[i] != null && !missing.contains(names[i]) && !cache.containsKey(key)) {
+                missing.add(names[i]);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+
+        String[][] chunks = splitPrefetchKeys(missing);
+        List[] results = new List[chunks.length];
+
+        Connection con = dbm.getReadConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly()) con.setReadOnly(true);
+
+        for (int i = 0; i < chunks.length; i++) {
+            results[i] = fetchPrefetchChunk(con, home, rel, dbm, chunks[i], rel.accessName);
+        }
+
+        // registers the nodes with their secondary keys
+        registerPrefetchedNodes(home, rel, dbm, results);
+    }
+
+    /**
+     * Check if an id can be bound to the id column of a mapping.
+     */
+    private boolean isValidID(DbMapping dbm, String id)
+            throws ClassNotFoundException, SQLException {
+        DbColumn idcol = dbm == null || !dbm.isRelational() ?
+                null : dbm.getColumn(dbm.getIDField());
+        if (id == null) {
+            return false;
+        } else if (idcol == null || idcol.needsQuotes()) {
+            return true;
+        }
+        try {
+            Long.parseLong(id);
+            return true;
+        } catch (NumberFormatException x) {
+            return false;
+        }
+    }
+
+    /**
+     * Split the keys to prefetch into chunks whose sizes are taken from
+     * PREFETCH_BUCKETS. Chunks are padded by repeating their last key, so only a
+     * few distinct statements are ever prepared for a prefetch query.
+     */
+    private String[][] splitPrefetchKeys(List keys) {
+        int max = PREFETCH_BUCKETS[PREFETCH_BUCKETS.length - 1];
+        int size = keys.size();
+        String[][] chunks = new String[(size + max - 1) / max][];
+
+        for (int c = 0; c < chunks.length; c++) {
+            int from = c * max;
+            int count = Math.min(max, size - from);
+            int bucket = max;
+            for (int i = 0; i < PREFETCH_BUCKETS.length; i++) {
+                if (PREFETCH_BUCKETS[i] >= count) {
+                    bucket = PREFETCH_BUCKETS[i];
+                    break;
+                }
+            }
+            String[] ids = new String[bucket];
+            for (int i = 0; i < bucket; i++) {
+                ids[i] = (String) keys.get(from + Math.min(i, count - 1));
+            }
+            chunks[c] = ids;
+        }
+        return chunks;
+    }
+
+    /**
+     * Fetch prefetch chunks in parallel. The current thread fetches chunks on
+     * the given connection, while up to prefetchThreads - 1 threads of the
+     * worker pool help out on extra connections to the same database. Workers
+     * only take a connection if one is free right away, and chunks are claimed
+     * one at a time, so the current thread fetches all chunks sequentially if
+     * no worker or connection is available.
+     */
+    private void fetchChunksInParallel(Connection con, Node home, Relation rel,
+                                       DbMapping dbm, String[][] chunks, List[] results)
+                throws Exception {
+        PrefetchJob job = new PrefetchJob(home, rel, dbm, chunks, results,
+                dbm.getDbSource().isReplicaConnection(con));
+        int helpers = Math.min(prefetchThreads, chunks.length) - 1;
+
+        for (int i = 0; i < helpers; i++) {
+            if (!prefetchWorkers.execute(job)) {
+                break;
+            }
+        }
+
+        job.fetch(con);
+        job.await();
+
+        if (job.error != null) {
+            throw job.error;
+        }
+    }
+
+    /**
+     * Fetch one chunk of prefetched nodes from the database. This only creates
+     * the nodes and does not register them with the cache, so it may be called
+     * from any thread.
+     *
+     * @return a list of Node arrays, each containing a node followed by its joined nodes
+     */
+    private List fetchPrefetchChunk(Connection con, Node home, Relation rel,
+                                    DbMapping dbm, String[] ids)
+                throws Exception {
+        return fetchPrefetchChunk(con, home, rel, dbm, ids, rel == null ? null : rel.groupby);
+    }
 
+    /**
+     * Fetch one chunk of nodes whose key column matches one of the given values.
+     * If keyColumn is null, the values are matched against the primary key.
+     * Otherwise the constraints of the relation are applied as well.
+     *
+     * @return a list of Node arrays, each containing a node followed by its joined nodes
+     */
+    private List fetchPrefetchChunk(Connection con, Node home, Relation rel,
+                                    DbMapping dbm, String[] ids, String keyColumn)
+                throws Exception {
+        DbColumn[] columns = dbm.getSelectColumns();
+        Relation[] joins = dbm.getJoins();
+        String idfield = (keyColumn != null) ? keyColumn : dbm.getIDField();
+        DbColumn idcol = dbm.getColumn(idfield);
+        List rows = new ArrayList();
+        PreparedStatement stmt = null;
+        String query = null;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            StringBuffer b = dbm.getSelect(null).append(" WHERE ");
+
+            dbm.appendParameterCondition(b, idfield, ids.length);
+            dbm.addJoinConstraints(b, " AND ");
+
+            if (keyColumn != null) {
+                rel.renderConstraints(b, home, " AND ");
+
+                if (rel.order != null) {
+                    b.append(" ORDER BY ");
+                    b.append(rel.order);
+                }
+            }
+
+            query = b.toString();
+            stmt = con.prepareStatement(query);
+
+            for (int i = 0; i < ids.length; i++) {
+                setStatementValue(stmt, i + 1, ids[i], idcol);
+            }
+
+            ResultSet rs = stmt.executeQuery();
+
+            while (rs.next()) {
+                // create new Nodes.
+                Node node = createNode(dbm, rs, columns, 0);
+                if (node == null) {
+                    continue;
+                }
+                Node[] row = new Node[joins.length + 1];
+                row[0] = node;
+
+                // create joined objects
+                int resultSetOffset = columns.length;
+                for (int i = 0; i < joins.length; i++) {
+                    DbMapping jdbm = joins[i].otherType;
+                    DbColumn[] jcolumns = jdbm.getSelectColumns();
+                    row[i + 1] = createNode(jdbm, rs, jcolumns, resultSetOffset);
+                    resultSetOffset += jcolumns.length;
+                }
+                rows.add(row);
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(),
+                                logTimeStart, logTimeStop, query);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+
+        return rows;
+    }
+
+    /**
+     * Register nodes fetched by fetchPrefetchChunk() with the cache, and add
+     * grouped nodes to the subnode lists of their group nodes.
+     */
+    private void registerPrefetchedNodes(Node home, Relation rel, DbMapping dbm,
+                                         List[] results) {
+        String groupbyProp = null;
+        HashMap groupbySubnodes = null;
+
+        if (rel.groupby != null) {
+            groupbyProp = dbm.columnNameToProperty(rel.groupby);
+            groupbySubnodes = new HashMap();
+        }
+
+        String accessProp = null;
+
+        if ((rel.accessName != null) && !rel.usesPrimaryKey()) {
+            accessProp = dbm.columnNameToProperty(rel.accessName);
+        }
+
+        for (int c = 0; c < results.length; c++) {
+            if (results[c] == null) {
+                continue;
+            }
+
+            for (Iterator it = results[c].iterator(); it.hasNext(); ) {
+                Node[] row = (Node[]) it.next();
+                Node node = row[0];
+                Key key = node.getKey();
+                Key secondaryKey = null;
+
+                // for grouped nodes, collect subnode lists for the intermediary
+                // group nodes.
+                String groupName = null;
+
+                if (groupbyProp != null) {
+                    groupName = node.getString(groupbyProp);
+                    if (groupName != null) {
+                        Node groupNode = (Node) groupbySubnodes.get(groupName);
+
+                        if (groupNode == null) {
+                            groupNode = home.getGroupbySubnode(groupName, true);
+                            groupbySubnodes.put(groupName, groupNode);
+                        }
+
+                        SubnodeList subnodes = groupNode.getSubnodeList();
+                        if (subnodes == null) {
+                            subnodes = groupNode.createSubnodeList();
+                            // mark subnodes as up-to-date
+                            subnodes.lastSubnodeFetch = subnodes.getLastSubnodeChange();
+                        }
+                        subnodes.add(new NodeHandle(key));
+                    }
+                }
+
+                // if relation doesn't use primary key as accessName, get secondary key
+                if (accessProp != null) {
+                    String accessName = node.getString(accessProp);
+                    if (accessName != null) {
+                        if (groupName == null) {
+                            secondaryKey = new SyntheticKey(home.getKey(), accessName);
+                        } else {
+                            Key groupKey = new SyntheticKey(home.getKey(), groupName);
+                            secondaryKey = new SyntheticKey(groupKey, accessName);
                         }
+                    }
+
+                }
+
+                // register new nodes with the cache. If an up-to-date copy
+                // existed in the cache, use that.
+                registerNewNode(node, secondaryKey);
+                for (int i = 1; i < row.length; i++) {
+                    if (row[i] != null) {
+                        registerNewNode(row[i], null);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A block of reserved ids handed out by generateBlockID().
+     */
+    static final class IDBlock {
+        // the next id to hand out
+        long next;
+        // the first id beyond this block
+        long limit;
+    }
+
+    /**
+     * The chunks of a prefetch, fetched by the requesting thread and by worker
+     * threads on connections of their own.
+     */
+    class PrefetchJob implements Runnable {
+        final Node home;
+        final Relation rel;
+        final DbMapping dbm;
+        final String[][] chunks;
+        final List[] results;
+        final boolean replica;
+        // the next chunk to fetch
+        private int next = 0;
+        // the number of threads fetching chunks
+        private int fetching = 0;
+        Exception error;
+
+        PrefetchJob(Node home, Relation rel, DbMapping dbm, String[][] chunks,
+                    List[] results, boolean replica) {
+            this.home = home;
+            this.rel = rel;
+            this.dbm = dbm;
+            this.chunks = chunks;
+            this.results = results;
+            this.replica = replica;
+        }
+
+        /**
+         * Fetch chunks on the given connection until none are left.
+         */
+        void fetch(Connection con) {
+            synchronized (this) {
+                fetching++;
+            }
+            try {
+                int i;
+                while ((i = claim()) > -1) {
+                    results[i] = fetchPrefetchChunk(con, home, rel, dbm, chunks[i]);
+                }
+            } catch (Exception x) {
+                fail(x);
+            } finally {
+                synchronized (this) {
+                    fetching--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Wait for the threads still fetching chunks.
+         */
+        synchronized void await() throws InterruptedException {
+            while (fetching > 0) {
+                wait();
+            }
+        }
+
+        private synchronized int claim() {
+            return (error == null && next < chunks.length) ? next++ : -1;
+        }
+
+        private synchronized boolean isDone() {
+            return error != null || next >= chunks.length;
+        }
+
+        private synchronized void fail(Exception x) {
+            if (error == null) {
+                error = x;
+            }
+        }
+
+        /**
+         * Help fetching the chunks from a worker thread.
+         */
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            Connection con = null;
+            try {
+                con = dbm.getDbSource().tryGetExtraConnection(replica);
+                if (con == null) {
+                    // the pool is busy, leave the chunks to the other threads
+                    return;
+                }
+                // set connection to read-only mode
+                if (!con.isReadOnly()) con.setReadOnly(true);
+                fetch(con);
+            } catch (Exception x) {
+                fail(x);
+            } finally {
+                if (con != null) {
+                    try {
+                        con.close();
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up the children of an embedded node by the value of a property
+     * declared in _children.index. The ids returned are candidates that
+     * still have to be checked against the query.
+     *
+     * @return the ids of the matching children, or null if the lookup
+     *         can't be served by an index and the children have to be scanned
+     */
+    public String[] findSubnodeIds(Node home, String propname, Object from, Object to,
+                                   boolean range) throws Exception {
+        DbMapping dbmap = home.getDbMapping();
+        if (dbmap == null || dbmap.isRelational() || !dbmap.isChildIndex(propname)) {
+            return null;
+        }
+        DbMapping submap = dbmap.getSubnodeMapping();
+        if (submap != null && submap.isRelational()) {
+            return null;
+        }
+        // the index only reflects committed changes
+        if (home.getState() != Node.CLEAN) {
+            return null;
+        }
+        Transactor tx = Transactor.getInstance();
+        if (tx != null && tx.hasDirtyNodes()) {
+            return null;
+        }
+        ChildIndex index = childIndex;
+        if (index == null) {
+            return null;
+        }
+        return index.find(home, propname, from, to, range);
+    }
+
+    /**
+     * Count the nodes contained in the child collection of the home node
+     * which is defined by Relation rel.
+     */
+    public int countNodes(Node home, Relation rel) throws Exception {
+        DbMapping type = rel == null ? null : rel.otherType;
+        if (type == null || !type.isRelational()) {
+            // this should never be called for embedded nodes
+            throw new RuntimeException("countNodes called for non-relational node " + home);
+        }
+        int retval = 0;
+        StringBuffer b = rel.getCountSelect();
+        String query;
+
+        if (home.getSubnodeRelation() != null) {
+            // use the manually set subnoderelation of the home node
+            query = b.append(" ").append(home.getSubnodeRelation()).toString();
+        } else {
+            // let relation object build the query
+            rel.buildQuery(b, home, false, true);
+            query = b.toString();
+        }
+
+        String cacheKey = null;
+        String indexKey = null;
+        long serial = -1;
+        long dataChange = 0;
+        long typeChange = 0;
+        CountCache counts = countCache;
+
+        if (counts != null) {
+            cacheKey = QueryCache.getKey(type, query, rel.maxSize);
+            // must be called before reading the serial numbers
+            serial = counts.beginCount();
+            if (home.getSubnodeRelation() != null) {
+                dataChange = type.getLastDataChange();
+            } else {
+                dataChange = type.getLastDataChange(rel, home);
+                if (isIncrementalCount(rel)) {
+                    String partitionKey = rel.getPartitionKey(home);
+                    if (partitionKey != null) {
+                        indexKey = CountCache.getPartitionIndexKey(type, partitionKey);
+                    }
+                }
+            }
+            typeChange = type.getLastTypeChange();
+            int count = counts.get(cacheKey, dataChange, typeChange);
+            if (count > -1) {
+                return (rel.maxSize > 0) ? Math.min(rel.maxSize, count) : count;
+            }
+        }
+
+        Connection con = type.getReadConnection();
+        // set connection to read-only mode
+        if (!con.isReadOnly()) con.setReadOnly(true);
+
+        Statement stmt = null;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            stmt = con.createStatement();
+            ResultSet rs = stmt.executeQuery(query);
+
+            if (!rs.next()) {
+                retval = 0;
+            } else {
+                retval = rs.getInt(1);
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_COUNT", type.getTableName(),
+                        logTimeStart, logTimeStop, query);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                }
+            }
+        }
+
+        // counts read from a lagging replica may predate the stamps
+        if (counts != null && !type.getDbSource().isReadingFromReplica()) {
+            counts.put(cacheKey, indexKey, dataChange, typeChange, retval, serial);
+        }
 
-                        // register new nodes with the cache. If an up-to-date copy
-                        // existed in the cache, use that.
-                        registerNewNode(node, secondaryKey);
-                        fetchJoinedNodes(rs, joins, columns.length);
-                    }
+        return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
+    }
 
-                } catch (Exception x) {
-                    app.logError("Error in prefetchNodes()", x);
-                } finally {
-                    if (logSql) {
-                        long logTimeStop = System.currentTimeMillis();
-                        logSqlStatement("SQL SELECT_PREFETCH", dbm.getTableName(),
-                                        logTimeStart, logTimeStop, query);
-                    }
-                    if (stmt != null) {
-                        try {
-                            stmt.close();
-                        } catch (Exception ignore) {
-                        }
-                    }
-                }
+    /**
+     * Check if the size of a collection only depends on the values of its partition
+     * columns, so its cached count can be adjusted to inserts and deletes.
+     */
+    private boolean isIncrementalCount(Relation rel) {
+        DbMapping type = rel.otherType;
+        String[] columns = rel.getPartitionColumns();
+        if (columns == null || rel.groupby != null || rel.filter != null ||
+                rel.maxSize > 0 || rel.offset > 0 || rel.seekKey != null ||
+                type.inheritsStorage()) {
+            return false;
+        }
+        // all constraints must be equality conditions on partition columns
+        int constraints = 0;
+        for (int i = 0; i < rel.constraints.length; i++) {
+            if (!rel.constraints[i].foreignKeyIsPrototype()) {
+                constraints++;
             }
         }
+        return constraints == columns.length;
     }
 
     /**
-     * Count the nodes contained in the child collection of the home node
-     * which is defined by Relation rel.
+     * Get the approximate number of nodes contained in the child collection of
+     * the home node. For large collections, this is an estimate read from the
+     * statistics of the database, which is much cheaper to get than an exact
+     * count. Collections estimated to contain fewer nodes than specified by the
+     * approximateCountThreshold app property (default 10000), as well as
+     * collections whose size can't be estimated, are counted exactly.
+     *
+     * Supported for MySQL, PostgreSQL, and, for collections spanning whole
+     * tables, Oracle.
      */
-    public int countNodes(Node home, Relation rel) throws Exception {
+    public int countNodesApproximately(Node home, Relation rel) throws Exception {
         DbMapping type = rel == null ? null : rel.otherType;
         if (type == null || !type.isRelational()) {
             // this should never be called for embedded nodes
-            throw new RuntimeException("countNodes called for non-relational node " + home);
+            throw new RuntimeException("countNodesApproximately called for non-relational node " + home);
         }
-        int retval = 0;
-        Connection con = type.getConnection();
+
+        long estimate = -1;
+        if (rel.groupby == null && home.getSubnodeRelation() == null) {
+            try {
+                estimate = estimateNodes(home, rel);
+            } catch (SQLException x) {
+                app.logError("Error estimating size of " + home + "." + rel.propName, x);
+            }
+        }
+
+        if (estimate < 0 || estimate < approximateCountThreshold) {
+            return countNodes(home, rel);
+        }
+
+        int retval = (int) Math.min(estimate, Integer.MAX_VALUE);
+        return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
+    }
+
+    /**
+     * Read an estimate of the number of nodes in a collection from the database's
+     * statistics. Unconstrained collections use the table statistics, others
+     * use the row estimate of the query plan.
+     *
+     * @return the estimate, or -1 if not available
+     */
+    private long estimateNodes(Node home, Relation rel) throws Exception {
+        DbMapping type = rel.otherType;
+        String table = type.getTableName();
+        boolean unconstrained = rel.constraints.length == 0 && rel.filter == null &&
+                !rel.hasAdditionalTables() && !type.inheritsStorage();
+        boolean isPostgreSQL = type.isPostgreSQL();
+        boolean isMySQL = type.isMySQL();
+        String query;
+
+        if (unconstrained && isPostgreSQL) {
+            query = "SELECT reltuples FROM pg_class WHERE oid = CAST(? AS regclass)";
+        } else if (unconstrained && isMySQL) {
+            query = "SELECT TABLE_ROWS FROM information_schema.TABLES " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?";
+        } else if (unconstrained && type.isOracle()) {
+            query = "SELECT NUM_ROWS FROM USER_TABLES WHERE TABLE_NAME = UPPER(?)";
+        } else if (isPostgreSQL || (isMySQL && !rel.hasAdditionalTables())) {
+            // estimate the rows of the collection query
+            StringBuffer b = new StringBuffer("EXPLAIN SELECT * FROM ").append(table);
+            rel.appendAdditionalTables(b);
+            rel.buildQuery(b, home, false, true);
+            query = b.toString();
+            table = null;
+        } else {
+            return -1;
+        }
+
+        long retval = -1;
+        Connection con = type.getReadConnection();
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
-        Statement stmt = null;
+        PreparedStatement stmt = null;
         long logTimeStart = logSql ? System.currentTimeMillis() : 0;
-        String query = null;
 
         try {
-            StringBuffer b = rel.getCountSelect();
-
-            if (home.getSubnodeRelation() != null) {
-                // use the manually set subnoderelation of the home node
-                query = b.append(" ").append(home.getSubnodeRelation()).toString();
-            } else {
-                // let relation object build the query
-                rel.buildQuery(b, home, false, true);
-                query = b.toString();
+            stmt = con.prepareStatement(query);
+            if (table != null) {
+                stmt.setString(1, table);
             }
+            ResultSet rs = stmt.executeQuery();
 
-            stmt = con.createStatement();
-            ResultSet rs = stmt.executeQuery(query);
-
-            if (!rs.next()) {
-                retval = 0;
+            if (table != null) {
+                if (rs.next()) {
+                    Object value = rs.getObject(1);
+                    if (value instanceof Number) {
+                        retval = ((Number) value).longValue();
+                    }
+                }
+            } else if (isMySQL) {
+                if (rs.next()) {
+                    retval = rs.getLong("rows");
+                    if (rs.wasNull()) {
+                        retval = -1;
+                    }
+                }
             } else {
-                retval = rs.getInt(1);
+                // the first line of the plan contains the total row estimate
+                if (rs.next()) {
+                    String line = rs.getString(1);
+                    int idx = line == null ? -1 : line.indexOf("rows=");
+                    if (idx > -1) {
+                        idx += 5;
+                        int end = idx;
+                        while (end < line.length() && Character.isDigit(line.charAt(end))) {
+                            end++;
+                        }
+                        if (end > idx) {
+                            retval = Long.parseLong(line.substring(idx, end));
+                        }
+                    }
+                }
             }
         } finally {
             if (logSql) {
                 long logTimeStop = System.currentTimeMillis();
-                logSqlStatement("SQL SELECT_COUNT", type.getTableName(),
+                logSqlStatement("SQL SELECT_ESTIMATE", type.getTableName(),
                         logTimeStart, logTimeStop, query);
             }
             if (stmt != null) {
@@ -1221,7 +2775,7 @@ public final class NodeManager {
             }
         }
 
-        return (rel.maxSize > 0) ? Math.min(rel.maxSize, retval) : retval;
+        return retval;
     }
 
     /**
@@ -1236,7 +2790,7 @@ public final class NodeManager {
         }
         Vector retval = new Vector();
 
-        Connection con = rel.otherType.getConnection();
+        Connection con = rel.otherType.getReadConnection();
         // set connection to read-only mode
         if (!con.isReadOnly()) con.setReadOnly(true);
 
@@ -1305,7 +2859,7 @@ public final class NodeManager {
         } else {
             String idfield = dbm.getIDField();
 
-            Statement stmt = null;
+            PreparedStatement stmt = null;
             String query = null;
             long logTimeStart = logSql ? System.currentTimeMillis() : 0;
 
@@ -1314,17 +2868,19 @@ public final class NodeManager {
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
 
-                stmt = con.createStatement();
-
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 
+                // use a parameter for the id so the statement can be reused
                 StringBuffer b = dbm.getSelect(null).append("WHERE ");
-                dbm.appendCondition(b, idfield, kstr);
+                dbm.appendParameterCondition(b, idfield, 1);
                 dbm.addJoinConstraints(b, " AND ");
                 query = b.toString();
 
-                ResultSet rs = stmt.executeQuery(query);
+                stmt = con.prepareStatement(query);
+                setStatementValue(stmt, 1, kstr, dbm.getColumn(idfield));
+
+                ResultSet rs = stmt.executeQuery();
 
                 if (!rs.next()) {
                     return null;
@@ -1355,6 +2911,126 @@ public final class NodeManager {
         return node;
     }
 
+    /**
+     * Fetch the lazy properties of a relational node that haven't been loaded
+     * yet. Other nodes of the same type visited by the current transaction are
+     * loaded along with it, so iterating over a collection doesn't issue one
+     * query per node.
+     */
+    public void loadLazyProperties(Node node) throws Exception {
+        if (!(node.getPropMap() instanceof CompactPropertyMap)) {
+            return;
+        }
+        CompactPropertyMap.SlotTable slots = ((CompactPropertyMap) node.getPropMap()).getSlotTable();
+        DbMapping dbm = node.getDbMapping();
+
+        // collect the nodes to load, starting with the requested one
+        LinkedHashMap nodes = new LinkedHashMap();
+        nodes.put(node.getID(), node);
+        Transactor tx = Transactor.getInstance();
+        if (tx != null) {
+            for (Iterator it = tx.getCleanNodes().iterator(); it.hasNext(); ) {
+                Node other = (Node) it.next();
+                if (nodes.size() >= MAX_LAZY_BATCH) {
+                    break;
+                }
+                Hashtable otherMap = other.getPropMap();
+                if (otherMap instanceof CompactPropertyMap &&
+                        ((CompactPropertyMap) otherMap).getSlotTable() == slots &&
+                        ((CompactPropertyMap) otherMap).hasUnloadedSlots()) {
+                    nodes.put(other.getID(), other);
+                }
+            }
+        }
+
+        // the lazy slots to fetch
+        int lazyCount = 0;
+        for (int k = 0; k < slots.size(); k++) {
+            if (slots.lazy[k]) {
+                lazyCount++;
+            }
+        }
+        int[] lazySlots = new int[lazyCount];
+        for (int k = 0, j = 0; k < slots.size(); k++) {
+            if (slots.lazy[k]) {
+                lazySlots[j++] = k;
+            }
+        }
+
+        String idfield = dbm.getIDField();
+        DbColumn idcol = dbm.getColumn(idfield);
+        PreparedStatement stmt = null;
+        String query = null;
+        long logTimeStart = logSql ? System.currentTimeMillis() : 0;
+
+        try {
+            Connection con = dbm.getConnection();
+            // set connection to read-only mode
+            if (!con.isReadOnly()) con.setReadOnly(true);
+
+            // pad the ids like a prefetch, so only a few statements are prepared
+            String[][] chunks = splitPrefetchKeys(new ArrayList(nodes.keySet()));
+
+            for (int c = 0; c < chunks.length; c++) {
+                String[] ids = chunks[c];
+                StringBuffer b = new StringBuffer("SELECT ").append(idfield);
+                for (int j = 0; j < lazySlots.length; j++) {
+                    b.append(", ").append(slots.columnNames[lazySlots[j]]);
+                }
+                b.append(" FROM ").append(dbm.getTableName()).append(" WHERE ");
+                dbm.appendParameterCondition(b, idfield, ids.length);
+                query = b.toString();
+
+                stmt = con.prepareStatement(query);
+                for (int i = 0; i < ids.length; i++) {
+                    setStatementValue(stmt, i + 1, ids[i], idcol);
+                }
+
+                ResultSet rs = stmt.executeQuery();
+
+                while (rs.next()) {
+                    Node loaded = (Node) nodes.remove(rs.getString(1));
+                    if (loaded == null) {
+                        continue;
+                    }
+                    CompactPropertyMap propMap = (CompactPropertyMap) loaded.getPropMap();
+                    for (int j = 0; j < lazySlots.length; j++) {
+                        int k = lazySlots[j];
+                        Object value = getColumnValue(rs, slots.columns[slots.columnIndexes[k]], j + 2);
+                        if (slots.references[k] && value != null) {
+                            value = new NodeHandle(new DbKey(slots.referenceTypes[k], value.toString()));
+                        }
+                        propMap.setLoadedValue(k, value);
+                    }
+                }
+
+                stmt.close();
+                stmt = null;
+            }
+
+            // rows that have vanished meanwhile have no value
+            for (Iterator it = nodes.values().iterator(); it.hasNext(); ) {
+                CompactPropertyMap propMap = (CompactPropertyMap) ((Node) it.next()).getPropMap();
+                for (int j = 0; j < lazySlots.length; j++) {
+                    propMap.setLoadedValue(lazySlots[j], null);
+                }
+            }
+        } finally {
+            if (logSql) {
+                long logTimeStop = System.currentTimeMillis();
+                logSqlStatement("SQL SELECT_LAZY", dbm.getTableName(),
+                                logTimeStart, logTimeStop, query);
+            }
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                } catch (Exception ignore) {
+                    // ignore
+                }
+            }
+        }
+    }
+
     private Node getNodeByRelation(ITransaction txn, Node home, String kstr, Relation rel, DbMapping dbm)
                             throws Exception {
         Node node = null;
@@ -1389,7 +3065,7 @@ public final class NodeManager {
                 Connection con = dbm.getConnection();
                 // set connection to read-only mode
                 if (!con.isReadOnly()) con.setReadOnly(true);
-                DbColumn[] columns = dbm.getColumns();
+                DbColumn[] columns = dbm.getSelectColumns();
                 Relation[] joins = dbm.getJoins();
                 StringBuffer b = dbm.getSelect(rel);
 
@@ -1452,7 +3128,8 @@ public final class NodeManager {
      */
     public Node createNode(DbMapping dbm, ResultSet rs, DbColumn[] columns, int offset)
                 throws SQLException, IOException, ClassNotFoundException {
-        HashMap propBuffer = new HashMap();
+        // raw column values, wrapped in Property objects on demand
+        Object[] values = new Object[columns.length];
         String id = null;
         String name = null;
         String protoName = dbm.getTypeName();
@@ -1497,176 +3174,204 @@ public final class NodeManager {
                 name = rs.getString(columnNumber);
             }
 
-            Property newprop = new Property(node);
-
-            switch (columns[i].getType()) {
-                case Types.BIT:
-                case Types.BOOLEAN:
-                    newprop.setBooleanValue(rs.getBoolean(columnNumber));
+            values[i] = getColumnValue(rs, columns[i], columnNumber);
+        }
 
-                    break;
+        if (id == null) {
+            return null;
+        } else {
+            Transactor tx = Transactor.getInstance();
+            if (tx != null) {
+                // Check if the node is already registered with the transactor -
+                // it may be in the process of being DELETED, but do return the
+                // new node if the old one has been marked as INVALID.
+                DbKey key = new DbKey(dbmap, id);
+                Node dirtyNode = tx.getDirtyNode(key);
+                if (dirtyNode != null && dirtyNode.getState() != Node.INVALID) {
+                    return dirtyNode;
+                }
+            }
+        }
 
-                case Types.TINYINT:
-                case Types.BIGINT:
-                case Types.SMALLINT:
-                case Types.INTEGER:
-                    newprop.setIntegerValue(rs.getLong(columnNumber));
+        CompactPropertyMap.SlotTable slots = dbmap.getSlotTable();
+        CompactPropertyMap propMap = new CompactPropertyMap(slots, node);
+        // look up columns by name if the result set has a different layout
+        int[] indexes = null;
+        HashMap columnIndexes = null;
+        if (columns == slots.selectColumns) {
+            indexes = slots.selectIndexes;
+        } else if (columns == slots.columns) {
+            indexes = slots.columnIndexes;
+        } else {
+            columnIndexes = new HashMap();
+            for (int i = 0; i < columns.length; i++) {
+                columnIndexes.put(columns[i].getName(), new Integer(i));
+            }
+        }
 
-                    break;
+        for (int k = 0; k < slots.size(); k++) {
+            int i;
+            if (indexes != null) {
+                i = indexes[k];
+            } else {
+                Integer index = (Integer) columnIndexes.get(slots.columnNames[k]);
+                i = index == null ? -1 : index.intValue();
+            }
+            if (i < 0) {
+                // lazy columns are fetched when the property is first accessed
+                if (slots.lazy[k]) {
+                    propMap.setSlotValue(k, CompactPropertyMap.NOT_LOADED);
+                }
+                continue;
+            }
 
-                case Types.REAL:
-                case Types.FLOAT:
-                case Types.DOUBLE:
-                    newprop.setFloatValue(rs.getDouble(columnNumber));
+            Object value = values[i];
 
-                    break;
+            // if the property is a pointer to another node, store a node handle
+            // FIXME: References to anything other than the primary key are not supported
+            if (slots.references[k] && value != null) {
+                value = new NodeHandle(new DbKey(slots.referenceTypes[k], value.toString()));
+            }
+            propMap.setSlotValue(k, value);
+        }
 
-                case Types.DECIMAL:
-                case Types.NUMERIC:
+        node.init(dbmap, id, name, protoName, propMap);
+        return node;
+    }
 
-                    BigDecimal num = rs.getBigDecimal(columnNumber);
-                    if (num == null) {
-                        break;
-                    }
-                    if (num.scale() > 0) {
-                        newprop.setFloatValue(num.doubleValue());
-                    } else {
-                        newprop.setIntegerValue(num.longValue());
-                    }
+    /**
+     * Read the value of a column from a result set, converted to the class
+     * used for the corresponding property type.
+     */
+    private Object getColumnValue(ResultSet rs, DbColumn column, int columnNumber)
+                throws SQLException, IOException {
+        Object value;
 
-                    break;
+        switch (column.getType()) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                value = rs.getBoolean(columnNumber) ? Boolean.TRUE : Boolean.FALSE;
 
-                case Types.VARBINARY:
-                case Types.BINARY:
-                    newprop.setJavaObjectValue(rs.getBytes(columnNumber));
+                break;
 
-                    break;
+            case Types.TINYINT:
+            case Types.BIGINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                value = new Long(rs.getLong(columnNumber));
 
-                case Types.BLOB:
-                case Types.LONGVARBINARY:
-                    {
-                        InputStream in = rs.getBinaryStream(columnNumber);
-                        if (in == null) {
-                            break;
-                        }
-                        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-                        byte[] buffer = new byte[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            bout.write(buffer, 0, read);
-                        }
-                        newprop.setJavaObjectValue(bout.toByteArray());
-                    }
+                break;
 
-                    break;
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                value = new Double(rs.getDouble(columnNumber));
 
-                case Types.LONGVARCHAR:
-                    try {
-                        newprop.setStringValue(rs.getString(columnNumber));
-                    } catch (SQLException x) {
-                        Reader in = rs.getCharacterStream(columnNumber);
-                        if (in == null) {
-                            newprop.setStringValue(null);
-                            break;
-                        }
-                        StringBuffer out = new StringBuffer();
-                        char[] buffer = new char[2048];
-                        int read;
-                        while ((read = in.read(buffer)) > -1) {
-                            out.append(buffer, 0, read);
-                        }
-                        newprop.setStringValue(out.toString());
-                    }
+                break;
 
-                    break;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
 
-                case Types.CHAR:
-                case Types.VARCHAR:
-                case Types.OTHER:
-                    newprop.setStringValue(rs.getString(columnNumber));
+                BigDecimal num = rs.getBigDecimal(columnNumber);
+                if (num == null) {
+                    value = null;
+                } else if (num.scale() > 0) {
+                    value = new Double(num.doubleValue());
+                } else {
+                    value = new Long(num.longValue());
+                }
 
-                    break;
+                break;
 
-                case Types.DATE:
-                case Types.TIME:
-                case Types.TIMESTAMP:
-                    newprop.setDateValue(rs.getTimestamp(columnNumber));
+            case Types.VARBINARY:
+            case Types.BINARY:
+                value = rs.getBytes(columnNumber);
 
-                    break;
+                break;
 
-                case Types.NULL:
-                    newprop.setStringValue(null);
+            case Types.BLOB:
+            case Types.LONGVARBINARY:
+                {
+                    InputStream in = rs.getBinaryStream(columnNumber);
+                    if (in == null) {
+                        value = null;
+                        break;
+                    }
+                    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        bout.write(buffer, 0, read);
+                    }
+                    value = bout.toByteArray();
+                }
 
-                    break;
+                break;
 
-                case Types.CLOB:
-                    Clob cl = rs.getClob(columnNumber);
-                    if (cl == null) {
-                        newprop.setStringValue(null);
+            case Types.LONGVARCHAR:
+                try {
+                    value = rs.getString(columnNumber);
+                } catch (SQLException x) {
+                    Reader in = rs.getCharacterStream(columnNumber);
+                    if (in == null) {
+                        value = null;
                         break;
                     }
-                    char[] c = new char[(int) cl.length()];
-                    Reader isr = cl.getCharacterStream();
-                    isr.read(c);
-                    newprop.setStringValue(String.copyValueOf(c));
-                    break;
+                    StringBuffer out = new StringBuffer();
+                    char[] buffer = new char[2048];
+                    int read;
+                    while ((read = in.read(buffer)) > -1) {
+                        out.append(buffer, 0, read);
+                    }
+                    value = out.toString();
+                }
 
-                default:
-                    newprop.setStringValue(rs.getString(columnNumber));
+                break;
 
-                    break;
-            }
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.OTHER:
+                value = rs.getString(columnNumber);
 
-            if (rs.wasNull()) {
-                newprop.setStringValue(null);
-            }
+                break;
 
-            propBuffer.put(columns[i].getName(), newprop);
+            case Types.DATE:
+            case Types.TIME:
+            case Types.TIMESTAMP:
+                // normalize from java.sql.* Date subclasses
+                Timestamp timestamp = rs.getTimestamp(columnNumber);
+                value = timestamp == null ? null : new java.util.Date(timestamp.getTime());
 
-            // mark property as clean, since it's fresh from the db
-            newprop.dirty = false;
-        }
+                break;
 
-        if (id == null) {
-            return null;
-        } else {
-            Transactor tx = Transactor.getInstance();
-            if (tx != null) {
-                // Check if the node is already registered with the transactor -
-                // it may be in the process of being DELETED, but do return the
-                // new node if the old one has been marked as INVALID.
-                DbKey key = new DbKey(dbmap, id);
-                Node dirtyNode = tx.getDirtyNode(key);
-                if (dirtyNode != null && dirtyNode.getState() != Node.INVALID) {
-                    return dirtyNode;
-                }
-            }
-        }
+            case Types.NULL:
+                value = null;
 
-        Hashtable propMap = new Hashtable();
-        DbColumn[] columns2 = dbmap.getColumns();
-        for (int i=0; i<columns2.length; i++) {
-            Relation rel = columns2[i].getRelation();
-            if (rel != null && rel.isPrimitiveOrReference()) {
-                Property prop = (Property) propBuffer.get(columns2[i].getName());
+                break;
 
-                if (prop == null) {
-                    continue;
+            case Types.CLOB:
+                Clob cl = rs.getClob(columnNumber);
+                if (cl == null) {
+                    value = null;
+                    break;
                 }
+                char[] c = new char[(int) cl.length()];
+                Reader isr = cl.getCharacterStream();
+                isr.read(c);
+                value = String.copyValueOf(c);
+                break;
 
-                prop.setName(rel.propName);
+            default:
+                value = rs.getString(columnNumber);
 
-                // if the property is a pointer to another node, change the property type to NODE
-                if (rel.isReference() && rel.usesPrimaryKey()) {
-                    // FIXME: References to anything other than the primary key are not supported
-                    prop.convertToNodeReference(rel);
-                }
-                propMap.put(rel.propName, prop);
-            }
+                break;
         }
 
-        node.init(dbmap, id, name, protoName, propMap);
-        return node;
+        if (rs.wasNull()) {
+            value = null;
+        }
+
+        return value;
     }
 
     /**
@@ -1678,11 +3383,12 @@ public final class NodeManager {
         // create joined objects
         for (int i = 0; i < joins.length; i++) {
             DbMapping jdbm = joins[i].otherType;
-            Node node = createNode(jdbm, rs, jdbm.getColumns(), resultSetOffset);
+            DbColumn[] jcolumns = jdbm.getSelectColumns();
+            Node node = createNode(jdbm, rs, jcolumns, resultSetOffset);
             if (node != null) {
                 registerNewNode(node, null);
             }
-            resultSetOffset += jdbm.getColumns().length;
+            resultSetOffset += jcolumns.length;
         }
     }
 
@@ -1709,12 +3415,34 @@ public final class NodeManager {
         return cache.size();
     }
 
+    /**
+     * Get the estimated memory retained by cached nodes, by prototype name.
+     *
+     * @return a map of lower case prototype names to Long byte counts, or null
+     *         if the cache is not bounded by memory
+     */
+    public Map getCacheWeights() {
+        if (cache instanceof WeightedNodeCache) {
+            return ((WeightedNodeCache) cache).getWeights();
+        }
+        return null;
+    }
+
     /**
      * Clear the object cache, causing all objects to be recreated.
      */
     public void clearCache() {
-        synchronized (cache) {
-            cache.clear();
+        cache.clear();
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+        QueryCache queries = queryCache;
+        if (queries != null) {
+            queries.clear();
+        }
+        CountCache counts = countCache;
+        if (counts != null) {
+            counts.clear();
         }
     }
 
@@ -1723,14 +3451,23 @@ public final class NodeManager {
      * that adds, modifies or deletes any Nodes.
      */
     public void addNodeChangeListener(NodeChangeListener listener) {
-        listeners.add(listener);
+        // copy on write, listeners may be added while transactions commit
+        synchronized (listenerLock) {
+            ArrayList list = new ArrayList(listeners);
+            list.add(listener);
+            listeners = list;
+        }
     }
     
     /** 
      * Remove a previously added NodeChangeListener. 
      */
     public void removeNodeChangeListener(NodeChangeListener listener) {
-        listeners.remove(listener);
+        synchronized (listenerLock) {
+            ArrayList list = new ArrayList(listeners);
+            list.remove(listener);
+            listeners = list;
+        }
     }
     
     /**
@@ -1745,11 +3482,12 @@ public final class NodeManager {
      * Called by transactors after committing.
      */
     protected void fireNodeChangeEvent(List inserted, List updated, List deleted, List parents) {
-        int l = listeners.size();
+        ArrayList list = listeners;
+        int l = list.size();
 
         for (int i=0; i<l; i++) {
             try {
-                ((NodeChangeListener) listeners.get(i)).nodesChanged(inserted, updated, deleted, parents);
+                ((NodeChangeListener) list.get(i)).nodesChanged(inserted, updated, deleted, parents);
             } catch (Error e) {
                 e.printStackTrace();
             } catch (Exception e) {
@@ -1760,12 +3498,25 @@ public final class NodeManager {
     
     private void setStatementValue(PreparedStatement stmt, int columnNumber, String value, DbColumn col)
             throws SQLException {
-        if (value == null) {
+        if (col == null) {
+            // column is not known from table meta data, let the driver convert
+            stmt.setString(columnNumber, value);
+        } else if (value == null) {
             stmt.setNull(columnNumber, col.getType());
         } else if (col.needsQuotes()) {
             stmt.setString(columnNumber, value);
         } else {
-            stmt.setLong(columnNumber, Long.parseLong(value));
+            long number;
+            try {
+                number = Long.parseLong(value);
+            } catch (NumberFormatException nfx) {
+                // report it the way the database reports invalid literals
+                SQLException sqx = new SQLException("Invalid value for numeric column " +
+                        col.getName() + ": " + value);
+                sqx.initCause(nfx);
+                throw sqx;
+            }
+            stmt.setLong(columnNumber, number);
         }
     }
 
@@ -0,0 +1,618 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.objectmodel.EvictionListener;
+import helma.objectmodel.IProperty;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * A second level node cache that keeps nodes evicted from the NodeManager's
+ * object cache in serialized form in direct byte buffers, outside of the
+ * garbage collected heap.
+ *
+ * The buffer space is divided into chunks that are filled one after the other.
+ * When all chunks are full, the oldest chunk is cleared and reused, so entries
+ * are discarded in the order in which they were evicted from the object cache.
+ * Entries are removed when they are read, since the node then moves back into
+ * the object cache.
+ *
+ * Each entry records the data and type change counters of its DbMapping at
+ * eviction time. An entry is only used if both are still unchanged, so any
+ * change to a type's data or definition invalidates all its entries.
+ *
+ * Enabled by setting the offheapcache app property to the number of bytes
+ * to use, e.g. "2G". The JVM's -XX:MaxDirectMemorySize must be large enough.
+ */
+final class OffHeapNodeCache implements EvictionListener, Runnable {
+
+    // upper bound for the size of a chunk
+    static final int MAX_CHUNK = 256 * 1024 * 1024;
+    // upper bound for the number of evicted nodes waiting to be written
+    static final int MAX_PENDING = 10000;
+
+    // tags for null and non-null values
+    static final byte NULL = 0;
+    static final byte VALUE = 1;
+
+    private final NodeManager nmgr;
+    private final Application app;
+
+    private ByteBuffer[] chunks;
+    private int chunkSize;
+    // the keys written to each chunk
+    private List[] chunkKeys;
+    private int writeChunk = 0;
+    private int writePosition = 0;
+
+    // Key -> Slot
+    private final HashMap index = new HashMap();
+
+    // nodes evicted from the object cache, waiting to be written, by key
+    private final LinkedHashMap pending = new LinkedHashMap();
+    // the key currently being written, set to null if it is removed meanwhile
+    private Key inFlight;
+    private Thread writer;
+    private volatile boolean running;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a second level cache for the given node manager.
+     */
+    OffHeapNodeCache(NodeManager nmgr) {
+        this.nmgr = nmgr;
+        this.app = nmgr.app;
+    }
+
+    /**
+     * Allocate the buffers and start writing evicted nodes.
+     *
+     * @param size the number of bytes to allocate
+     */
+    void init(long size) {
+        chunkSize = (int) Math.min(MAX_CHUNK, Math.max(1024 * 1024, size / 16));
+        int count = (int) Math.max(2, (size + chunkSize - 1) / chunkSize);
+
+        chunks = new ByteBuffer[count];
+        chunkKeys = new List[count];
+        for (int i = 0; i < count; i++) {
+            chunks[i] = ByteBuffer.allocateDirect(chunkSize);
+            chunkKeys[i] = new ArrayList();
+        }
+
+        running = true;
+        writer = new Thread(this, app.getName() + "-offheap-cache");
+        writer.setDaemon(true);
+        writer.start();
+
+        app.logEvent("Allocated " + count + " off-heap cache chunks of " + chunkSize + " bytes");
+    }
+
+    /**
+     * Stop writing and release the buffers.
+     */
+    void shutdown() {
+        running = false;
+        synchronized (pending) {
+            pending.clear();
+            pending.notifyAll();
+            synchronized (this) {
+                clearBuffers();
+                chunks = null;
+            }
+        }
+        app.logEvent("Off-heap cache shut down, " + hits + " hits, " + misses + " misses");
+    }
+
+    /**
+     * Queue a node evicted from the object cache to be written to the buffers.
+     */
+    public void evicted(Object key, Object value) {
+        if (!(key instanceof DbKey) || !(value instanceof Node)) {
+            return;
+        }
+        Node node = (Node) value;
+        DbMapping dbmap = node.getDbMapping();
+        // only keep persistent nodes under their primary key
+        if (dbmap == null || node.isNullNode() || node.getState() != Node.CLEAN ||
+                !key.equals(node.getKey())) {
+            return;
+        }
+        Slot slot = new Slot(dbmap);
+        synchronized (pending) {
+            if (pending.size() < MAX_PENDING) {
+                pending.put(key, new Object[] {key, node, slot});
+                pending.notify();
+            }
+        }
+    }
+
+    /**
+     * Write evicted nodes to the buffers until the cache is shut down.
+     */
+    public void run() {
+        while (running) {
+            Object[] item;
+            synchronized (pending) {
+                while (running && pending.isEmpty()) {
+                    try {
+                        pending.wait();
+                    } catch (InterruptedException ir) {
+                        return;
+                    }
+                }
+                if (!running) {
+                    return;
+                }
+                Iterator it = pending.values().iterator();
+                item = (Object[]) it.next();
+                it.remove();
+                synchronized (this) {
+                    inFlight = (Key) item[0];
+                }
+            }
+            try {
+                byte[] data = encode((Node) item[1]);
+                if (data != null) {
+                    store((Key) item[0], data, (Slot) item[2]);
+                }
+            } catch (Exception x) {
+                // node was modified while we encoded it, or is otherwise not cacheable
+                app.getEventLog().debug("Not caching " + item[0] + " off-heap: " + x);
+            }
+        }
+    }
+
+    private synchronized void store(Key key, byte[] data, Slot slot) {
+        if (chunks == null || data.length > chunkSize || inFlight != key) {
+            // too large, or removed while we were encoding it
+            return;
+        }
+        inFlight = null;
+        if (writePosition + data.length > chunkSize) {
+            // move on to the next chunk, discarding the entries it contains
+            writeChunk = (writeChunk + 1) % chunks.length;
+            writePosition = 0;
+            List keys = chunkKeys[writeChunk];
+            for (int i = 0; i < keys.size(); i++) {
+                Object k = keys.get(i);
+                Slot s = (Slot) index.get(k);
+                if (s != null && s.chunk == writeChunk) {
+                    index.remove(k);
+                }
+            }
+            keys.clear();
+        }
+
+        ByteBuffer buffer = chunks[writeChunk];
+        buffer.position(writePosition);
+        buffer.put(data);
+
+        slot.chunk = writeChunk;
+        slot.offset = writePosition;
+        slot.length = data.length;
+        index.put(key, slot);
+        chunkKeys[writeChunk].add(key);
+        writePosition += data.length;
+    }
+
+    /**
+     * Get a node from the cache, removing its entry. Returns null if the node
+     * is not cached or its type has changed since it was stored.
+     */
+    Node get(DbKey key) {
+        Slot slot;
+        byte[] data;
+        synchronized (this) {
+            slot = (Slot) index.remove(key);
+            // the mapping may have been replaced when its type was reloaded
+            if (slot == null || !slot.isCurrent() ||
+                    slot.dbmap != app.getDbMapping(slot.dbmap.getTypeName())) {
+                misses++;
+                return null;
+            }
+            hits++;
+            data = new byte[slot.length];
+            ByteBuffer buffer = chunks[slot.chunk];
+            buffer.position(slot.offset);
+            buffer.get(data);
+        }
+        try {
+            return decode(data, slot.dbmap);
+        } catch (Exception x) {
+            app.logError("Error reading " + key + " from off-heap cache", x);
+            return null;
+        }
+    }
+
+    /**
+     * Remove a node from the cache.
+     */
+    void remove(Key key) {
+        synchronized (pending) {
+            pending.remove(key);
+            synchronized (this) {
+                index.remove(key);
+                if (key.equals(inFlight)) {
+                    inFlight = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all nodes from the cache.
+     */
+    void clear() {
+        synchronized (pending) {
+            pending.clear();
+            synchronized (this) {
+                clearBuffers();
+            }
+        }
+    }
+
+    private void clearBuffers() {
+        inFlight = null;
+        index.clear();
+        if (chunkKeys != null) {
+            for (int i = 0; i < chunkKeys.length; i++) {
+                chunkKeys[i].clear();
+            }
+        }
+        writeChunk = 0;
+        writePosition = 0;
+    }
+
+    /**
+     * Get the number of nodes in the cache.
+     */
+    synchronized int size() {
+        return index.size();
+    }
+
+    public String toString() {
+        return "OffHeapNodeCache[" + size() + " entries, " + hits + " hits, " +
+                misses + " misses]";
+    }
+
+    private byte[] encode(Node node) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeUTF(node.getID());
+        writeString(out, node.getName());
+        writeString(out, node.getPrototype());
+        out.writeLong(node.created());
+        out.writeLong(node.lastModified());
+        if (!writeHandle(out, node.parentHandle)) {
+            return null;
+        }
+
+        Hashtable propMap = node.getPropMap();
+        if (propMap instanceof CompactPropertyMap) {
+            // write slot values as they are, without wrapping them in Property objects
+            CompactPropertyMap compact = (CompactPropertyMap) propMap;
+            Object[] slots = compact.getSlotValues();
+            Property[] others = compact.getOverflowProperties();
+            String[] names = compact.getSlotTable().propNames;
+            int count = others.length;
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != CompactPropertyMap.ABSENT &&
+                        slots[i] != CompactPropertyMap.NOT_LOADED) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (int i = 0; i < slots.length; i++) {
+                Object value = slots[i];
+                if (value == CompactPropertyMap.ABSENT ||
+                        value == CompactPropertyMap.NOT_LOADED) {
+                    continue;
+                }
+                boolean written = value instanceof Property ?
+                        writeProperty(out, (Property) value) :
+                        writeValue(out, names[i], compact.getRawType(i, value), value);
+                if (!written) {
+                    return null;
+                }
+            }
+            for (int i = 0; i < others.length; i++) {
+                if (!writeProperty(out, others[i])) {
+                    return null;
+                }
+            }
+        } else {
+            Object[] props = propMap == null ? new Object[0] : propMap.values().toArray();
+            out.writeInt(props.length);
+            for (int i = 0; i < props.length; i++) {
+                if (!writeProperty(out, (Property) props[i])) {
+                    return null;
+                }
+            }
+        }
+
+        // relational nodes reload their child collections, embedded ones store them
+        SubnodeList subnodes = node.getSubnodeList();
+        if (node.getDbMapping().isRelational() || subnodes == null ||
+                subnodes.getClass() != SubnodeList.class) {
+            out.writeInt(-1);
+        } else {
+            Object[] handles = subnodes.toArray();
+            out.writeInt(handles.length);
+            for (int i = 0; i < handles.length; i++) {
+                if (handles[i] == null || !writeHandle(out, (NodeHandle) handles[i])) {
+                    return null;
+                }
+            }
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private boolean writeProperty(DataOutputStream out, Property prop) throws IOException {
+        return writeValue(out, prop.getName(), prop.getType(), prop.getValue());
+    }
+
+    private boolean writeValue(DataOutputStream out, String name, int type, Object value)
+            throws IOException {
+        out.writeUTF(name);
+        out.writeByte(type);
+        if (value == null) {
+            out.writeByte(NULL);
+            return true;
+        }
+        out.writeByte(VALUE);
+        switch (type) {
+            case IProperty.STRING:
+                writeString(out, (String) value);
+                break;
+            case IProperty.BOOLEAN:
+                out.writeBoolean(((Boolean) value).booleanValue());
+                break;
+            case IProperty.DATE:
+                out.writeLong(((Date) value).getTime());
+                break;
+            case IProperty.INTEGER:
+                out.writeLong(((Long) value).longValue());
+                break;
+            case IProperty.FLOAT:
+                out.writeDouble(((Double) value).doubleValue());
+                break;
+            case IProperty.NODE:
+                return writeHandle(out, (NodeHandle) value);
+            default:
+                // binary column values are the only java objects we can store
+                if (!(value instanceof byte[])) {
+                    return false;
+                }
+                byte[] b = (byte[]) value;
+                out.writeInt(b.length);
+                out.write(b);
+        }
+        return true;
+    }
+
+    private Node decode(byte[] data, DbMapping dbmap) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        WrappedNodeManager safe = nmgr.safe;
+
+        String id = in.readUTF();
+        String name = readString(in);
+        String prototype = readString(in);
+        long created = in.readLong();
+        long lastmodified = in.readLong();
+        NodeHandle parentHandle = readHandle(in);
+
+        Node node = dbmap.isRelational() ?
+                new Node(safe) :
+                new Node(name, id, prototype, safe, created, lastmodified);
+
+        int count = in.readInt();
+        Hashtable propMap = dbmap.isRelational() ?
+                new CompactPropertyMap(dbmap.getSlotTable(), node) :
+                new Hashtable(count * 2 + 1);
+        CompactPropertyMap compact = propMap instanceof CompactPropertyMap ?
+                (CompactPropertyMap) propMap : null;
+        for (int i = 0; i < count; i++) {
+            String propname = in.readUTF();
+            int type = in.readByte();
+            Object value = null;
+            if (in.readByte() != NULL) {
+                switch (type) {
+                    case IProperty.STRING:
+                        value = readString(in);
+                        break;
+                    case IProperty.BOOLEAN:
+                        value = in.readBoolean() ? Boolean.TRUE : Boolean.FALSE;
+                        break;
+                    case IProperty.DATE:
+                        value = new Date(in.readLong());
+                        break;
+                    case IProperty.INTEGER:
+                        value = new Long(in.readLong());
+                        break;
+                    case IProperty.FLOAT:
+                        value = new Double(in.readDouble());
+                        break;
+                    case IProperty.NODE:
+                        value = readHandle(in);
+                        break;
+                    default:
+                        byte[] b = new byte[in.readInt()];
+                        in.readFully(b);
+                        value = b;
+                }
+            }
+
+            int slot = compact == null ? -1 : compact.getSlotTable().getSlot(propname);
+            if (slot >= 0 && value != null) {
+                // keep the raw value, it is wrapped when the property is used
+                compact.setSlotValue(slot, value);
+                continue;
+            }
+
+            Property prop = new Property(propname, node);
+            if (value == null) {
+                if (type == IProperty.NODE) {
+                    prop.setNodeHandle(null);
+                } else if (type == IProperty.DATE) {
+                    prop.setDateValue(null);
+                } else {
+                    prop.setStringValue(null);
+                }
+            } else {
+                switch (type) {
+                    case IProperty.STRING:
+                        prop.setStringValue((String) value);
+                        break;
+                    case IProperty.BOOLEAN:
+                        prop.setBooleanValue(((Boolean) value).booleanValue());
+                        break;
+                    case IProperty.DATE:
+                        prop.setDateValue((Date) value);
+                        break;
+                    case IProperty.INTEGER:
+                        prop.setIntegerValue(((Long) value).longValue());
+                        break;
+                    case IProperty.FLOAT:
+                        prop.setFloatValue(((Double) value).doubleValue());
+                        break;
+                    case IProperty.NODE:
+                        prop.setNodeHandle((NodeHandle) value);
+                        break;
+                    default:
+                        prop.setJavaObjectValue(value);
+                }
+            }
+            // mark property as clean, since it's unchanged from the db
+            prop.dirty = false;
+            propMap.put(propname, prop);
+        }
+
+        int subnodeCount = in.readInt();
+
+        if (dbmap.isRelational()) {
+            // lazy properties that weren't loaded are fetched again on access
+            ((CompactPropertyMap) propMap).markLazySlots();
+            node.init(dbmap, id, name, prototype, propMap);
+        } else {
+            node.setPropMap(propMap);
+            node.setDbMapping(dbmap);
+            if (subnodeCount >= 0) {
+                SubnodeList subnodes = node.createSubnodeList();
+                for (int i = 0; i < subnodeCount; i++) {
+                    subnodes.add(readHandle(in));
+                }
+            }
+        }
+        node.setParentHandle(parentHandle);
+
+        return node;
+    }
+
+    private boolean writeHandle(DataOutputStream out, NodeHandle handle) throws IOException {
+        if (handle == null) {
+            out.writeByte(NULL);
+            return true;
+        }
+        Key key = handle.getKey();
+        if (!(key instanceof DbKey)) {
+            // transient or virtual node
+            return false;
+        }
+        out.writeByte(VALUE);
+        writeString(out, ((DbKey) key).getStorageName());
+        out.writeUTF(key.getID());
+        return true;
+    }
+
+    private NodeHandle readHandle(DataInputStream in) throws IOException {
+        if (in.readByte() == NULL) {
+            return null;
+        }
+        String storage = readString(in);
+        String id = in.readUTF();
+        DbMapping dbmap = storage == null ? null : app.getDbMapping(storage);
+        if (storage != null && dbmap == null) {
+            throw new IOException("Unknown prototype " + storage);
+        }
+        return new NodeHandle(new DbKey(dbmap, id));
+    }
+
+    // strings may exceed the 64k limit of writeUTF()
+    private void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] b = str.getBytes("UTF-8");
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * The location of a cached node in the buffers, along with the change
+     * counters of its DbMapping at the time it was evicted.
+     */
+    static class Slot {
+        final DbMapping dbmap;
+        final long dataChange;
+        final long typeChange;
+        int chunk;
+        int offset;
+        int length;
+
+        Slot(DbMapping dbmap) {
+            this.dbmap = dbmap;
+            this.dataChange = dbmap.getLastDataChange();
+            this.typeChange = dbmap.getLastTypeChange();
+        }
+
+        boolean isCurrent() {
+            return dbmap.getLastDataChange() == dataChange &&
+                   dbmap.getLastTypeChange() == typeChange;
+        }
+    }
+}
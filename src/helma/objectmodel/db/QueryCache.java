@@ -0,0 +1,137 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.util.CacheMap;
+
+/**
+ * A bounded cache for the id lists of collections, keyed by the data source and
+ * the rendered query. Unlike the subnode list of a node, cached results survive
+ * the eviction of the node holding the collection and are shared by all nodes
+ * issuing the same query. Each result remembers the data and type change serial
+ * numbers of the queried mapping at the time the query was run, and is only
+ * used as long as they are unchanged.
+ *
+ * Enabled by setting the queryCacheSize app property to the number of results
+ * to cache. Results with more than queryCacheMaxIds ids (default 10000) are
+ * not cached.
+ */
+final class QueryCache {
+
+    private final CacheMap results;
+    private int maxIds;
+
+    // statistics
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Create a new query cache.
+     *
+     * @param size the number of results to cache
+     * @param maxIds the maximum number of ids of a cached result
+     */
+    QueryCache(int size, int maxIds) {
+        this.results = new CacheMap(size);
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * Set the number of results to cache and the maximum size of a result.
+     */
+    void setCapacity(int size, int maxIds) {
+        results.setCapacity(size);
+        this.maxIds = maxIds;
+    }
+
+    /**
+     * Build the cache key for a query.
+     *
+     * @param type the mapping of the queried objects
+     * @param query the rendered query
+     * @param maxRows the maximum number of rows fetched, or 0
+     * @return the cache key
+     */
+    static String getKey(DbMapping type, String query, int maxRows) {
+        DbSource source = type.getDbSource();
+        return new StringBuffer(source == null ? "" : source.getName())
+                .append(':').append(maxRows).append(':').append(query).toString();
+    }
+
+    /**
+     * Get a cached result if it is still valid.
+     *
+     * @param key the key built by getKey()
+     * @param dataChange the current data change serial number of the query
+     * @param typeChange the current type change serial number of the queried mapping
+     * @return the ids of the result, or null
+     */
+    String[] get(String key, long dataChange, long typeChange) {
+        Result result = (Result) results.get(key);
+        synchronized (this) {
+            if (result != null && result.dataChange == dataChange &&
+                    result.typeChange == typeChange) {
+                hits++;
+                return result.ids;
+            }
+            misses++;
+        }
+        return null;
+    }
+
+    /**
+     * Cache the result of a query. The serial numbers must have been read
+     * before the query was run, so changes made meanwhile invalidate it.
+     *
+     * @param key the key built by getKey()
+     * @param dataChange the data change serial number of the query
+     * @param typeChange the type change serial number of the queried mapping
+     * @param ids the ids of the result
+     */
+    void put(String key, long dataChange, long typeChange, String[] ids) {
+        if (ids.length <= maxIds) {
+            results.put(key, new Result(dataChange, typeChange, ids));
+        }
+    }
+
+    /**
+     * Discard all cached results.
+     */
+    void clear() {
+        results.clear();
+    }
+
+    public synchronized String toString() {
+        return "QueryCache[size: " + results.size() + ", hits: " + hits +
+                ", misses: " + misses + "]";
+    }
+
+    /**
+     * A cached query result.
+     */
+    static final class Result {
+        final long dataChange;
+        final long typeChange;
+        final String[] ids;
+
+        Result(long dataChange, long typeChange, String[] ids) {
+            this.dataChange = dataChange;
+            this.typeChange = typeChange;
+            this.ids = ids;
+        }
+    }
+}
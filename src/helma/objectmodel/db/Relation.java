@@ -22,10 +22,12 @@ import helma.objectmodel.IProperty;
 import helma.util.StringUtils;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Enumeration;
+import java.util.StringTokenizer;
 import java.util.Vector;
 
 /**
@@ -99,10 +101,18 @@ public final class Relation {
     private String additionalTables;
     private boolean additionalTablesJoined = false;
     String queryHints;
+    // reference properties of child nodes that are fetched along with them
+    String[] prefetchReferences;
     Vector filterFragments;
     Vector filterPropertyRefs;
     int maxSize = 0;
     int offset = 0;
+    // id after which (or before which, for descending order) results start,
+    // used to fetch the segments of large collections using keyset pagination
+    String seekKey;
+    // foreign key columns partitioning the collections defined by this relation
+    private String[] partitionColumns;
+    private boolean partitionColumnsChecked = false;
 
     /**
      * This constructor makes a copy of an existing relation. Not all fields are copied, just those
@@ -124,8 +134,10 @@ public final class Relation {
         this.additionalTables =         rel.additionalTables;
         this.additionalTablesJoined =   rel.additionalTablesJoined;
         this.queryHints =               rel.queryHints;
+        this.prefetchReferences =       rel.prefetchReferences;
         this.maxSize =                  rel.maxSize;
         this.offset =                   rel.offset;
+        this.seekKey =                  rel.seekKey;
         this.constraints =              rel.constraints;
         this.accessName =               rel.accessName;
         this.logicalOperator =          rel.logicalOperator;
@@ -195,6 +207,13 @@ public final class Relation {
         readonly = "true".equalsIgnoreCase(props.getProperty("readonly"));
         isPrivate = "true".equalsIgnoreCase(props.getProperty("private"));
 
+        // primitive properties with loadmode = lazy, e.g. large text or blob columns,
+        // are left out of selects and loaded on first access
+        if (reftype == PRIMITIVE) {
+            String loading = props.getProperty("loadmode");
+            lazyLoading = (loading != null) && "lazy".equalsIgnoreCase(loading.trim());
+        }
+
         // the following options only apply to object and collection relations
         if ((reftype != PRIMITIVE) && (reftype != INVALID)) {
             Vector newConstraints = new Vector();
@@ -390,6 +409,15 @@ public final class Relation {
         // get query hints
         queryHints = props.getProperty("hints");
 
+        // get references to prefetch along with child nodes
+        String prefetch = props.getProperty("prefetch");
+
+        if (prefetch != null && prefetch.trim().length() > 0) {
+            prefetchReferences = StringUtils.split(prefetch, ", ");
+        } else {
+            prefetchReferences = null;
+        }
+
         // get max size of collection
         maxSize = getIntegerProperty("maxSize", props, 0);
         if (maxSize == 0) {
@@ -514,6 +542,24 @@ public final class Relation {
         return reftype == PRIMITIVE;
     }
 
+    /**
+     * Tell if this relation maps a primitive value to a column that is only
+     * loaded when the property is accessed.
+     */
+    public boolean isLazyColumn() {
+        return reftype == PRIMITIVE && lazyLoading;
+    }
+
+    /**
+     * Get the names of the reference properties of child nodes that are
+     * prefetched along with the child nodes, as set by the prefetch option.
+     *
+     * @return the property names, or null
+     */
+    public String[] getPrefetchReferences() {
+        return prefetchReferences;
+    }
+
     /**
      *  Returns true if this Relation describes an object reference property
      */
@@ -982,8 +1028,17 @@ public final class Relation {
         }
 
         // render the constraints and filter
+        int length = q.length();
         renderConstraints(q, home, nonvirtual, otherDbm, prefix);
 
+        // seek past the last id of the previous segment
+        if (seekKey != null && kstr == null && groupby == null) {
+            q.append(q.length() > length ? " AND " : prefix);
+            otherDbm.appendCondition(q, otherDbm.getIDField(),
+                    getIdOrder() < 0 ? "<" : ">", seekKey);
+            prefix = " AND ";
+        }
+
         // add joined fetch constraints
         ownType.addJoinConstraints(q, prefix);
 
@@ -1018,6 +1073,13 @@ public final class Relation {
 
     }
 
+    /**
+     * Check if this relation joins additional tables.
+     */
+    public boolean hasAdditionalTables() {
+        return additionalTables != null;
+    }
+
     protected void appendAdditionalTables(StringBuffer q) {
         if (additionalTables != null) {
             q.append(additionalTablesJoined ? ' ' : ',');
@@ -1192,6 +1254,140 @@ public final class Relation {
         }
     }
 
+    /**
+     * Get the foreign key columns whose values define which objects can be part
+     * of a collection defined by this relation. Objects whose values in these
+     * columns differ from the collection's constraint values can't affect it.
+     *
+     * @return the columns, or null if the collection can't be partitioned
+     *         because of OR/XOR constraints or additional tables
+     */
+    public String[] getPartitionColumns() {
+        if (!partitionColumnsChecked) {
+            String[] columns = null;
+            if (constraints != null && constraints.length > 0 && additionalTables == null &&
+                    (constraints.length == 1 || logicalOperator == AND)) {
+                ArrayList list = new ArrayList();
+                for (int i = 0; i < constraints.length; i++) {
+                    if (constraints[i].foreignKeyIsPrototype()) {
+                        continue;
+                    }
+                    String column = constraints[i].foreignKeyIsPrimary() ?
+                            otherType.getIDField() : constraints[i].foreignKey;
+                    if (column.indexOf('(') > -1 || column.indexOf('.') > -1) {
+                        list = null;
+                        break;
+                    }
+                    list.add(column);
+                }
+                if (list != null && !list.isEmpty()) {
+                    columns = (String[]) list.toArray(new String[list.size()]);
+                }
+            }
+            partitionColumns = columns;
+            partitionColumnsChecked = true;
+        }
+        return partitionColumns;
+    }
+
+    /**
+     * Get the key of the collection partition for the given home node.
+     *
+     * @return the partition key, or null if the collection can't be partitioned
+     */
+    public String getPartitionKey(Node home) {
+        String[] columns = getPartitionColumns();
+        if (columns == null) {
+            return null;
+        }
+        Node nonvirtual = home.getNonVirtualParent();
+        if (nonvirtual == null) {
+            return null;
+        }
+        String[] values = new String[columns.length];
+        int c = 0;
+        try {
+            for (int i = 0; i < constraints.length; i++) {
+                if (!constraints[i].foreignKeyIsPrototype()) {
+                    values[c++] = constraints[i].getLocalValue(home, nonvirtual);
+                }
+            }
+        } catch (SQLException x) {
+            return null;
+        }
+        return getPartitionKey(columns, values);
+    }
+
+    /**
+     * Render the signature of a set of partition columns.
+     */
+    static String getPartitionSignature(String[] columns) {
+        StringBuffer b = new StringBuffer();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append(columns[i].toUpperCase());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Render a partition key from partition columns and their values.
+     */
+    static String getPartitionKey(String[] columns, String[] values) {
+        StringBuffer b = new StringBuffer(getPartitionSignature(columns));
+        for (int i = 0; i < values.length; i++) {
+            b.append('\u0000');
+            String value = values[i];
+            // numbers read into float properties render as 1.0
+            if (value != null && value.endsWith(".0")) {
+                String number = value.substring(0, value.length() - 2);
+                try {
+                    Long.parseLong(number);
+                    value = number;
+                } catch (NumberFormatException nfx) {
+                    // not an integer value
+                }
+            }
+            b.append(value);
+        }
+        return b.toString();
+    }
+
+    /**
+     * Check if the objects in this relation are ordered by their id column only.
+     * Segments of such collections can be fetched using keyset pagination.
+     *
+     * @return 1 for ascending, -1 for descending id order, 0 for any other order
+     */
+    public int getIdOrder() {
+        if (groupby != null || order == null || otherType == null) {
+            return 0;
+        }
+        StringTokenizer st = new StringTokenizer(order);
+        int tokens = st.countTokens();
+        if (tokens < 1 || tokens > 2) {
+            return 0;
+        }
+        String column = st.nextToken();
+        String idfield = otherType.getIDField();
+        if (!column.equalsIgnoreCase(idfield) &&
+                !column.equalsIgnoreCase(otherType.getTableName() + "." + idfield)) {
+            return 0;
+        }
+        if (tokens == 1) {
+            return 1;
+        }
+        String direction = st.nextToken();
+        if ("asc".equalsIgnoreCase(direction)) {
+            return 1;
+        } else if ("desc".equalsIgnoreCase(direction)) {
+            return -1;
+        }
+        return 0;
+    }
+
     /**
      *  Tell wether the property described by this relation is to be handled
      *  as readonly/write protected.
@@ -1488,29 +1684,35 @@ public final class Relation {
 
         public void addToQuery(StringBuffer q, INode home, INode nonvirtual, DbMapping otherDbm)
                         throws SQLException, ClassNotFoundException {
-            String local;
+            String local = getLocalValue(home, nonvirtual);
+
+            String columnName;
+            if (foreignKeyIsPrimary()) {
+                columnName = otherDbm.getIDField();
+            } else {
+                columnName = foreignKey;
+            }
+            otherDbm.appendCondition(q, columnName, local);
+        }
+
+        /**
+         * Get the value of the local key for the given home node.
+         */
+        public String getLocalValue(INode home, INode nonvirtual) throws SQLException {
             INode ref = isGroupby ? home : nonvirtual;
 
             if (localKeyIsPrimary(ref.getDbMapping())) {
-                local = ref.getID();
+                return ref.getID();
             } else if (localKeyIsPrototype()) {
-                local = ref.getDbMapping().getStorageTypeName();
+                return ref.getDbMapping().getStorageTypeName();
             } else {
                 String homeprop = ownType.columnNameToProperty(localKey);
                 if (homeprop == null) {
                     throw new SQLException("Invalid local name '" + localKey +
                             "' on " + ownType);
                 }
-                local = ref.getString(homeprop);
+                return ref.getString(homeprop);
             }
-
-            String columnName;
-            if (foreignKeyIsPrimary()) {
-                columnName = otherDbm.getIDField();
-            } else {
-                columnName = foreignKey;
-            }
-            otherDbm.appendCondition(q, columnName, local);
         }
 
         public boolean foreignKeyIsPrimary() {
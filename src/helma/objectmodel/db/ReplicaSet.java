@@ -0,0 +1,326 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The read replicas of a DbSource. Each replica has a connection pool of its
+ * own, configured with the pool settings of the primary data source. Replicas
+ * are checked every checkInterval milliseconds when connections are requested.
+ * A replica that can't be reached or lags more than maxLag seconds behind the
+ * primary isn't used until a later check succeeds.
+ *
+ * Replicas are configured through the data source's entries in db.properties:
+ * <pre>
+ * mySource.replica.1.url         = jdbc:...  (JDBC URL of the first replica)
+ * mySource.replica.1.user        = ...       (defaults to the primary's user)
+ * mySource.replica.1.password    = ...       (defaults to the primary's password)
+ * mySource.replica.maxLag        = 10        (seconds of replication lag tolerated)
+ * mySource.replica.lagQuery      = ...       (query returning the lag in seconds)
+ * mySource.replica.checkInterval = 10000     (millis between health checks)
+ * mySource.replica.stickyTime    = 10000     (millis reads stay on the primary after a write)
+ * </pre>
+ * The lag query defaults to suitable queries for MySQL and PostgreSQL. For
+ * other databases, replicas are only checked for availability unless a lag
+ * query is set.
+ */
+public class ReplicaSet {
+
+    private final String name;
+    private Replica[] replicas = new Replica[0];
+    private int next = 0;
+
+    private double maxLag = 10;
+    private String lagQuery;
+    private boolean isMySQL;
+    private long checkInterval = 10000L;
+    private long stickyTime = 10000L;
+
+    static final Log log = LogFactory.getLog(ReplicaSet.class);
+
+    /**
+     * Create a new replica set.
+     *
+     * @param name the name of the data source, used for log messages
+     */
+    public ReplicaSet(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Set up the replicas from the data source's settings. Replicas whose URL
+     * hasn't changed keep their connection pools.
+     *
+     * @param subProps the settings of the data source
+     * @param conProps the connection properties of the primary
+     * @param poolProps the pool settings of the primary
+     * @param source the data source the replicas belong to
+     */
+    public synchronized void configure(Properties subProps, Properties conProps,
+                                       Properties poolProps, DbSource source) {
+        maxLag = getNumber(subProps, "replica.maxLag", 10);
+        checkInterval = (long) getNumber(subProps, "replica.checkInterval", 10000);
+        stickyTime = (long) getNumber(subProps, "replica.stickyTime", 10000);
+        isMySQL = source.isMySQL();
+        lagQuery = subProps.getProperty("replica.lagQuery");
+        if (lagQuery == null) {
+            if (source.isMySQL()) {
+                lagQuery = "SHOW SLAVE STATUS";
+            } else if (source.isPostgreSQL()) {
+                lagQuery = "SELECT CASE WHEN pg_last_xact_replay_timestamp() IS NULL THEN 0 " +
+                           "ELSE EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) END";
+            }
+        }
+
+        ArrayList list = new ArrayList();
+        for (int i = 1; ; i++) {
+            String url = subProps.getProperty("replica." + i + ".url");
+            if (url == null) {
+                break;
+            }
+            Properties props = new Properties();
+            props.putAll(conProps);
+            String user = subProps.getProperty("replica." + i + ".user");
+            if (user != null) {
+                props.setProperty("user", user);
+            }
+            String password = subProps.getProperty("replica." + i + ".password");
+            if (password != null) {
+                props.setProperty("password", password);
+            }
+            Replica replica = null;
+            for (int j = 0; j < replicas.length; j++) {
+                if (replicas[j] != null && url.equals(replicas[j].url)) {
+                    replica = replicas[j];
+                    replicas[j] = null;
+                    break;
+                }
+            }
+            if (replica == null) {
+                replica = new Replica(url, new ConnectionPool(name + ".replica." + i));
+            }
+            replica.pool.configure(url, props, poolProps);
+            // check again with the new settings
+            replica.lastCheck = 0;
+            list.add(replica);
+        }
+
+        // shut down replicas that have been removed
+        for (int j = 0; j < replicas.length; j++) {
+            if (replicas[j] != null) {
+                replicas[j].pool.shutdown();
+            }
+        }
+        replicas = (Replica[]) list.toArray(new Replica[list.size()]);
+    }
+
+    /**
+     * Check if any replicas are configured.
+     */
+    public synchronized boolean isEmpty() {
+        return replicas.length == 0;
+    }
+
+    /**
+     * Get the number of milliseconds reads should stay on the primary after
+     * a transaction has written to it.
+     */
+    public long getStickyTime() {
+        return stickyTime;
+    }
+
+    /**
+     * Get a connection to a healthy replica, choosing replicas in turn.
+     *
+     * @return a pooled replica connection, or null if no replica is available
+     */
+    public Connection getConnection() {
+        return getConnection(true);
+    }
+
+    /**
+     * Get a connection to a healthy replica without waiting for one to be
+     * returned to its pool.
+     *
+     * @return a pooled replica connection, or null if none is available right away
+     */
+    public Connection tryGetConnection() {
+        return getConnection(false);
+    }
+
+    private Connection getConnection(boolean wait) {
+        Replica[] candidates;
+        int start;
+        synchronized (this) {
+            candidates = replicas;
+            start = next++;
+        }
+
+        for (int i = 0; i < candidates.length; i++) {
+            Replica replica = candidates[(start + i) % candidates.length];
+            if (!isHealthy(replica)) {
+                continue;
+            }
+            try {
+                Connection con = wait ? replica.pool.getConnection() :
+                                        replica.pool.tryGetConnection();
+                if (con != null) {
+                    return con;
+                }
+            } catch (SQLException x) {
+                log.error("Error connecting to replica " + replica.url + ": " + x.getMessage());
+                synchronized (replica) {
+                    replica.healthy = false;
+                    replica.lastCheck = System.currentTimeMillis();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check a replica if it is due, and tell whether it is healthy. Only one
+     * thread checks a replica, others use the result of the previous check.
+     */
+    private boolean isHealthy(Replica replica) {
+        long now = System.currentTimeMillis();
+        synchronized (replica) {
+            if (replica.checking || now - replica.lastCheck < checkInterval) {
+                return replica.healthy;
+            }
+            replica.checking = true;
+        }
+
+        boolean healthy = false;
+        Connection con = null;
+        try {
+            con = replica.pool.getConnection();
+            double lag = getLag(con);
+            healthy = lag >= 0 && lag <= maxLag;
+            if (!healthy && replica.healthy) {
+                log.warn("Replica " + replica.url + " of " + name + " lags behind by " +
+                         (lag < 0 ? "unknown" : Double.toString(lag)) + " seconds");
+            }
+        } catch (SQLException x) {
+            if (replica.healthy) {
+                log.error("Replica " + replica.url + " of " + name + " failed: " + x.getMessage());
+            }
+        } finally {
+            if (con != null) {
+                try {
+                    con.close();
+                } catch (Exception ignore) {
+                    // nothing to do
+                }
+            }
+            synchronized (replica) {
+                replica.healthy = healthy;
+                replica.lastCheck = System.currentTimeMillis();
+                replica.checking = false;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Get the replication lag of a replica in seconds, or -1 if replication
+     * isn't running.
+     */
+    private double getLag(Connection con) throws SQLException {
+        if (lagQuery == null) {
+            return 0;
+        }
+        Statement stmt = con.createStatement();
+        try {
+            ResultSet rs = stmt.executeQuery(lagQuery);
+            if (!rs.next()) {
+                // not configured as a replica, so there is no lag
+                return 0;
+            }
+            Object value = isMySQL && lagQuery.equalsIgnoreCase("SHOW SLAVE STATUS") ?
+                    rs.getObject("Seconds_Behind_Master") : rs.getObject(1);
+            if (value == null) {
+                return -1;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            } else {
+                try {
+                    return Double.parseDouble(value.toString().trim());
+                } catch (NumberFormatException x) {
+                    return -1;
+                }
+            }
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Close the idle connections of all replicas.
+     */
+    public synchronized void shutdown() {
+        for (int i = 0; i < replicas.length; i++) {
+            replicas[i].pool.shutdown();
+        }
+    }
+
+    private static double getNumber(Properties props, String key, double defaultValue) {
+        String value = props.getProperty(key);
+        if (value != null) {
+            try {
+                return Double.parseDouble(value.trim());
+            } catch (NumberFormatException nfx) {
+                log.error("Invalid value for " + key + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    public synchronized String toString() {
+        StringBuffer b = new StringBuffer("ReplicaSet[").append(name);
+        for (int i = 0; i < replicas.length; i++) {
+            b.append(", ").append(replicas[i].url)
+             .append(replicas[i].healthy ? " (up)" : " (down)");
+        }
+        return b.append("]").toString();
+    }
+
+    /**
+     * A replica with its connection pool and health state.
+     */
+    static class Replica {
+        final String url;
+        final ConnectionPool pool;
+        volatile boolean healthy = true;
+        long lastCheck = 0;
+        boolean checking = false;
+
+        Replica(String url, ConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+    }
+}
@@ -180,7 +180,15 @@ public class SegmentedSubnodeList extends SubnodeList {
         Segment segment = segments[seg];
         if (segment != null && !segment.loaded) {
             Relation rel = getSubnodeRelation().getClone();
-            rel.offset = segment.startIndex;
+            Segment previous = seg > 0 ? segments[seg - 1] : null;
+            if (previous != null && previous.lastKey != null && rel.getIdOrder() != 0) {
+                // collection is ordered by id: seek past the last key of the
+                // previous segment rather than making the database skip rows
+                rel.seekKey = previous.lastKey;
+                rel.offset = 0;
+            } else {
+                rel.offset = segment.startIndex;
+            }
             int expectedSize = rel.maxSize = segment.length;
             List seglist =  deep ?
                     node.nmgr.getNodes(node, rel) :
@@ -198,6 +206,9 @@ public class SegmentedSubnodeList extends SubnodeList {
                 }
                 // FIXME how to handle inconsistencies?
             }
+            if (actualSize > 0) {
+                segment.lastKey = ((NodeHandle) seglist.get(actualSize - 1)).getID();
+            }
             segment.loaded = true;
             return seglist;
         }
@@ -248,6 +259,8 @@ public class SegmentedSubnodeList extends SubnodeList {
 
         int startIndex, length;
         boolean loaded;
+        // id of the last node fetched for this segment, used as seek key for the next one
+        String lastKey;
 
         Segment(int startIndex, int length) {
             this.startIndex = startIndex;
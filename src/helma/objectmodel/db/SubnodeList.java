@@ -139,6 +139,15 @@ public class SubnodeList implements Serializable {
     }
 
     protected void prefetch(int start, int length) {
+        prefetch(start, length, null);
+    }
+
+    /**
+     * Prefetch a range of child nodes along with the nodes referenced by the
+     * given properties. If references is null, the references configured by
+     * the prefetch option of the subnode relation are fetched.
+     */
+    protected void prefetch(int start, int length, String[] references) {
         if (start < 0 || start >= size()) {
             return;
         }
@@ -153,6 +162,12 @@ public class SubnodeList implements Serializable {
         if (dbmap.isRelational()) {
             Relation rel = getSubnodeRelation();
             node.nmgr.prefetchNodes(node, rel, this, start, length);
+            if (references == null) {
+                references = rel.getPrefetchReferences();
+            }
+            if (references != null) {
+                node.nmgr.prefetchReferences(node, rel, this, start, length, references);
+            }
         }
     }
 
@@ -162,10 +177,11 @@ public class SubnodeList implements Serializable {
      */
     protected long getLastSubnodeChange() {
         // include dbmap.getLastTypeChange to also reload if the type mapping has changed.
+        // data changes are only considered if they may affect this collection.
         long checkSum = lastSubnodeChange + node.dbmap.getLastTypeChange();
         Relation rel = getSubnodeRelation();
         return rel == null || rel.aggressiveCaching ?
-                checkSum : checkSum + rel.otherType.getLastDataChange();
+                checkSum : checkSum + rel.otherType.getLastDataChange(rel, node);
     }
 
     protected synchronized void markAsChanged() {
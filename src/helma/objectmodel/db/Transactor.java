@@ -20,7 +20,6 @@ import helma.objectmodel.DatabaseException;
 import helma.objectmodel.ITransaction;
 
 import java.sql.Connection;
-import java.sql.Statement;
 import java.sql.SQLException;
 import java.util.*;
 
@@ -54,12 +53,42 @@ public class Transactor {
     // Transactions for SQL data sources
     private Map sqlConnections;
 
-    // Set of SQL connections that already have been verified
-    private Map testedConnections;
+    // Connections to read replicas, by DbSource
+    private Map replicaConnections;
+
+    // Cursors opened during the current transaction
+    private List openCursors;
 
     // when did the current transaction start?
     private long tstart;
 
+    // number of nodes written by the current transaction, including flushes
+    private int inserted, updated, deleted;
+    // number of intermediate flushes in the current transaction
+    private int flushes;
+
+    // dirty node count and estimated size causing an intermediate flush, 0 to disable
+    private int flushNodes;
+    private long flushBytes;
+    // estimated size of the dirty nodes
+    private long dirtyBytes;
+    // dirty nodes whose size hasn't been estimated yet
+    private ArrayList unweighedNodes = new ArrayList();
+    // set once the transaction has been flushed. Relational connections are
+    // then used in a JDBC transaction that ends with the Helma transaction.
+    private boolean flushed;
+    // the error that occurred in an automatic flush, reported on commit
+    private Exception flushError;
+    // DbMappings and collection partitions changed by flushes, which are only
+    // marked as changed once the transaction commits
+    private HashSet writtenDbMappings = new HashSet();
+    private HashMap writtenDataChanges = new HashMap();
+    // keys of flushed nodes, to evict them if the transaction is aborted
+    private ArrayList flushedKeys = new ArrayList();
+
+    // interval in new dirty nodes at which their sizes are estimated
+    static final int WEIGH_INTERVAL = 256;
+
     // a name to log the transaction. For HTTP transactions this is the rerquest path
     private String tname;
 
@@ -82,7 +111,8 @@ public class Transactor {
         parentNodes = new HashSet();
 
         sqlConnections = new HashMap();
-        testedConnections = new HashMap();
+        replicaConnections = new HashMap();
+        openCursors = new ArrayList();
         active = false;
         killed = false;
     }
@@ -131,10 +161,80 @@ public class Transactor {
         if (node != null) {
             Key key = node.getKey();
 
-            dirtyNodes.put(key, node);
+            if (dirtyNodes.put(key, node) == null && (flushNodes > 0 || flushBytes > 0)) {
+                checkFlush(node);
+            }
+        }
+    }
+
+    /**
+     * Flush the oldest dirty nodes to the database if the dirty node count
+     * or their estimated size exceeds the thresholds of this transaction.
+     * The most recently modified nodes are kept, since the script may not be
+     * done modifying them.
+     *
+     * @param node the node that has just been marked as dirty
+     */
+    private void checkFlush(Node node) {
+        if (flushError != null) {
+            // the transaction is going to fail anyway
+            return;
+        }
+        int size = dirtyNodes.size();
+        boolean flush = flushNodes > 0 && size >= flushNodes;
+
+        if (flushBytes > 0) {
+            unweighedNodes.add(node);
+            if (unweighedNodes.size() >= WEIGH_INTERVAL) {
+                // nodes are weighed some time after they have become dirty,
+                // when their properties have likely been set
+                for (int i = 0; i < unweighedNodes.size(); i++) {
+                    dirtyBytes += WeightedNodeCache.estimateSize(unweighedNodes.get(i));
+                }
+                unweighedNodes.clear();
+                flush = flush || dirtyBytes >= flushBytes;
+            }
+        }
+
+        if (flush) {
+            try {
+                flush(Math.max(1, size / 10));
+            } catch (Exception x) {
+                // fail the transaction rather than the code that modified the node
+                flushError = x;
+                nmgr.app.logError("Error flushing transaction " + tname, x);
+            }
         }
     }
 
+    /**
+     * Set the number of dirty nodes at which the current transaction writes
+     * its changes to the database before it is committed. Flushed nodes are no
+     * longer held by the transaction, so the memory used by transactions
+     * modifying large numbers of nodes stays bounded.
+     *
+     * Once a transaction has been flushed, its relational connections leave
+     * auto-commit mode, so the flushed changes are committed or rolled back
+     * together with the rest of the transaction. Other threads see flushed
+     * nodes in the node cache before they are committed, though.
+     *
+     * @param nodes the number of dirty nodes causing a flush, or 0 to disable
+     */
+    public void setFlushSize(int nodes) {
+        flushNodes = Math.max(0, nodes);
+    }
+
+    /**
+     * Set the estimated size of dirty nodes at which the current transaction
+     * writes its changes to the database before it is committed.
+     *
+     * @param bytes the size in bytes causing a flush, or 0 to disable
+     * @see #setFlushSize(int)
+     */
+    public void setFlushMemory(long bytes) {
+        flushBytes = Math.max(0, bytes);
+    }
+
     /**
      * Unmark a Node that has previously been marked as modified during the transaction
      *
@@ -157,6 +257,14 @@ public class Transactor {
         return (Node) dirtyNodes.get(key);
     }
 
+    /**
+     * Check if any nodes have been modified in this transaction.
+     * @return true if there are dirty nodes or the transaction has been flushed
+     */
+    public boolean hasDirtyNodes() {
+        return flushed || !dirtyNodes.isEmpty();
+    }
+
     /**
      * Keep a reference to an unmodified Node local to this transaction
      *
@@ -205,6 +313,15 @@ public class Transactor {
         return (key == null) ? null : (Node) cleanNodes.get(key);
     }
 
+    /**
+     * Get the unmodified Nodes registered with this transaction.
+     *
+     * @return a snapshot of the clean nodes
+     */
+    public Collection getCleanNodes() {
+        return new ArrayList(cleanNodes.values());
+    }
+
     /**
      *
      *
@@ -237,36 +354,40 @@ public class Transactor {
      * @param src the db source
      * @param con the connection
      */
-    public void registerConnection(DbSource src, Connection con) {
+    public void registerConnection(DbSource src, Connection con) throws SQLException {
+        if (flushed && con.getAutoCommit()) {
+            con.setAutoCommit(false);
+        }
         sqlConnections.put(src, con);
-        // we assume a freshly created connection is ok.
-        testedConnections.put(src, new Long(System.currentTimeMillis()));
     }
 
     /**
      * Get a db connection that was previously registered with this transactor thread.
+     * Connections are pooled and validated by the DbSource when they are checked out,
+     * so there's no need to test them here.
      * @param src the db source
      * @return the connection
      */
     public Connection getConnection(DbSource src) {
-        Connection con = (Connection) sqlConnections.get(src);
-        Long tested = (Long) testedConnections.get(src);
-        long now = System.currentTimeMillis();
-        if (con != null && (tested == null || now - tested.longValue() > 60000)) {
-            // Check if the connection is still alive by executing a simple statement.
-            try {
-                Statement stmt = con.createStatement();
-                stmt.execute("SELECT 1");
-                stmt.close();
-                testedConnections.put(src, new Long(now));
-            } catch (SQLException sx) {
-                try {
-                    con.close();
-                } catch (SQLException ignore) {/* nothing to do */}
-                return null;
-            }
-        }
-        return con;
+        return (Connection) sqlConnections.get(src);
+    }
+
+    /**
+     * Register a connection to a read replica of a db source with this transactor thread.
+     * @param src the db source
+     * @param con the replica connection
+     */
+    public void registerReplicaConnection(DbSource src, Connection con) {
+        replicaConnections.put(src, con);
+    }
+
+    /**
+     * Get a replica connection that was previously registered with this transactor thread.
+     * @param src the db source
+     * @return the replica connection, or null
+     */
+    public Connection getReplicaConnection(DbSource src) {
+        return (Connection) replicaConnections.get(src);
     }
 
     /**
@@ -287,6 +408,11 @@ public class Transactor {
         dirtyNodes.clear();
         cleanNodes.clear();
         parentNodes.clear();
+        inserted = updated = deleted = flushes = 0;
+        flushed = false;
+        flushError = null;
+        setFlushSize(nmgr.getTransactionFlushSize());
+        setFlushMemory(nmgr.getTransactionFlushMemory());
         txn = nmgr.db.beginTransaction();
         active = true;
         tstart = System.currentTimeMillis();
@@ -303,17 +429,20 @@ public class Transactor {
             throw new DatabaseException("commit() called on killed transactor thread");
         } else if (!active) {
             return;
+        } else if (flushError != null) {
+            Exception x = flushError;
+            abort();
+            throw x;
         }
-        int inserted = 0;
-        int updated = 0;
-        int deleted = 0;
-
         ArrayList insertedNodes = null;
         ArrayList updatedNodes = null;
         ArrayList deletedNodes = null;
         ArrayList modifiedParentNodes = null;
         // if nodemanager has listeners collect dirty nodes
         boolean hasListeners = nmgr.hasNodeChangeListeners();
+        // relational nodes are collected and written in JDBC batches if enabled
+        int batchSize = nmgr.getCommitBatchSize();
+        CommitBatch batch = batchSize > 0 ? new CommitBatch(nmgr, batchSize) : null;
 
         if (hasListeners) {
             insertedNodes = new ArrayList();
@@ -322,84 +451,9 @@ public class Transactor {
             modifiedParentNodes = new ArrayList();
         }
 
-        if (!dirtyNodes.isEmpty()) {
-            Object[] dirty = dirtyNodes.values().toArray();
-
-            // the set to collect DbMappings to be marked as changed
-            HashSet dirtyDbMappings = new HashSet();
-            Log eventLog = nmgr.app.getEventLog();
-
-            for (int i = 0; i < dirty.length; i++) {
-                Node node = (Node) dirty[i];
-
-                // update nodes in db
-                int nstate = node.getState();
-
-                if (nstate == Node.NEW) {
-                    nmgr.insertNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-                    node.setState(Node.CLEAN);
-
-                    // register node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (hasListeners) {
-                        insertedNodes.add(node);
-                    }
-
-                    inserted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("inserted node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.MODIFIED) {
-                    // only mark DbMapping as dirty if updateNode returns true
-                    if (nmgr.updateNode(nmgr.db, txn, node)) {
-                        dirtyDbMappings.add(node.getDbMapping());
-                    }
-                    node.setState(Node.CLEAN);
-
-                    // update node with nodemanager cache
-                    nmgr.registerNode(node);
-
-                    if (hasListeners) {
-                        updatedNodes.add(node);
-                    }
-
-                    updated++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("updated node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                } else if (nstate == Node.DELETED) {
-                    nmgr.deleteNode(nmgr.db, txn, node);
-                    dirtyDbMappings.add(node.getDbMapping());
-
-                    // remove node from nodemanager cache
-                    nmgr.evictNode(node);
-
-                    if (hasListeners) {
-                        deletedNodes.add(node);
-                    }
-
-                    deleted++;
-                    if (eventLog.isDebugEnabled()) {
-                        eventLog.debug("removed node: " + node.getPrototype() + "/" +
-                                node.getID());
-                    }
-                }
-
-                node.clearWriteLock();
-            }
-
-            // set last data change times in db-mappings
-            // long now = System.currentTimeMillis();
-            for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
-                DbMapping dbm = (DbMapping) i.next();
-                if (dbm != null) {
-                    dbm.setLastDataChange();
-                }
-            }
+        if (!dirtyNodes.isEmpty() || flushed) {
+            writeNodes(dirtyNodes.values().toArray(), batch,
+                       insertedNodes, updatedNodes, deletedNodes, true);
         }
 
         long now = System.currentTimeMillis();
@@ -429,6 +483,10 @@ public class Transactor {
             txn = null;
         }
 
+        // return pooled JDBC connections so other threads can use them
+        closeCursors();
+        releaseConnections();
+
         StringBuffer msg = new StringBuffer(tname).append(" done in ")
                 .append(now - tstart).append(" millis");
         if(inserted + updated + deleted > 0) {
@@ -437,12 +495,275 @@ public class Transactor {
                     .append(updated).append(", -")
                     .append(deleted).append("]");
         }
+        if (flushes > 0) {
+            msg.append(" flushes: ").append(flushes);
+        }
+        if (batch != null && !batch.isEmpty()) {
+            msg.append(" batches: [").append(batch).append("]");
+        }
         nmgr.app.logAccess(msg.toString());
 
         // unset transaction name
         tname = null;
     }
 
+    /**
+     * Write the changes made so far in the current transaction to the database,
+     * without committing the database transactions or marking modified
+     * collections as changed. The flushed nodes, as well as the clean nodes
+     * visited so far, are released by the transaction and can be evicted
+     * from the node cache.
+     *
+     * @throws Exception if writing a node fails
+     */
+    public synchronized void flush() throws Exception {
+        flush(0);
+    }
+
+    /**
+     * Flush all but the given number of most recently modified dirty nodes.
+     */
+    private synchronized void flush(int keep) throws Exception {
+        if (!active) {
+            return;
+        }
+        int count = dirtyNodes.size() - keep;
+        if (count <= 0) {
+            return;
+        }
+
+        Object[] dirty = new Object[count];
+        Iterator it = dirtyNodes.values().iterator();
+        for (int i = 0; i < count; i++) {
+            dirty[i] = it.next();
+        }
+
+        ArrayList insertedNodes = null;
+        ArrayList updatedNodes = null;
+        ArrayList deletedNodes = null;
+        boolean hasListeners = nmgr.hasNodeChangeListeners();
+        int batchSize = nmgr.getCommitBatchSize();
+        CommitBatch batch = batchSize > 0 ? new CommitBatch(nmgr, batchSize) : null;
+
+        if (hasListeners) {
+            insertedNodes = new ArrayList();
+            updatedNodes = new ArrayList();
+            deletedNodes = new ArrayList();
+        }
+
+        beginSqlTransaction();
+        writeNodes(dirty, batch, insertedNodes, updatedNodes, deletedNodes, false);
+
+        // only drop the nodes once they are written, so abort() evicts them otherwise
+        it = dirtyNodes.values().iterator();
+        for (int i = 0; i < count; i++) {
+            flushedKeys.add(((Node) it.next()).getKey());
+            it.remove();
+        }
+
+        if (hasListeners) {
+            nmgr.fireNodeChangeEvent(insertedNodes, updatedNodes,
+                                     deletedNodes, new ArrayList());
+        }
+
+        // release flushed and visited nodes so they can be evicted
+        cleanNodes.clear();
+        unweighedNodes.clear();
+        dirtyBytes = 0;
+        if (flushBytes > 0) {
+            unweighedNodes.addAll(dirtyNodes.values());
+        }
+        flushes++;
+
+        Log eventLog = nmgr.app.getEventLog();
+        if (eventLog.isDebugEnabled()) {
+            eventLog.debug(tname + " flushed " + count + " nodes");
+        }
+    }
+
+    /**
+     * Write dirty nodes to the database and update the node cache accordingly.
+     *
+     * @param dirty the dirty nodes, in the order they were modified
+     * @param batch the batch to collect relational writes in, or null
+     * @param insertedNodes the list to collect inserted nodes in, or null if
+     *                      there are no node change listeners
+     * @param updatedNodes the list to collect updated nodes in, or null
+     * @param deletedNodes the list to collect deleted nodes in, or null
+     * @param publish true to commit the JDBC transaction of a flushed transaction
+     *                and mark the changes written so far as changed, false if
+     *                the nodes are flushed
+     */
+    private void writeNodes(Object[] dirty, CommitBatch batch, ArrayList insertedNodes,
+                            ArrayList updatedNodes, ArrayList deletedNodes, boolean publish)
+            throws Exception {
+        // the set to collect DbMappings to be marked as changed
+        HashSet dirtyDbMappings = writtenDbMappings;
+        // the collection partitions affected by the changes, by storage DbMapping
+        HashMap dataChanges = writtenDataChanges;
+        // cached collection counts to adjust to our inserts and deletes
+        CountCache counts = publish ? nmgr.getCountCache() : null;
+        List countUpdates = null;
+
+        if (counts != null) {
+            counts.beginWrite();
+        }
+
+        try {
+            // pairs of nodes written in the batch and their states, which are
+            // only completed once the batch has succeeded
+            ArrayList batched = null;
+
+            for (int i = 0; i < dirty.length; i++) {
+                Node node = (Node) dirty[i];
+
+                // update nodes in db
+                int nstate = node.getState();
+
+                // record affected collections before property dirty flags are cleared
+                if ((nstate == Node.NEW || nstate == Node.MODIFIED || nstate == Node.DELETED)
+                        && node.getDbMapping() != null) {
+                    node.getDbMapping().collectDataChange(node, dataChanges);
+                }
+
+                boolean added = false;
+                if (nstate == Node.NEW) {
+                    if (batch == null || !(added = batch.insert(node))) {
+                        nmgr.insertNode(nmgr.db, txn, node);
+                        dirtyDbMappings.add(node.getDbMapping());
+                    }
+                } else if (nstate == Node.MODIFIED) {
+                    // only mark DbMapping as dirty if updateNode returns true
+                    if (batch == null || !(added = batch.update(node))) {
+                        if (nmgr.updateNode(nmgr.db, txn, node)) {
+                            dirtyDbMappings.add(node.getDbMapping());
+                        }
+                    }
+                } else if (nstate == Node.DELETED) {
+                    if (batch == null || !(added = batch.delete(node))) {
+                        nmgr.deleteNode(nmgr.db, txn, node);
+                        dirtyDbMappings.add(node.getDbMapping());
+                    }
+                }
+
+                if (added) {
+                    if (batched == null) {
+                        batched = new ArrayList();
+                    }
+                    batched.add(node);
+                    batched.add(new Integer(nstate));
+                } else {
+                    nodeWritten(node, nstate, insertedNodes, updatedNodes, deletedNodes);
+                }
+            }
+
+            // write batched relational nodes. The nodes keep their state and write
+            // locks until the batch has succeeded; if it fails, abort() evicts them.
+            if (batched != null) {
+                batch.execute(dirtyDbMappings);
+                for (int i = 0; i < batched.size(); i += 2) {
+                    nodeWritten((Node) batched.get(i),
+                            ((Integer) batched.get(i + 1)).intValue(),
+                            insertedNodes, updatedNodes, deletedNodes);
+                }
+            }
+
+            if (!publish) {
+                return;
+            }
+
+            if (counts != null) {
+                countUpdates = counts.prepareUpdates(dataChanges);
+            }
+
+            // flushed changes must be visible before the stamps change
+            commitSqlTransaction();
+
+            // keep all threads reading from the primary until the replicas have
+            // caught up. This must happen before the new stamps are visible, so
+            // nobody caches replica data under them.
+            for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
+                DbMapping dbm = (DbMapping) i.next();
+                if (dbm != null && dbm.isRelational()) {
+                    dbm.getDbSource().markWritten();
+                }
+            }
+
+            // set last data change times in db-mappings, once per storage
+            // long now = System.currentTimeMillis();
+            HashSet storages = new HashSet();
+            for (Iterator i = dirtyDbMappings.iterator(); i.hasNext(); ) {
+                DbMapping dbm = (DbMapping) i.next();
+                if (dbm != null && storages.add(dbm.getStorageMapping())) {
+                    dbm.setLastDataChange(dataChanges);
+                }
+            }
+        } finally {
+            if (counts != null) {
+                counts.endWrite(countUpdates);
+            }
+        }
+    }
+
+    /**
+     * Update the state of a node that has been written to the database and the
+     * node cache, and release the node's write lock.
+     *
+     * @param node the node
+     * @param nstate the state of the node before it was written
+     */
+    private void nodeWritten(Node node, int nstate, ArrayList insertedNodes,
+                             ArrayList updatedNodes, ArrayList deletedNodes) {
+        Log eventLog = nmgr.app.getEventLog();
+
+        if (nstate == Node.NEW) {
+            node.setState(Node.CLEAN);
+
+            // register node with nodemanager cache
+            nmgr.registerNode(node);
+
+            if (insertedNodes != null) {
+                insertedNodes.add(node);
+            }
+
+            inserted++;
+            if (eventLog.isDebugEnabled()) {
+                eventLog.debug("inserted node: " + node.getPrototype() + "/" +
+                        node.getID());
+            }
+        } else if (nstate == Node.MODIFIED) {
+            node.setState(Node.CLEAN);
+
+            // update node with nodemanager cache
+            nmgr.registerNode(node);
+
+            if (updatedNodes != null) {
+                updatedNodes.add(node);
+            }
+
+            updated++;
+            if (eventLog.isDebugEnabled()) {
+                eventLog.debug("updated node: " + node.getPrototype() + "/" +
+                        node.getID());
+            }
+        } else if (nstate == Node.DELETED) {
+            // remove node from nodemanager cache
+            nmgr.evictNode(node);
+
+            if (deletedNodes != null) {
+                deletedNodes.add(node);
+            }
+
+            deleted++;
+            if (eventLog.isDebugEnabled()) {
+                eventLog.debug("removed node: " + node.getPrototype() + "/" +
+                        node.getID());
+            }
+        }
+
+        node.clearWriteLock();
+    }
+
     /**
      * Abort the current transaction, rolling back all changes made.
      */
@@ -459,6 +780,11 @@ public class Transactor {
             node.clearWriteLock();
         }
 
+        // flushed nodes are cached with their uncommitted changes
+        for (int i = 0; i < flushedKeys.size(); i++) {
+            nmgr.evictNodeByKey((Key) flushedKeys.get(i));
+        }
+
         long now = System.currentTimeMillis();
 
         // set last subnode change times in parent nodes
@@ -470,6 +796,8 @@ public class Transactor {
         // clear the node collections
         recycle();
         // close any JDBC connections associated with this transactor thread
+        closeCursors();
+        rollbackSqlTransaction();
         closeConnections();
 
         if (active) {
@@ -522,6 +850,60 @@ public class Transactor {
         }
     }
 
+    /**
+     * Take the relational connections of a transaction that is about to be
+     * flushed out of auto-commit mode, so the flushed changes are only
+     * committed with the transaction.
+     */
+    private void beginSqlTransaction() throws SQLException {
+        if (flushed) {
+            return;
+        }
+        flushed = true;
+        for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
+            Connection con = (Connection) i.next();
+            if (con.getAutoCommit()) {
+                con.setAutoCommit(false);
+            }
+        }
+    }
+
+    /**
+     * Commit the JDBC transactions of a flushed transaction.
+     */
+    private void commitSqlTransaction() throws SQLException {
+        if (!flushed) {
+            return;
+        }
+        for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
+            Connection con = (Connection) i.next();
+            if (!con.getAutoCommit()) {
+                con.commit();
+            }
+        }
+        flushed = false;
+    }
+
+    /**
+     * Roll back the JDBC transactions of a flushed transaction.
+     */
+    private void rollbackSqlTransaction() {
+        if (!flushed) {
+            return;
+        }
+        for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
+            try {
+                Connection con = (Connection) i.next();
+                if (!con.getAutoCommit()) {
+                    con.rollback();
+                }
+            } catch (Exception ignore) {
+                // the connection is discarded or rolled back by its pool
+            }
+        }
+        flushed = false;
+    }
+
     /**
      * Closes all open JDBC connections
      */
@@ -539,8 +921,80 @@ public class Transactor {
             }
 
             sqlConnections.clear();
-            testedConnections.clear();
         }
+        closeReplicaConnections();
+    }
+
+    /**
+     * Return all connections to read replicas to their pools.
+     */
+    private void closeReplicaConnections() {
+        if (!replicaConnections.isEmpty()) {
+            for (Iterator i = replicaConnections.values().iterator(); i.hasNext();) {
+                try {
+                    ((Connection) i.next()).close();
+                } catch (Exception ignore) {
+                    // exception releasing db connection, ignore
+                }
+            }
+
+            replicaConnections.clear();
+        }
+    }
+
+    /**
+     * Register a cursor to be closed when the current transaction ends.
+     *
+     * @param cursor the cursor
+     */
+    public synchronized void registerCursor(NodeCursor cursor) {
+        openCursors.add(cursor);
+    }
+
+    /**
+     * Unregister a cursor that has been closed.
+     *
+     * @param cursor the cursor
+     */
+    public synchronized void unregisterCursor(NodeCursor cursor) {
+        openCursors.remove(cursor);
+    }
+
+    /**
+     * Close all cursors opened during the current transaction.
+     */
+    private void closeCursors() {
+        NodeCursor[] cursors;
+        synchronized (this) {
+            if (openCursors.isEmpty()) {
+                return;
+            }
+            cursors = (NodeCursor[]) openCursors.toArray(new NodeCursor[openCursors.size()]);
+            openCursors.clear();
+        }
+        for (int i = 0; i < cursors.length; i++) {
+            cursors[i].close();
+        }
+    }
+
+    /**
+     * Return all JDBC connections held by this transactor to their pools.
+     * This is called after each successful commit, so a transactor only holds
+     * on to a connection while a transaction is running.
+     */
+    private void releaseConnections() {
+        if (sqlConnections != null && !sqlConnections.isEmpty()) {
+            for (Iterator i = sqlConnections.values().iterator(); i.hasNext();) {
+                try {
+                    ((Connection) i.next()).close();
+                } catch (Exception ignore) {
+                    // exception releasing db connection, ignore
+                }
+            }
+
+            sqlConnections.clear();
+        }
+        closeReplicaConnections();
     }
 
     /**
@@ -553,6 +1007,11 @@ public class Transactor {
         dirtyNodes.clear();
         cleanNodes.clear();
         parentNodes.clear();
+        unweighedNodes.clear();
+        dirtyBytes = 0;
+        writtenDbMappings.clear();
+        writtenDataChanges.clear();
+        flushedKeys.clear();
     }
 
     /**
@@ -0,0 +1,631 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ConcurrentObjectCache;
+import helma.objectmodel.EvictionListener;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A node cache bounded by the estimated memory retained by its nodes rather than
+ * by the number of entries. The size of a node is estimated from its property
+ * values, the number of properties and the length of its subnode list.
+ *
+ * The cache is configured through the following app properties:
+ * <pre>
+ * cachememory             = 64M   (total byte budget, suffixes K, M and G are allowed)
+ * cachememory.Story       = 16M   (byte budget for nodes of prototype Story)
+ * cachesize               = 100000 (optional upper bound for the number of entries)
+ * cachesegments           = 16    (number of separately locked segments)
+ * </pre>
+ * This cache is used if cachememory is set and no cacheimpl is specified.
+ * Like {@link helma.util.ConcurrentCacheMap}, keys are spread over separately
+ * locked segments, each of which gets an equal share of the budgets and evicts
+ * its least recently used entries.
+ */
+public class WeightedNodeCache implements ConcurrentObjectCache {
+
+    // estimated sizes in bytes
+    static final int ENTRY_OVERHEAD = 64;
+    static final int NODE_OVERHEAD = 160;
+    static final int PROPERTY_OVERHEAD = 64;
+    static final int SLOT_OVERHEAD = 8;
+    static final int HANDLE_SIZE = 48;
+    static final int STRING_OVERHEAD = 40;
+
+    // entry sizes are re-estimated every n-th time an entry is read
+    static final int REWEIGH_INTERVAL = 64;
+
+    private Segment[] segments;
+    private Application app;
+    private EvictionListener evictionListener;
+
+    private long maxBytes = 64L * 1024 * 1024;
+    private int maxEntries = 0;
+    // byte budgets by lower case prototype name
+    private Map prototypeBudgets = new HashMap();
+
+    /**
+     * Zero argument constructor. Creates a cache with 16 segments and
+     * a budget of 64 megabytes.
+     */
+    public WeightedNodeCache() {
+        createSegments(16);
+    }
+
+    private void createSegments(int concurrency) {
+        int count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+        Segment[] newSegments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            newSegments[i] = new Segment();
+            newSegments[i].listener = evictionListener;
+        }
+        segments = newSegments;
+        applyBudgets();
+    }
+
+    private void applyBudgets() {
+        Segment[] segs = segments;
+        HashMap shares = new HashMap();
+        for (Iterator it = prototypeBudgets.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) it.next();
+            long budget = ((Long) entry.getValue()).longValue();
+            shares.put(entry.getKey(), new Long(Math.max(1, budget / segs.length)));
+        }
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].setBudgets(Math.max(1, maxBytes / segs.length),
+                    maxEntries > 0 ? Math.max(1, maxEntries / segs.length) : 0,
+                    shares);
+        }
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        // spread bits so keys with similar hash codes use different segments
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        Segment[] segs = segments;
+        return segs[h & (segs.length - 1)];
+    }
+
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            Properties props = app.getProperties();
+            String segs = props.getProperty("cachesegments");
+            if (segs != null) {
+                try {
+                    createSegments(Integer.parseInt(segs.trim()));
+                } catch (NumberFormatException x) {
+                    app.logError("Invalid cachesegments setting: " + segs);
+                }
+            }
+            updateProperties(props);
+        }
+    }
+
+    public void shutdown() {
+        clear();
+    }
+
+    public void updateProperties(Properties props) {
+        maxBytes = parseSize(props, "cachememory", 64L * 1024 * 1024);
+        maxEntries = (int) parseSize(props, "cachesize", 0);
+
+        HashMap budgets = new HashMap();
+        for (Enumeration e = props.propertyNames(); e.hasMoreElements(); ) {
+            String key = (String) e.nextElement();
+            if (key.toLowerCase().startsWith("cachememory.")) {
+                long budget = parseSize(props, key, 0);
+                if (budget > 0) {
+                    budgets.put(key.substring(12).toLowerCase(), new Long(budget));
+                }
+            }
+        }
+        prototypeBudgets = budgets;
+        applyBudgets();
+
+        if (app != null) {
+            app.logEvent("Setting cache memory to " + maxBytes + " bytes, prototype budgets: " +
+                    budgets);
+        }
+    }
+
+    /**
+     * Parse a byte size with an optional K, M or G suffix.
+     */
+    private long parseSize(Properties props, String key, long defaultValue) {
+        String value = props.getProperty(key);
+        if (value == null || value.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return parseByteSize(value);
+        } catch (NumberFormatException x) {
+            String message = "Invalid " + key + " setting: " + props.getProperty(key);
+            if (app != null) {
+                app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Parse a byte size such as "512K", "64M" or "2G".
+     *
+     * @throws NumberFormatException if the value is not a valid size
+     */
+    public static long parseByteSize(String value) throws NumberFormatException {
+        value = value.trim().toUpperCase();
+        long factor = 1;
+        char unit = value.charAt(value.length() - 1);
+        if (unit == 'K' || unit == 'M' || unit == 'G') {
+            factor = unit == 'K' ? 1024L : (unit == 'M' ? 1024L * 1024 : 1024L * 1024 * 1024);
+            value = value.substring(0, value.length() - 1).trim();
+        }
+        return Long.parseLong(value) * factor;
+    }
+
+    public boolean containsKey(Object key) {
+        return segmentFor(key).get(key, false) != null;
+    }
+
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (containsKey(keys[i]))
+                keys[i] = null;
+            else
+                notfound++;
+        }
+        return notfound;
+    }
+
+    public Object get(Object key) {
+        return segmentFor(key).get(key, true);
+    }
+
+    public Object put(Object key, Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        return segmentFor(key).put(key, value, false);
+    }
+
+    public Object putIfAbsent(Object key, Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        return segmentFor(key).put(key, value, true);
+    }
+
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        if (newValue == null)
+            throw new NullPointerException();
+        return segmentFor(key).replace(key, oldValue, newValue);
+    }
+
+    public Object remove(Object key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].listener = listener;
+        }
+    }
+
+    public boolean clear() {
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].clear();
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            size += segs[i].size();
+        }
+        return size;
+    }
+
+    public Object[] getCachedObjects() {
+        ArrayList list = new ArrayList();
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].addKeys(list);
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Get the estimated number of bytes retained by the cached nodes.
+     */
+    public long getWeight() {
+        long weight = 0;
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            weight += segs[i].getWeight();
+        }
+        return weight;
+    }
+
+    /**
+     * Get the estimated number of bytes retained by cached nodes by prototype.
+     *
+     * @return a map of prototype names to Long byte counts
+     */
+    public Map getWeights() {
+        HashMap weights = new HashMap();
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].addWeights(weights);
+        }
+        return weights;
+    }
+
+    public String toString() {
+        return "WeightedNodeCache[" + size() + " entries, " + getWeight() + "/" +
+                maxBytes + " bytes]";
+    }
+
+    /**
+     * Estimate the memory retained by a cached object.
+     */
+    static long estimateSize(Object value) {
+        if (!(value instanceof Node)) {
+            return ENTRY_OVERHEAD;
+        }
+        Node node = (Node) value;
+        if (node.isNullNode()) {
+            return ENTRY_OVERHEAD;
+        }
+        long size = ENTRY_OVERHEAD + NODE_OVERHEAD +
+                stringSize(node.getID()) + stringSize(node.getName());
+
+        Hashtable propMap = node.getPropMap();
+        if (propMap instanceof CompactPropertyMap) {
+            // slot values are not wrapped in Property objects until they are used
+            Object[] values = ((CompactPropertyMap) propMap).getPropertyValues();
+            size += values.length * SLOT_OVERHEAD;
+            for (int i = 0; i < values.length; i++) {
+                size += valueSize(values[i]);
+            }
+        } else if (propMap != null) {
+            size += propMap.size() * PROPERTY_OVERHEAD;
+            for (Iterator it = propMap.values().iterator(); it.hasNext(); ) {
+                Property prop = (Property) it.next();
+                size += stringSize(prop.getName()) + valueSize(prop.getValue());
+            }
+        }
+
+        SubnodeList subnodes = node.getSubnodeList();
+        if (subnodes != null && subnodes.list != null) {
+            size += subnodes.list.size() * HANDLE_SIZE;
+        }
+        return size;
+    }
+
+    private static long valueSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return stringSize((String) value);
+        } else if (value instanceof NodeHandle) {
+            return HANDLE_SIZE;
+        } else if (value instanceof Date) {
+            return 32;
+        } else if (value instanceof Number || value instanceof Boolean) {
+            return 16;
+        }
+        // java objects - we can't tell
+        return 128;
+    }
+
+    private static long stringSize(String str) {
+        return str == null ? 0 : STRING_OVERHEAD + 2L * str.length();
+    }
+
+    /**
+     * A cache entry with its estimated size. Entries of nodes are linked into
+     * a least recently used list per prototype.
+     */
+    static class Entry {
+        final Object key;
+        Object value;
+        long weight;
+        String prototype;
+        int reads;
+        // whether the entry is the node's entry under its primary key
+        boolean primary;
+        // neighbours in the LRU list of the entry's prototype
+        Entry prev, next;
+
+        Entry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+            this.primary = isPrimaryKey(key, value);
+            if (!primary) {
+                // nodes cached under an additional key are only weighed once
+                this.weight = ENTRY_OVERHEAD;
+                return;
+            }
+            try {
+                this.weight = estimateSize(value);
+            } catch (RuntimeException concurrentModification) {
+                this.weight = ENTRY_OVERHEAD + NODE_OVERHEAD;
+            }
+            if (value instanceof Node && !((Node) value).isNullNode()) {
+                String proto = ((Node) value).getPrototype();
+                this.prototype = proto == null ? null : proto.toLowerCase();
+            }
+        }
+
+        private static boolean isPrimaryKey(Object key, Object value) {
+            if (!(value instanceof Node) || ((Node) value).isNullNode()) {
+                return true;
+            }
+            try {
+                return key.equals(((Node) value).getKey());
+            } catch (RuntimeException transientNode) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The entries of one prototype in a segment, in least recently used order,
+     * and the bytes they retain.
+     */
+    static class PrototypeEntries {
+        long bytes;
+        Entry head, tail;
+
+        void append(Entry entry) {
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+        }
+
+        void unlink(Entry entry) {
+            if (entry.prev == null) {
+                head = entry.next;
+            } else {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.prev;
+            } else {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = entry.next = null;
+        }
+
+        void touch(Entry entry) {
+            if (tail != entry) {
+                unlink(entry);
+                append(entry);
+            }
+        }
+    }
+
+    /**
+     * One lock-protected part of the cache, keeping its entries in LRU order.
+     */
+    static class Segment {
+        private final LinkedHashMap map = new LinkedHashMap(64, 0.75f, true);
+        private long bytes = 0;
+        // PrototypeEntries by lower case prototype name
+        private final HashMap prototypes = new HashMap();
+
+        private long maxBytes;
+        private int maxEntries;
+        private Map budgets = new HashMap();
+        volatile EvictionListener listener;
+
+        synchronized void setBudgets(long maxBytes, int maxEntries, Map budgets) {
+            this.maxBytes = maxBytes;
+            this.maxEntries = maxEntries;
+            this.budgets = budgets;
+            for (Iterator it = budgets.keySet().iterator(); it.hasNext(); ) {
+                evict((String) it.next());
+            }
+            evict(null);
+        }
+
+        synchronized Object get(Object key, boolean reweigh) {
+            Entry entry = (Entry) map.get(key);
+            if (entry == null) {
+                return null;
+            }
+            PrototypeEntries entries = getPrototypeEntries(entry);
+            if (entries != null) {
+                entries.touch(entry);
+            }
+            // nodes grow when their subnodes are loaded, update the estimate now and then
+            if (reweigh && entry.primary && ++entry.reads % REWEIGH_INTERVAL == 0) {
+                long weight;
+                try {
+                    weight = estimateSize(entry.value);
+                } catch (RuntimeException concurrentModification) {
+                    weight = entry.weight;
+                }
+                if (weight != entry.weight) {
+                    account(entry, -entry.weight);
+                    entry.weight = weight;
+                    account(entry, weight);
+                    evict(entry.prototype);
+                }
+            }
+            return entry.value;
+        }
+
+        synchronized Object put(Object key, Object value, boolean onlyIfAbsent) {
+            Entry old = (Entry) map.get(key);
+            if (old != null && onlyIfAbsent) {
+                return old.value;
+            }
+            Entry entry = new Entry(key, value);
+            if (old != null) {
+                unlink(old);
+            }
+            map.put(key, entry);
+            link(entry);
+            evict(entry.prototype);
+            return old == null ? null : old.value;
+        }
+
+        synchronized boolean replace(Object key, Object expected, Object value) {
+            Entry old = (Entry) map.get(key);
+            if (old == null || old.value != expected) {
+                return false;
+            }
+            put(key, value, false);
+            return true;
+        }
+
+        synchronized Object remove(Object key) {
+            Entry entry = (Entry) map.remove(key);
+            if (entry == null) {
+                return null;
+            }
+            unlink(entry);
+            return entry.value;
+        }
+
+        private PrototypeEntries getPrototypeEntries(Entry entry) {
+            return entry.prototype == null ?
+                    null : (PrototypeEntries) prototypes.get(entry.prototype);
+        }
+
+        // add an entry's weight and link it into its prototype's LRU list
+        private void link(Entry entry) {
+            bytes += entry.weight;
+            if (entry.prototype != null) {
+                PrototypeEntries entries = getPrototypeEntries(entry);
+                if (entries == null) {
+                    entries = new PrototypeEntries();
+                    prototypes.put(entry.prototype, entries);
+                }
+                entries.append(entry);
+                entries.bytes += entry.weight;
+            }
+        }
+
+        // remove an entry's weight and unlink it from its prototype's LRU list
+        private void unlink(Entry entry) {
+            bytes -= entry.weight;
+            PrototypeEntries entries = getPrototypeEntries(entry);
+            if (entries != null) {
+                entries.unlink(entry);
+                entries.bytes -= entry.weight;
+            }
+        }
+
+        private void account(Entry entry, long delta) {
+            bytes += delta;
+            PrototypeEntries entries = getPrototypeEntries(entry);
+            if (entries != null) {
+                entries.bytes += delta;
+            }
+        }
+
+        /**
+         * Evict least recently used entries until the segment is within its
+         * budgets, starting with the prototype that was just added to.
+         */
+        private void evict(String prototype) {
+            if (prototype != null) {
+                Long budget = (Long) budgets.get(prototype);
+                PrototypeEntries entries = (PrototypeEntries) prototypes.get(prototype);
+                if (budget != null && entries != null) {
+                    while (entries.bytes > budget.longValue() && entries.head != null) {
+                        Entry entry = entries.head;
+                        map.remove(entry.key);
+                        discard(entry);
+                    }
+                }
+            }
+            Iterator it = map.values().iterator();
+            while ((bytes > maxBytes || (maxEntries > 0 && map.size() > maxEntries))
+                    && it.hasNext()) {
+                Entry entry = (Entry) it.next();
+                it.remove();
+                discard(entry);
+            }
+        }
+
+        private void discard(Entry entry) {
+            unlink(entry);
+            EvictionListener l = listener;
+            if (l != null) {
+                l.evicted(entry.key, entry.value);
+            }
+        }
+
+        synchronized void clear() {
+            map.clear();
+            prototypes.clear();
+            bytes = 0;
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        synchronized long getWeight() {
+            return bytes;
+        }
+
+        synchronized void addKeys(ArrayList list) {
+            list.addAll(map.keySet());
+        }
+
+        synchronized void addWeights(Map weights) {
+            for (Iterator it = prototypes.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                long value = ((PrototypeEntries) entry.getValue()).bytes;
+                Long sum = (Long) weights.get(entry.getKey());
+                weights.put(entry.getKey(),
+                        new Long(sum == null ? value : sum.longValue() + value));
+            }
+        }
+    }
+}
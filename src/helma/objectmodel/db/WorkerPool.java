@@ -0,0 +1,141 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.db;
+
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A bounded set of long-lived daemon threads running tasks for the node
+ * manager, such as the queries of a parallel prefetch. Threads are started
+ * when tasks are queued and none is idle, up to the size of the pool, and
+ * are reused afterwards. Tasks are run in the order they were queued.
+ */
+final class WorkerPool {
+
+    private final String name;
+    // tasks waiting for a thread
+    private final LinkedList queue = new LinkedList();
+
+    private int size;
+    private int threads = 0;
+    private int idle = 0;
+    private int threadId = 0;
+    private boolean shutdown = false;
+
+    static final Log log = LogFactory.getLog(WorkerPool.class);
+
+    /**
+     * Create a new worker pool.
+     *
+     * @param name the prefix for the names of the worker threads
+     * @param size the maximum number of threads
+     */
+    WorkerPool(String name, int size) {
+        this.name = name;
+        this.size = Math.max(0, size);
+    }
+
+    /**
+     * Set the maximum number of threads. Surplus threads end once they are idle.
+     */
+    synchronized void setSize(int size) {
+        this.size = Math.max(0, size);
+        notifyAll();
+    }
+
+    /**
+     * Get the maximum number of threads.
+     */
+    synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Queue a task to be run by a worker thread.
+     *
+     * @param task the task
+     * @return false if the pool has no threads or has been shut down, in which
+     *         case the task has to be run by the caller
+     */
+    synchronized boolean execute(Runnable task) {
+        if (shutdown || size == 0) {
+            return false;
+        }
+        queue.add(task);
+        if (idle == 0 && threads < size) {
+            Thread thread = new Thread(new Worker(), name + "-" + (++threadId));
+            thread.setDaemon(true);
+            thread.start();
+            threads++;
+        } else {
+            notify();
+        }
+        return true;
+    }
+
+    /**
+     * Stop all threads once they have finished their current task. Tasks that
+     * haven't been started are discarded.
+     */
+    synchronized void shutdown() {
+        shutdown = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Get the next task for a worker thread, or null if the thread should end.
+     */
+    private synchronized Runnable next() {
+        while (queue.isEmpty() && !shutdown && threads <= size) {
+            idle++;
+            try {
+                wait();
+            } catch (InterruptedException ir) {
+                shutdown = true;
+            } finally {
+                idle--;
+            }
+        }
+        if (shutdown || threads > size) {
+            threads--;
+            return null;
+        }
+        return (Runnable) queue.removeFirst();
+    }
+
+    public synchronized String toString() {
+        return "WorkerPool[" + name + ", " + threads + " threads, " + idle +
+               " idle, " + queue.size() + " queued]";
+    }
+
+    class Worker implements Runnable {
+        public void run() {
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException x) {
+                    log.error("Error in " + Thread.currentThread().getName(), x);
+                }
+            }
+        }
+    }
+}
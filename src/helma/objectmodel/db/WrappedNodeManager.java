@@ -97,6 +97,27 @@ public final class WrappedNodeManager {
         }
     }
 
+    /**
+     * Get the nodes for a list of keys, fetching the ones not in the cache
+     * with as few queries as possible.
+     *
+     * @param keys
+     * @return the nodes in the order of the keys, with null for missing nodes
+     */
+    public Node[] getNodes(Key[] keys) {
+        Transactor tx = checkLocalTransactor();
+        try {
+            beginLocalTransaction(tx, "getNodes");
+            Node[] nodes = nmgr.getNodes(keys);
+            commitLocalTransaction(tx);
+            return nodes;
+        } catch (Exception x) {
+            abortLocalTransaction(tx);
+            nmgr.app.logError("Error retrieving Nodes", x);
+            throw new RuntimeException("Error retrieving Nodes", x);
+        }
+    }
+
     /**
      * Get the list of nodes contained in the collection of the given
      * Node specified by the given Relation.
@@ -161,6 +182,42 @@ public final class WrappedNodeManager {
         }
     }
 
+    /**
+     * Look up the children of an embedded Node by the value of an
+     * indexed property.
+     *
+     * @param home
+     * @param propname
+     * @param from
+     * @param to
+     * @param range
+     * @return the ids of the matching children, or null if there is no index
+     */
+    public String[] findSubnodeIds(Node home, String propname, Object from, Object to,
+                                   boolean range) {
+        try {
+            return nmgr.findSubnodeIds(home, propname, from, to, range);
+        } catch (Exception x) {
+            throw new RuntimeException("Error looking up Nodes", x);
+        }
+    }
+
+    /**
+     * Get the approximate number of nodes contained in the given Node's
+     * collection specified by the given Relation.
+     *
+     * @param home
+     * @param rel
+     * @return
+     */
+    public int countNodesApproximately(Node home, Relation rel) {
+        try {
+            return nmgr.countNodesApproximately(home, rel);
+        } catch (Exception x) {
+            throw new RuntimeException("Error counting Nodes", x);
+        }
+    }
+
     public void prefetchNodes(Node node, Relation rel, SubnodeList list,
                               int start, int length) {
         try {
@@ -170,6 +227,40 @@ public final class WrappedNodeManager {
         }
     }
 
+    public void prefetchReferences(Node node, Relation rel, SubnodeList list,
+                                   int start, int length, String[] references) {
+        try {
+            nmgr.prefetchReferences(node, rel, list, start, length, references);
+        } catch (Exception x) {
+            throw new RuntimeException("Error prefetching references", x);
+        }
+    }
+
+    public void prefetchNodesByName(Node home, Relation rel, String[] names) {
+        try {
+            nmgr.prefetchNodesByName(home, rel, names);
+        } catch (Exception x) {
+            throw new RuntimeException("Error prefetching nodes", x);
+        }
+    }
+
+    /**
+     * Open a forward-only cursor over the child nodes of a collection.
+     *
+     * @param home
+     * @param rel
+     * @param windowSize
+     * @return
+     */
+    public NodeCursor openCursor(Node home, Relation rel, int windowSize) {
+        try {
+            return nmgr.openCursor(home, rel, windowSize);
+        } catch (Exception x) {
+            nmgr.app.logError("Error opening cursor on " + home, x);
+            throw new RuntimeException("Error opening cursor", x);
+        }
+    }
+
     /**
      * Delete a node from the database
      *
@@ -187,6 +278,24 @@ public final class WrappedNodeManager {
         }
     }
 
+    /**
+     * Fetch the lazy properties of a node that haven't been loaded yet.
+     *
+     * @param node
+     */
+    public void loadLazyProperties(Node node) {
+        Transactor tx = checkLocalTransactor();
+        try {
+            beginLocalTransaction(tx, "loadLazyProperties");
+            nmgr.loadLazyProperties(node);
+            commitLocalTransaction(tx);
+        } catch (Exception x) {
+            abortLocalTransaction(tx);
+            nmgr.app.logError("Error loading lazy properties for " + node.getKey(), x);
+            throw new RuntimeException("Error loading lazy properties", x);
+        }
+    }
+
     /**
      * Get a list of property names from the given node.
      * TODO: this retrieves access names of child nodes, not property names
@@ -37,6 +37,9 @@ public final class XmlDatabase implements IDatabase {
     protected NodeManager nmgr;
     protected XmlIDGenerator idgen;
 
+    // number of ids reserved at once in idgen.xml
+    protected int idBlockSize = 1000;
+
     // character encoding to use when writing files.
     // use standard encoding by default.
     protected String encoding = null;
@@ -77,6 +80,12 @@ public final class XmlDatabase implements IDatabase {
             idBaseValue = 1L;
         }
 
+        try {
+            idBlockSize = Integer.parseInt(app.getProperty("idBlockSize", "1000").trim());
+        } catch (NumberFormatException x) {
+            app.logError("Invalid idBlockSize setting: " + x.getMessage());
+        }
+
         ITransaction txn = null;
 
         try {
@@ -161,7 +170,14 @@ public final class XmlDatabase implements IDatabase {
      * Shut down the database
      */
     public void shutdown() {
-        // nothing to do
+        // save the last id handed out so the rest of the reserved block isn't skipped
+        if (idgen != null) {
+            try {
+                idgen.release(new File(dbHomeDir, "idgen.xml"));
+            } catch (IOException x) {
+                app.logError("Error saving id generator", x);
+            }
+        }
     }
 
     /**
@@ -203,7 +219,9 @@ public final class XmlDatabase implements IDatabase {
     }
 
     /**
-     * Get the id for the next new object to be stored.
+     * Get the id for the next new object to be stored. Ids are handed out
+     * from blocks of idBlockSize ids reserved in idgen.xml, so the file only
+     * needs to be written once per block rather than with each transaction.
      *
      * @return the id for the next new object to be stored
      * @throws ObjectNotFoundException
@@ -213,7 +231,12 @@ public final class XmlDatabase implements IDatabase {
             getIDGenerator(null);
         }
 
-        return idgen.newID();
+        try {
+            return idgen.newID(new File(dbHomeDir, "idgen.xml"), idBlockSize);
+        } catch (IOException x) {
+            app.logError("Error reserving ids", x);
+            throw new DatabaseException("Error reserving ids: " + x);
+        }
     }
 
     /**
@@ -29,6 +29,8 @@ import java.util.Date;
 public class XmlIDGenerator {
 
     private long counter;
+    // ids up to this value are reserved in the id generator file
+    private long reserved;
     transient volatile boolean dirty;
 
     /**
@@ -36,6 +38,7 @@ public class XmlIDGenerator {
      */
     public XmlIDGenerator() {
         this.counter = 0L;
+        this.reserved = 0L;
         dirty = false;
     }
 
@@ -44,6 +47,7 @@ public class XmlIDGenerator {
      */
     public XmlIDGenerator(long value) {
         this.counter = value;
+        this.reserved = value;
         dirty = false;
     }
 
@@ -57,6 +61,45 @@ public class XmlIDGenerator {
         return Long.toString(counter);
     }
 
+    /**
+     * Delivers a unique id from the block of reserved ids. When the block is
+     * used up, the next blockSize ids are reserved by saving the end of the
+     * new block to the given file before the id is returned. Ids are thus
+     * never handed out twice, even if the process dies without saving the
+     * counter, at the cost of skipping the rest of the block in that case.
+     *
+     * @param file the id generator file
+     * @param blockSize the number of ids to reserve at once
+     * @return a unique id
+     * @throws IOException if the reservation can't be saved
+     */
+    public synchronized String newID(File file, int blockSize) throws IOException {
+        long next = counter + 1L;
+
+        if (next > reserved) {
+            long limit = next + Math.max(1, blockSize) - 1;
+            saveCounter(limit, file);
+            reserved = limit;
+        }
+
+        counter = next;
+        return Long.toString(counter);
+    }
+
+    /**
+     * Save the current counter value to the given file, releasing the
+     * ids reserved beyond it.
+     *
+     * @param file the id generator file
+     * @throws IOException if the counter can't be saved
+     */
+    public synchronized void release(File file) throws IOException {
+        if (reserved > counter) {
+            saveCounter(counter, file);
+            reserved = counter;
+        }
+    }
+
     /**
      * Set the counter to a new value
      */
@@ -113,14 +156,50 @@ public class XmlIDGenerator {
      */
     public static void saveIDGenerator(XmlIDGenerator idgen, File file)
             throws IOException {
-        OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(file));
-
-        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-        out.write("<!-- printed by helma object publisher     -->\n");
-        out.write("<!-- created " + (new Date()).toString() + " -->\n");
-        out.write("<xmlroot>\n");
-        out.write("  <counter>" + idgen.getValue() + "</counter>\n");
-        out.write("</xmlroot>\n");
-        out.close();
+        // never save a value below the ids already reserved
+        writeCounter(Math.max(idgen.getValue(), idgen.reserved), file);
+    }
+
+    /**
+     * Durably replace the counter value in an id generator file. The value
+     * is written to a temporary file which is forced to disk and then
+     * renamed, so the file always contains either the old or the new value.
+     *
+     * @param value the counter value
+     * @param file the id generator file
+     * @throws IOException
+     */
+    static void saveCounter(long value, File file) throws IOException {
+        File tmp = File.createTempFile("idgen.xml.", ".tmp", file.getAbsoluteFile().getParentFile());
+
+        writeCounter(value, tmp);
+
+        if (!tmp.renameTo(file)) {
+            // because of a Java/Windows quirk, we have to delete
+            // the existing file before trying to overwrite it
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Can't rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    private static void writeCounter(long value, File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        OutputStreamWriter out = new OutputStreamWriter(stream);
+
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<!-- printed by helma object publisher     -->\n");
+            out.write("<!-- created " + (new Date()).toString() + " -->\n");
+            out.write("<xmlroot>\n");
+            out.write("  <counter>" + value + "</counter>\n");
+            out.write("</xmlroot>\n");
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
     }
 }
@@ -0,0 +1,526 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.log;
+
+import helma.objectmodel.INode;
+import helma.objectmodel.IProperty;
+import helma.objectmodel.db.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes embedded nodes in a compact binary format, as an alternative to
+ * the XML written by XmlWriter. Numbers are stored as variable length
+ * integers, numeric ids as numbers rather than strings, and names that
+ * are likely to repeat, like prototypes and property names, only once
+ * per node in a string table. Node references and child nodes are stored
+ * as handles, so the nodes they refer to don't need to be loaded.
+ *
+ * A node is encoded as a version byte, a flags byte and the node data,
+ * which may be compressed with deflate:
+ * <pre>
+ * strings      count, strings
+ * node         id, name, prototype, created, lastModified
+ * parent       handle or none
+ * children     count, handles
+ * properties   count, (name, type, value)
+ * </pre>
+ */
+public final class BinaryNodeCodec {
+
+    // record format for nodes encoded by this class
+    public static final byte FORMAT_BINARY = 2;
+
+    static final int VERSION = 1;
+
+    // flags
+    static final int COMPRESSED = 1;
+
+    // property type flag for null values
+    static final int NULL_VALUE = 0x80;
+
+    // nodes smaller than this aren't compressed
+    static final int MIN_COMPRESS_SIZE = 256;
+
+    private final NodeManager nmgr;
+    private final boolean compress;
+
+    /**
+     * Create a codec.
+     *
+     * @param nmgr the node manager used to create decoded nodes
+     * @param compress whether to compress larger nodes
+     */
+    public BinaryNodeCodec(NodeManager nmgr, boolean compress) {
+        this.nmgr = nmgr;
+        this.compress = compress;
+    }
+
+    /**
+     * Encode a node.
+     *
+     * @param node the node
+     * @return the encoded node
+     */
+    public byte[] encode(INode node) throws IOException {
+        Output out = new Output();
+        Output strings = new Output();
+        HashMap table = new HashMap();
+        ArrayList list = new ArrayList();
+
+        out.writeId(node.getID());
+        out.writeString(node.getName());
+        out.writeVarInt(intern(getNodePrototype(node), table, list));
+        out.writeVarLong(node.created());
+        out.writeVarLong(node.lastModified());
+
+        INode parent = node.getParent();
+        if (parent instanceof Node) {
+            out.write(1);
+            writeHandle(out, ((Node) parent).getHandle(), table, list);
+        } else {
+            out.write(0);
+        }
+
+        SubnodeList subnodes = null;
+        if (node instanceof Node) {
+            Node dbNode = (Node) node;
+            DbMapping smap = (dbNode.getDbMapping() == null) ? null
+                                                             : dbNode.getDbMapping()
+                                                                     .getSubnodeMapping();
+            // children stored in a relational database are not stored with the node
+            if ((smap == null) || !smap.isRelational()) {
+                subnodes = dbNode.getSubnodeList();
+            }
+        }
+        int count = subnodes == null ? 0 : subnodes.size();
+        out.writeVarInt(count);
+        for (int i = 0; i < count; i++) {
+            writeHandle(out, subnodes.get(i), table, list);
+        }
+
+        Hashtable props = node instanceof Node ? ((Node) node).getPropMap() : null;
+        ArrayList names = new ArrayList();
+        ArrayList values = new ArrayList();
+        if (props != null) {
+            for (Enumeration e = props.keys(); e.hasMoreElements(); ) {
+                String name = (String) e.nextElement();
+                Property prop = (Property) props.get(name);
+                // internal properties and java objects aren't stored
+                if (prop != null && name.length() > 0 && name.charAt(0) != '_' &&
+                        prop.getType() != IProperty.JAVAOBJECT) {
+                    names.add(name);
+                    values.add(prop);
+                }
+            }
+        }
+        out.writeVarInt(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            out.writeVarInt(intern((String) names.get(i), table, list));
+            writeValue(out, (Property) values.get(i), table, list);
+        }
+
+        strings.writeVarInt(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            strings.writeString((String) list.get(i));
+        }
+
+        int length = strings.size() + out.size();
+        Output result = new Output();
+        result.write(VERSION);
+        if (compress && length >= MIN_COMPRESS_SIZE) {
+            byte[] data = new byte[length];
+            System.arraycopy(strings.buffer(), 0, data, 0, strings.size());
+            System.arraycopy(out.buffer(), 0, data, strings.size(), out.size());
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+                byte[] buffer = new byte[Math.max(64, length / 2)];
+                ByteArrayOutputStream deflated = new ByteArrayOutputStream(length / 2);
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    deflated.write(buffer, 0, n);
+                }
+                // only keep the compressed data if it saves space
+                if (deflated.size() < length) {
+                    result.write(COMPRESSED);
+                    result.writeVarInt(length);
+                    deflated.writeTo(result);
+                    return result.toByteArray();
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        result.write(0);
+        result.write(strings.buffer(), 0, strings.size());
+        result.write(out.buffer(), 0, out.size());
+        return result.toByteArray();
+    }
+
+    /**
+     * Decode a node.
+     *
+     * @param data the encoded node
+     * @return the node
+     * @throws IOException if the data is not a valid node
+     */
+    public Node decode(byte[] data) throws IOException {
+        Input in = new Input(data, 0, data.length);
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unsupported node encoding version " + version);
+        }
+        int flags = in.read();
+        if ((flags & COMPRESSED) != 0) {
+            int length = in.readVarInt();
+            byte[] inflated = new byte[length];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(data, in.position(), data.length - in.position());
+                int offset = 0;
+                while (offset < length) {
+                    int n = inflater.inflate(inflated, offset, length - offset);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated compressed node");
+                    }
+                    offset += n;
+                }
+            } catch (DataFormatException x) {
+                throw new IOException("Invalid compressed node: " + x.getMessage());
+            } finally {
+                inflater.end();
+            }
+            in = new Input(inflated, 0, length);
+        }
+
+        String[] table = new String[in.readVarInt()];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = in.readString();
+        }
+
+        String id = in.readId();
+        String name = in.readString();
+        String prototype = table[in.readVarInt()];
+        long created = in.readVarLong();
+        long lastModified = in.readVarLong();
+
+        Node node = new Node(name, id, prototype, nmgr.safe, created, lastModified);
+
+        if (in.read() != 0) {
+            node.setParentHandle(readHandle(in, table));
+        }
+
+        int count = in.readVarInt();
+        if (count > 0) {
+            SubnodeList subnodes = node.createSubnodeList();
+            for (int i = 0; i < count; i++) {
+                subnodes.add(readHandle(in, table));
+            }
+        }
+
+        count = in.readVarInt();
+        if (count > 0) {
+            Hashtable propMap = new Hashtable(Math.max(11, count * 4 / 3 + 1));
+            for (int i = 0; i < count; i++) {
+                String propName = table[in.readVarInt()];
+                Property prop = new Property(propName, node);
+                readValue(in, prop, table);
+                propMap.put(propName, prop);
+            }
+            node.setPropMap(propMap);
+        }
+
+        return node;
+    }
+
+    private void writeValue(Output out, Property prop, HashMap table, ArrayList list)
+            throws IOException {
+        int type = prop.getType();
+        Object value = prop.getValue();
+        if (value == null) {
+            out.write(type | NULL_VALUE);
+            return;
+        }
+        out.write(type);
+        switch (type) {
+            case IProperty.STRING:
+                out.writeString((String) value);
+                break;
+            case IProperty.BOOLEAN:
+                out.write(((Boolean) value).booleanValue() ? 1 : 0);
+                break;
+            case IProperty.DATE:
+                out.writeSignedVarLong(((Date) value).getTime());
+                break;
+            case IProperty.INTEGER:
+                out.writeSignedVarLong(((Number) value).longValue());
+                break;
+            case IProperty.FLOAT:
+                out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+                break;
+            case IProperty.NODE:
+                writeHandle(out, (NodeHandle) value, table, list);
+                break;
+            default:
+                throw new IOException("Can't encode property type " + type);
+        }
+    }
+
+    private void readValue(Input in, Property prop, String[] table) throws IOException {
+        int type = in.read();
+        if ((type & NULL_VALUE) != 0) {
+            type &= ~NULL_VALUE;
+            if (type == IProperty.DATE) {
+                prop.setDateValue(null);
+            } else if (type == IProperty.NODE) {
+                prop.setNodeHandle(null);
+            } else {
+                prop.setStringValue(null);
+            }
+            return;
+        }
+        switch (type) {
+            case IProperty.STRING:
+                prop.setStringValue(in.readString());
+                break;
+            case IProperty.BOOLEAN:
+                prop.setBooleanValue(in.read() != 0);
+                break;
+            case IProperty.DATE:
+                prop.setDateValue(new Date(in.readSignedVarLong()));
+                break;
+            case IProperty.INTEGER:
+                prop.setIntegerValue(in.readSignedVarLong());
+                break;
+            case IProperty.FLOAT:
+                prop.setFloatValue(Double.longBitsToDouble(in.readLong()));
+                break;
+            case IProperty.NODE:
+                prop.setNodeHandle(readHandle(in, table));
+                break;
+            default:
+                throw new IOException("Invalid property type " + type);
+        }
+    }
+
+    // write a handle as storage name and id
+    private void writeHandle(Output out, NodeHandle handle, HashMap table, ArrayList list)
+            throws IOException {
+        Key key = handle.getKey();
+        String storage = key instanceof DbKey ? ((DbKey) key).getStorageName() : null;
+        out.writeVarInt(storage == null ? 0 : intern(storage, table, list) + 1);
+        out.writeId(key.getID());
+    }
+
+    private NodeHandle readHandle(Input in, String[] table) throws IOException {
+        int storage = in.readVarInt();
+        DbMapping dbmap = storage == 0 ? null : nmgr.getDbMapping(table[storage - 1]);
+        return new NodeHandle(new DbKey(dbmap, in.readId()));
+    }
+
+    // get the index of a string in the string table, adding it if necessary
+    private static int intern(String str, HashMap table, ArrayList list) {
+        Integer index = (Integer) table.get(str);
+        if (index == null) {
+            index = new Integer(list.size());
+            table.put(str, index);
+            list.add(str);
+        }
+        return index.intValue();
+    }
+
+    private static String getNodePrototype(INode node) {
+        if ((node.getPrototype() == null) || "".equals(node.getPrototype())) {
+            return "hopobject";
+        } else {
+            return node.getPrototype();
+        }
+    }
+
+    /**
+     * A byte array output stream with methods for variable length values.
+     */
+    static final class Output extends ByteArrayOutputStream {
+
+        Output() {
+            super(256);
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xffffffffL);
+        }
+
+        // unsigned values are stored in 7 bit groups, with the high bit set if more follow
+        void writeVarLong(long value) {
+            while ((value & ~0x7fL) != 0) {
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        // signed values are zigzag encoded so small negative values stay short
+        void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            for (int i = 56; i >= 0; i -= 8) {
+                write((int) (value >>> i));
+            }
+        }
+
+        void writeString(String str) throws UnsupportedEncodingException {
+            if (str == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = str.getBytes("UTF-8");
+            writeVarInt(bytes.length + 1);
+            write(bytes, 0, bytes.length);
+        }
+
+        // numeric ids are stored as numbers, others as strings
+        void writeId(String id) throws UnsupportedEncodingException {
+            long number = parseId(id);
+            if (number >= 0) {
+                writeVarLong(number << 1);
+            } else {
+                byte[] bytes = id.getBytes("UTF-8");
+                writeVarLong(((long) bytes.length << 1) | 1);
+                write(bytes, 0, bytes.length);
+            }
+        }
+
+        // parse an id that is a canonical non-negative number, or return -1
+        private static long parseId(String id) {
+            int length = id.length();
+            if (length == 0 || length > 18 || (id.charAt(0) == '0' && length > 1)) {
+                return -1;
+            }
+            long number = 0;
+            for (int i = 0; i < length; i++) {
+                char c = id.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                number = number * 10 + (c - '0');
+            }
+            return number;
+        }
+    }
+
+    /**
+     * Reads variable length values from a byte array.
+     */
+    static final class Input {
+        private final byte[] data;
+        private int pos;
+        private final int end;
+
+        Input(byte[] data, int offset, int length) {
+            this.data = data;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        int read() throws IOException {
+            if (pos >= end) {
+                throw new IOException("Unexpected end of node data");
+            }
+            return data[pos++] & 0xff;
+        }
+
+        int readVarInt() throws IOException {
+            long value = readVarLong();
+            if (value > Integer.MAX_VALUE) {
+                throw new IOException("Invalid length in node data");
+            }
+            return (int) value;
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Invalid number in node data");
+        }
+
+        long readSignedVarLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | read();
+            }
+            return value;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            return readUTF8(length - 1);
+        }
+
+        String readId() throws IOException {
+            long value = readVarLong();
+            if ((value & 1) == 0) {
+                return Long.toString(value >>> 1);
+            }
+            return readUTF8((int) (value >>> 1));
+        }
+
+        private String readUTF8(int length) throws IOException {
+            if (length < 0 || pos + length > end) {
+                throw new IOException("Unexpected end of node data");
+            }
+            String str = new String(data, pos, length, "UTF-8");
+            pos += length;
+            return str;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.log;
+
+import helma.framework.core.Application;
+import helma.objectmodel.*;
+import helma.objectmodel.db.Node;
+import helma.objectmodel.db.NodeManager;
+import helma.objectmodel.db.WeightedNodeCache;
+import helma.objectmodel.dom.XmlDatabaseReader;
+import helma.objectmodel.dom.XmlIDGenerator;
+import helma.objectmodel.dom.XmlWriter;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Properties;
+
+import org.xml.sax.SAXException;
+
+/**
+ * An embedded database storing all objects in a single append-only log file
+ * instead of one XML file per object. Each transaction is appended to the
+ * log as a whole, so a crash can't leave a transaction partially committed,
+ * and the log is compacted in the background once enough of it is taken up
+ * by outdated object versions. Objects are stored in the compact format of
+ * BinaryNodeCodec, or in the XML format written by XmlDatabase if the
+ * logdb.format app property is set to xml. Objects stored in either format
+ * can be read regardless of the setting, and exportXml() writes the database
+ * as an XML database directory.
+ *
+ * Enabled by setting the dbImpl app property to helma.objectmodel.log.LogDatabase.
+ * An existing XML database in the db directory is migrated into the log when
+ * the log is empty. The log only replaces the empty one once the migration is
+ * complete, so an interrupted migration is started over. The following app properties are supported:
+ * <pre>
+ * logdb.format          = binary (binary or xml)
+ * logdb.compress        = false  (deflate larger objects in binary format)
+ * logdb.sync            = true   (force each commit to disk)
+ * logdb.groupCommitWindow = 0    (millis to wait for concurrent commits to
+ *                                 be forced to disk together, 0 to disable)
+ * logdb.compactRatio    = 0.5    (fraction of outdated data triggering compaction)
+ * logdb.compactMinSize  = 16M    (minimum log size for compaction)
+ * logdb.compactInterval = 60000  (millis between compaction checks)
+ * </pre>
+ */
+public final class LogDatabase implements IDatabase, Runnable {
+
+    protected File dbHomeDir;
+    protected Application app;
+    protected NodeManager nmgr;
+    protected LogStore store;
+
+    // character encoding to use when writing objects.
+    protected String encoding = null;
+
+    // binary codec, or null to store objects as XML
+    protected BinaryNodeCodec codec = null;
+
+    // the last id handed out
+    private long counter;
+
+    // compaction settings
+    private double compactRatio = 0.5;
+    private long compactMinSize = 16L * 1024 * 1024;
+    private long compactInterval = 60000L;
+
+    // group commit window in millis
+    private long groupCommitWindow = 0L;
+
+    private Thread compactor;
+    private volatile boolean running;
+    private final Object lock = new Object();
+
+    /**
+     * Initializes the database from an application.
+     * @param app
+     * @throws DatabaseException
+     */
+    public void init(File dbHome, Application app) throws DatabaseException {
+        this.app = app;
+        nmgr = app.getNodeManager();
+        dbHomeDir = dbHome;
+
+        if (!dbHomeDir.exists() && !dbHomeDir.mkdirs()) {
+            throw new DatabaseException("Can't create database directory "+dbHomeDir);
+        }
+
+        if (!dbHomeDir.canWrite()) {
+            throw new DatabaseException("No write permission for database directory "+dbHomeDir);
+        }
+
+        this.encoding = app.getCharset();
+        Properties props = app.getProperties();
+        updateProperties(props);
+
+        if (!"xml".equalsIgnoreCase(props.getProperty("logdb.format"))) {
+            boolean compress = "true".equalsIgnoreCase(props.getProperty("logdb.compress"));
+            codec = new BinaryNodeCodec(nmgr, compress);
+        }
+
+        try {
+            boolean sync = !"false".equalsIgnoreCase(props.getProperty("logdb.sync"));
+            store = new LogStore(dbHomeDir, "nodes", sync);
+            if (store.size() == 0 && new File(dbHomeDir, "0.xml").exists()) {
+                app.logEvent("Migrating XML database in " + dbHomeDir);
+                store.close();
+                int count = XmlMigrator.migrate(dbHomeDir, dbHomeDir, "nodes");
+                store = new LogStore(dbHomeDir, "nodes", sync);
+                app.logEvent("Migrated " + count + " objects to " + store);
+            }
+            store.setGroupCommitWindow(groupCommitWindow);
+        } catch (IOException x) {
+            app.logError("Error opening db in " + dbHomeDir, x);
+            throw new DatabaseException("Error opening db: " + x);
+        }
+
+        // get the initial id generator value
+        long idBaseValue;
+        try {
+            idBaseValue = Long.parseLong(app.getProperty("idBaseValue", "1"));
+            // 0 and 1 are reserved for root nodes
+            idBaseValue = Math.max(1L, idBaseValue);
+        } catch (NumberFormatException ignore) {
+            idBaseValue = 1L;
+        }
+        counter = Math.max(store.getCounter(), idBaseValue);
+
+        ITransaction txn = null;
+
+        try {
+            txn = beginTransaction();
+
+            Node node = null;
+
+            if (!store.contains("0")) {
+                node = new Node("root", "0", "Root", nmgr.safe);
+                node.setDbMapping(app.getDbMapping("root"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            if (!store.contains("1")) {
+                node = new Node("users", "1", null, nmgr.safe);
+                node.setDbMapping(app.getDbMapping("__userroot__"));
+                insertNode(txn, node.getID(), node);
+            }
+
+            commitTransaction(txn);
+        } catch (Exception x) {
+            app.logError("Error initializing db", x);
+
+            try {
+                abortTransaction(txn);
+            } catch (Exception ignore) {
+            }
+
+            throw (new DatabaseException("Error initializing db"));
+        }
+
+        running = true;
+        compactor = new Thread(this, app.getName() + "-db-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Read the compaction and group commit settings from the app properties.
+     */
+    void updateProperties(Properties props) {
+        try {
+            compactRatio = Double.parseDouble(props.getProperty("logdb.compactRatio", "0.5").trim());
+            compactInterval = Long.parseLong(props.getProperty("logdb.compactInterval", "60000").trim());
+            compactMinSize = WeightedNodeCache.parseByteSize(
+                    props.getProperty("logdb.compactMinSize", "16M"));
+            groupCommitWindow = Long.parseLong(
+                    props.getProperty("logdb.groupCommitWindow", "0").trim());
+        } catch (NumberFormatException x) {
+            app.logError("Invalid logdb setting: " + x.getMessage());
+        }
+    }
+
+    /**
+     * Shut down the database
+     */
+    public void shutdown() {
+        running = false;
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+        if (compactor != null) {
+            try {
+                compactor.join(10000);
+            } catch (InterruptedException ignore) {
+                // shutting down anyway
+            }
+        }
+        try {
+            store.close();
+        } catch (IOException x) {
+            app.logError("Error closing db", x);
+        }
+    }
+
+    /**
+     * Check every compactInterval milliseconds whether the log should be compacted.
+     */
+    public void run() {
+        while (running) {
+            synchronized (lock) {
+                try {
+                    lock.wait(compactInterval);
+                } catch (InterruptedException ir) {
+                    // fall through
+                }
+            }
+            if (running && store.needsCompaction(compactMinSize, compactRatio)) {
+                long start = System.currentTimeMillis();
+                try {
+                    String before = store.toString();
+                    store.compact();
+                    app.logEvent("Compacted " + before + " in " +
+                                 (System.currentTimeMillis() - start) + " millis");
+                } catch (IOException x) {
+                    app.logError("Error compacting db", x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a new transaction.
+     *
+     * @return the new tranaction object
+     * @throws DatabaseException
+     */
+    public ITransaction beginTransaction() throws DatabaseException {
+        return new LogTransaction();
+    }
+
+    /**
+     * Commit the given transaction, appending its changes to the log.
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void commitTransaction(ITransaction txn) throws DatabaseException {
+        txn.commit();
+    }
+
+    /**
+     * Abort the given transaction
+     *
+     * @param txn
+     * @throws DatabaseException
+     */
+    public void abortTransaction(ITransaction txn) throws DatabaseException {
+        txn.abort();
+    }
+
+    /**
+     * Get the id for the next new object to be stored.
+     *
+     * @return the id for the next new object to be stored
+     */
+    public synchronized String nextID() {
+        counter += 1L;
+        return Long.toString(counter);
+    }
+
+    // the last id handed out, stored with each commit
+    synchronized long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Retrieves a Node from the database.
+     *
+     * @param txn the current transaction
+     * @param kstr the key
+     * @return the object associated with the given key
+     * @throws IOException if an I/O error occurred loading the object.
+     * @throws ObjectNotFoundException if no object is stored by this key.
+     */
+    public INode getNode(ITransaction txn, String kstr)
+                  throws IOException, ObjectNotFoundException {
+        LogStore.Record record = store.get(kstr);
+
+        if (record == null) {
+            throw new ObjectNotFoundException("Object not found for key " + kstr);
+        }
+
+        return decode(record);
+    }
+
+    /**
+     * Decode a node from a log record.
+     */
+    Node decode(LogStore.Record record) throws IOException {
+        if (record.format == BinaryNodeCodec.FORMAT_BINARY) {
+            BinaryNodeCodec decoder = codec;
+            if (decoder == null) {
+                decoder = new BinaryNodeCodec(nmgr, false);
+            }
+            return decoder.decode(record.data);
+        } else if (record.format != XmlMigrator.FORMAT_XML) {
+            throw new IOException("Unknown format " + record.format + " for key " + record.key);
+        }
+        try {
+            XmlDatabaseReader reader = new XmlDatabaseReader(nmgr);
+            return reader.read(new ByteArrayInputStream(record.data));
+        } catch (ParserConfigurationException x) {
+            app.logError("Error reading " + record.key, x);
+            throw new IOException(x.toString());
+        } catch (SAXException x) {
+            app.logError("Error reading " + record.key, x);
+            throw new IOException(x.toString());
+        }
+    }
+
+    /**
+     * Encode a node to a log record.
+     */
+    LogStore.Record encode(String kstr, INode node) throws IOException {
+        if (codec != null) {
+            return new LogStore.Record(kstr, BinaryNodeCodec.FORMAT_BINARY, codec.encode(node));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeXml(node, out);
+
+        return new LogStore.Record(kstr, XmlMigrator.FORMAT_XML, out.toByteArray());
+    }
+
+    // write a node in the XML format of XmlDatabase
+    private void writeXml(INode node, OutputStream out) throws IOException {
+        XmlWriter writer;
+
+        if (encoding != null) {
+            writer = new XmlWriter(out, encoding);
+        } else {
+            writer = new XmlWriter(out);
+        }
+
+        writer.setMaxLevels(1);
+        writer.write(node);
+        writer.close();
+    }
+
+    /**
+     * Export all objects to a directory in the format of XmlDatabase, so it
+     * can be used as the db directory of an application using XmlDatabase.
+     *
+     * @param dir the directory to write to
+     * @return the number of objects exported
+     * @throws IOException if an object can't be read or written
+     */
+    public int exportXml(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Can't create directory " + dir);
+        }
+
+        String[] keys = store.keys();
+        int count = 0;
+
+        for (int i = 0; i < keys.length; i++) {
+            LogStore.Record record = store.get(keys[i]);
+            if (record == null) {
+                // deleted meanwhile
+                continue;
+            }
+            OutputStream out = new FileOutputStream(new File(dir, keys[i] + ".xml"));
+            try {
+                if (record.format == XmlMigrator.FORMAT_XML) {
+                    out.write(record.data);
+                } else {
+                    writeXml(decode(record), out);
+                }
+            } finally {
+                out.close();
+            }
+            count++;
+        }
+
+        XmlIDGenerator.saveIDGenerator(new XmlIDGenerator(getCounter()),
+                                       new File(dir, "idgen.xml"));
+        return count;
+    }
+
+    /**
+     * Save a node with the given key. The node is written to the log
+     * when the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void insertNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        if (store.contains(kstr)) {
+            throw new IOException("Object already exists for key " + kstr);
+        }
+
+        // apart from the above check insertNode() is equivalent to updateNode()
+        updateNode(txn, kstr, node);
+    }
+
+    /**
+     * Update a node with the given key. The node is written to the log
+     * when the transaction is committed.
+     *
+     * @param txn
+     * @param kstr
+     * @param node
+     * @throws java.io.IOException
+     */
+    public void updateNode(ITransaction txn, String kstr, INode node)
+                throws IOException {
+        txn.addResource(encode(kstr, node), ITransaction.ADDED);
+    }
+
+    /**
+     * Marks an element from the database as deleted
+     *
+     * @param txn
+     * @param kstr
+     * @throws IOException
+     */
+    public void deleteNode(ITransaction txn, String kstr)
+                    throws IOException {
+        txn.addResource(new LogStore.Record(kstr, (byte) 0, null), ITransaction.DELETED);
+    }
+
+    /**
+     * set the encoding to use for objects
+     *
+     * @param encoding the database's encoding
+     */
+    public void setEncoding(String encoding) {
+        this.encoding = encoding;
+    }
+
+    /**
+     * get the encoding used by this database
+     *
+     * @return the database's encoding
+     */
+    public String getEncoding() {
+        return encoding;
+    }
+
+    class LogTransaction implements ITransaction {
+
+        // the latest change for each key
+        LinkedHashMap records = new LinkedHashMap();
+
+        /**
+         * Complete the transaction by appending its changes to the log.
+         */
+        public void commit() throws DatabaseException {
+            if (records.isEmpty()) {
+                return;
+            }
+            try {
+                store.commit(new ArrayList(records.values()), getCounter());
+            } catch (IOException x) {
+                app.logError("Error committing transaction", x);
+                throw new DatabaseException("Error committing transaction: " + x);
+            } finally {
+                records.clear();
+            }
+        }
+
+        /**
+         * Rollback the transaction, forgetting the changed items
+         */
+        public void abort() throws DatabaseException {
+            records.clear();
+        }
+
+        /**
+         * Adds a resource to the list of resources encompassed by this transaction
+         *
+         * @param res the LogStore.Record to add
+         * @param status the status of the resource (ADDED|UPDATED|DELETED)
+         */
+        public void addResource(Object res, int status)
+               throws DatabaseException {
+            LogStore.Record record = (LogStore.Record) res;
+            // a record replaces earlier changes to the same key
+            records.remove(record.key);
+            records.put(record.key, record);
+        }
+
+    }
+
+}
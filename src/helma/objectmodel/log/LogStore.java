@@ -0,0 +1,766 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.log;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An append-only log of key/value records with an in-memory index mapping
+ * each key to the position of its current value in the log.
+ *
+ * Each commit appends one frame holding all records of a transaction, preceded
+ * by its length and checksum, so a commit is either completely contained in
+ * the log or not at all. When the log is opened, frames are read back to
+ * rebuild the index, and a partially written frame at the end of the log
+ * left over by a crash is cut off. To avoid reading the whole log on startup,
+ * a snapshot of the index is written when the log is closed, and only frames
+ * appended after the snapshot are read.
+ *
+ * Superseded and deleted values remain in the log until it is compacted,
+ * which copies the current values to a new log while commits continue.
+ *
+ * With a group commit window set, concurrent commits are written together:
+ * the first commit waits for the window to pass, then writes the frames of
+ * all commits that arrived meanwhile and forces them to disk once, while
+ * the other commits wait for it to finish.
+ */
+public final class LogStore {
+
+    static final int MAGIC = 0x484c4f47; // HLOG
+    static final int INDEX_MAGIC = 0x48494458; // HIDX
+    static final int VERSION = 1;
+    // magic, version and generation
+    static final int HEADER_SIZE = 16;
+    // frame length and checksum
+    static final int FRAME_HEADER_SIZE = 12;
+    // estimated size of a record besides its key and value
+    static final int RECORD_OVERHEAD = 8;
+
+    // record types
+    static final byte PUT = 1;
+    static final byte DELETE = 2;
+
+    // max size of the frames written while compacting
+    static final int COMPACT_FRAME_SIZE = 4 * 1024 * 1024;
+
+    private final File logFile;
+    private final File indexFile;
+    private final File compactFile;
+    private final boolean sync;
+
+    private RandomAccessFile file;
+    // changes whenever the log is rewritten by compaction
+    private long generation;
+    // end of the last complete frame
+    private long length;
+    // bytes used by superseded values and deletions
+    private long garbage;
+    // the counter value stored with the last commit
+    private long counter;
+    // the current values, by key
+    private HashMap index = new HashMap();
+
+    // millis to wait for other commits to join a group, 0 to disable group commit
+    private volatile long groupWindow = 0;
+    // commits waiting to be written
+    private ArrayList queue = new ArrayList();
+    // true while a commit is writing a group
+    private boolean writingGroup = false;
+    // the size of the last group written
+    private int lastGroupSize = 0;
+    private final Object queueLock = new Object();
+
+    // statistics
+    private long commits = 0;
+    private long groups = 0;
+
+    static final Log log = LogFactory.getLog(LogStore.class);
+
+    /**
+     * Open or create a log in the given directory.
+     *
+     * @param dir the directory
+     * @param name the base name of the log files
+     * @param sync whether to force each commit to disk
+     * @throws IOException if the log can't be opened
+     */
+    public LogStore(File dir, String name, boolean sync) throws IOException {
+        this.logFile = new File(dir, name + ".log");
+        this.indexFile = new File(dir, name + ".idx");
+        this.compactFile = new File(dir, name + ".compact");
+        this.sync = sync;
+
+        if (!logFile.exists() && compactFile.exists()) {
+            // crashed while replacing the log with its compacted version
+            if (!compactFile.renameTo(logFile)) {
+                throw new IOException("Can't rename " + compactFile + " to " + logFile);
+            }
+        } else if (compactFile.exists()) {
+            // crashed while compacting, the log is still complete
+            compactFile.delete();
+        }
+
+        file = new RandomAccessFile(logFile, "rw");
+
+        if (file.length() < HEADER_SIZE) {
+            generation = System.currentTimeMillis();
+            file.setLength(0);
+            writeHeader(file, generation);
+            length = HEADER_SIZE;
+            if (sync) {
+                file.getFD().sync();
+            }
+        } else {
+            file.seek(0);
+            if (file.readInt() != MAGIC) {
+                throw new IOException(logFile + " is not a log file");
+            }
+            int version = file.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported log version " + version + " in " + logFile);
+            }
+            generation = file.readLong();
+            long start = readIndex();
+            if (start < 0) {
+                index.clear();
+                garbage = 0;
+                counter = 0;
+                start = HEADER_SIZE;
+            }
+            recover(start);
+        }
+    }
+
+    /**
+     * Delete the files of a log that isn't open.
+     *
+     * @param dir the directory
+     * @param name the base name of the log files
+     */
+    public static void delete(File dir, String name) {
+        new File(dir, name + ".log").delete();
+        new File(dir, name + ".idx").delete();
+        new File(dir, name + ".compact").delete();
+    }
+
+    /**
+     * Replace a log with another one. Neither log may be open. The log file is
+     * renamed last, so the target either has its old files or the new log.
+     * If the index can't be renamed, it is rebuilt when the log is opened.
+     *
+     * @param dir the directory
+     * @param from the base name of the files of the new log
+     * @param to the base name of the files of the log to replace
+     * @throws IOException if the log file can't be renamed
+     */
+    public static void rename(File dir, String from, String to) throws IOException {
+        delete(dir, to);
+        File index = new File(dir, from + ".idx");
+        File log = new File(dir, from + ".log");
+        File target = new File(dir, to + ".log");
+        if (index.exists() && !index.renameTo(new File(dir, to + ".idx"))) {
+            index.delete();
+        }
+        if (!log.renameTo(target)) {
+            throw new IOException("Can't rename " + log + " to " + target);
+        }
+    }
+
+    private static void writeHeader(RandomAccessFile raf, long generation)
+            throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeLong(generation);
+    }
+
+    /**
+     * Read the frames from the given position to the end of the log into
+     * the index, cutting off an incomplete frame at the end.
+     */
+    private void recover(long start) throws IOException {
+        long pos = start;
+        long end = file.length();
+
+        while (pos + FRAME_HEADER_SIZE <= end) {
+            file.seek(pos);
+            int size = file.readInt();
+            long checksum = file.readLong();
+            if (size < 0 || pos + FRAME_HEADER_SIZE + size > end) {
+                break;
+            }
+            byte[] body = new byte[size];
+            file.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+            garbage += apply(body, pos + FRAME_HEADER_SIZE, index);
+            counter = readCounter(body);
+            pos += FRAME_HEADER_SIZE + size;
+        }
+
+        if (pos < end) {
+            log.warn("Discarding " + (end - pos) + " bytes of incomplete data at the end of " +
+                     logFile);
+            file.setLength(pos);
+        }
+        length = pos;
+    }
+
+    /**
+     * Read the index snapshot if it matches the log.
+     *
+     * @return the log position up to which the snapshot is valid, or -1
+     */
+    private long readIndex() {
+        if (!indexFile.exists()) {
+            return -1;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != VERSION ||
+                    in.readLong() != generation) {
+                return -1;
+            }
+            long position = in.readLong();
+            if (position > file.length()) {
+                return -1;
+            }
+            counter = in.readLong();
+            garbage = in.readLong();
+            int size = in.readInt();
+            index = new HashMap(Math.max(16, size * 4 / 3));
+            for (int i = 0; i < size; i++) {
+                String key = in.readUTF();
+                long offset = in.readLong();
+                int length = in.readInt();
+                byte format = in.readByte();
+                index.put(key, new Entry(offset, length, format));
+            }
+            return position;
+        } catch (IOException x) {
+            log.warn("Error reading " + indexFile + ", rebuilding index: " + x);
+            index = new HashMap();
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a snapshot of the index, so it doesn't need to be rebuilt from
+     * the whole log when the log is opened the next time.
+     */
+    private void writeIndex() throws IOException {
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(generation);
+            out.writeLong(length);
+            out.writeLong(counter);
+            out.writeLong(garbage);
+            out.writeInt(index.size());
+            for (Iterator it = index.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                Entry value = (Entry) entry.getValue();
+                out.writeUTF((String) entry.getKey());
+                out.writeLong(value.offset);
+                out.writeInt(value.length);
+                out.writeByte(value.format);
+            }
+        } finally {
+            out.close();
+        }
+        if (indexFile.exists()) {
+            indexFile.delete();
+        }
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("Can't rename " + tmp + " to " + indexFile);
+        }
+    }
+
+    /**
+     * Apply the records of a frame to an index.
+     *
+     * @param body the frame body
+     * @param base the position of the frame body in the log
+     * @param index the index to update
+     * @return the number of bytes superseded by the frame
+     */
+    private static long apply(byte[] body, long base, Map index) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        DataInputStream in = new DataInputStream(bytes);
+        long superseded = 0;
+
+        in.readLong(); // counter
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String key = in.readUTF();
+            Entry old;
+            if (type == PUT) {
+                byte format = in.readByte();
+                int size = in.readInt();
+                long offset = base + body.length - bytes.available();
+                in.skipBytes(size);
+                old = (Entry) index.put(key, new Entry(offset, size, format));
+            } else if (type == DELETE) {
+                old = (Entry) index.remove(key);
+                superseded += key.length() + RECORD_OVERHEAD;
+            } else {
+                throw new IOException("Invalid record type " + type);
+            }
+            if (old != null) {
+                superseded += old.length + key.length() + RECORD_OVERHEAD;
+            }
+        }
+        return superseded;
+    }
+
+    private static long readCounter(byte[] body) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(body)).readLong();
+    }
+
+    /**
+     * Render the records of a commit to a frame.
+     */
+    private static byte[] render(List records, long counter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // frame length, set below
+        out.writeLong(0); // checksum, set below
+        out.writeLong(counter);
+        out.writeInt(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Record record = (Record) records.get(i);
+            if (record.data == null) {
+                out.writeByte(DELETE);
+                out.writeUTF(record.key);
+            } else {
+                out.writeByte(PUT);
+                out.writeUTF(record.key);
+                out.writeByte(record.format);
+                out.writeInt(record.data.length);
+                out.write(record.data);
+            }
+        }
+        out.close();
+
+        byte[] frame = bytes.toByteArray();
+        int size = frame.length - FRAME_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(frame, FRAME_HEADER_SIZE, size);
+        writeInt(frame, 0, size);
+        writeLong(frame, 4, crc.getValue());
+        return frame;
+    }
+
+    private static void writeInt(byte[] b, int off, int value) {
+        for (int i = 3; i >= 0; i--) {
+            b[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static void writeLong(byte[] b, int off, long value) {
+        for (int i = 7; i >= 0; i--) {
+            b[off + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    /**
+     * Get the current value for a key.
+     *
+     * @param key the key
+     * @return the record, or null if no value is stored for the key
+     * @throws IOException if the value can't be read
+     */
+    public synchronized Record get(String key) throws IOException {
+        Entry entry = (Entry) index.get(key);
+        if (entry == null) {
+            return null;
+        }
+        byte[] data = new byte[entry.length];
+        file.seek(entry.offset);
+        file.readFully(data);
+        return new Record(key, entry.format, data);
+    }
+
+    /**
+     * Check if a value is stored for a key.
+     */
+    public synchronized boolean contains(String key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Get the number of keys with a value.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * Get the keys with a value.
+     */
+    public synchronized String[] keys() {
+        return (String[]) index.keySet().toArray(new String[index.size()]);
+    }
+
+    /**
+     * Get the counter value stored with the last commit.
+     */
+    public synchronized long getCounter() {
+        return counter;
+    }
+
+    /**
+     * Append the records of a transaction to the log as one frame.
+     *
+     * @param records the Records to write, with null data for deletions
+     * @param counter a counter value to store with the commit
+     * @throws IOException if the frame can't be written
+     */
+    public void commit(List records, long counter) throws IOException {
+        Commit commit = new Commit(render(records, counter), counter);
+
+        if (groupWindow <= 0 || !sync) {
+            write(new Commit[] {commit});
+            return;
+        }
+
+        boolean wait;
+        synchronized (queueLock) {
+            queue.add(commit);
+            // wait for others to join if the last group wasn't a single commit
+            wait = queue.size() > 1 || lastGroupSize > 1;
+            while (!commit.done && writingGroup) {
+                try {
+                    queueLock.wait();
+                } catch (InterruptedException ir) {
+                    // the commit may already be in a group, keep waiting
+                }
+            }
+            if (commit.done) {
+                if (commit.error != null) {
+                    throw commit.error;
+                }
+                return;
+            }
+            writingGroup = true;
+        }
+
+        // we write the group including our own commit
+        if (wait) {
+            try {
+                Thread.sleep(groupWindow);
+            } catch (InterruptedException ir) {
+                // write now
+            }
+        }
+
+        Commit[] group;
+        synchronized (queueLock) {
+            group = (Commit[]) queue.toArray(new Commit[queue.size()]);
+            queue.clear();
+        }
+
+        IOException error = null;
+        try {
+            write(group);
+        } catch (IOException x) {
+            error = x;
+        } finally {
+            synchronized (queueLock) {
+                for (int i = 0; i < group.length; i++) {
+                    group[i].error = error;
+                    group[i].done = true;
+                }
+                lastGroupSize = group.length;
+                writingGroup = false;
+                queueLock.notifyAll();
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Append the frames of one or more commits to the log and force them to disk.
+     */
+    private synchronized void write(Commit[] group) throws IOException {
+        int size = 0;
+        for (int i = 0; i < group.length; i++) {
+            size += group[i].frame.length;
+        }
+        byte[] frames;
+        if (group.length == 1) {
+            frames = group[0].frame;
+        } else {
+            frames = new byte[size];
+            int offset = 0;
+            for (int i = 0; i < group.length; i++) {
+                System.arraycopy(group[i].frame, 0, frames, offset, group[i].frame.length);
+                offset += group[i].frame.length;
+            }
+        }
+
+        file.seek(length);
+        try {
+            file.write(frames);
+            if (sync) {
+                file.getFD().sync();
+            }
+        } catch (IOException x) {
+            // don't leave a partial frame that later frames would follow
+            file.setLength(length);
+            throw x;
+        }
+
+        for (int i = 0; i < group.length; i++) {
+            byte[] frame = group[i].frame;
+            byte[] body = new byte[frame.length - FRAME_HEADER_SIZE];
+            System.arraycopy(frame, FRAME_HEADER_SIZE, body, 0, body.length);
+            garbage += apply(body, length + FRAME_HEADER_SIZE, index);
+            length += frame.length;
+            counter = Math.max(counter, group[i].counter);
+        }
+        commits += group.length;
+        groups++;
+    }
+
+    /**
+     * Set the number of milliseconds a commit waits for concurrent commits
+     * to be written together with it. Only used if commits are forced to disk.
+     *
+     * @param millis the group commit window, or 0 to write each commit separately
+     */
+    public void setGroupCommitWindow(long millis) {
+        groupWindow = millis;
+    }
+
+    /**
+     * Check if the log should be compacted.
+     *
+     * @param minSize the minimum size of the log
+     * @param ratio the minimum fraction of the log taken up by superseded data
+     */
+    public synchronized boolean needsCompaction(long minSize, double ratio) {
+        return length >= minSize && garbage >= length * ratio;
+    }
+
+    /**
+     * Rewrite the log with the current values only. Commits can continue
+     * while the current values are copied, and are carried over to the
+     * new log before it replaces the old one.
+     *
+     * @throws IOException if compaction fails, in which case the log is unchanged
+     */
+    public void compact() throws IOException {
+        HashMap snapshot;
+        long snapshotLength;
+        long snapshotCounter;
+        synchronized (this) {
+            snapshot = new HashMap(index);
+            snapshotLength = length;
+            snapshotCounter = counter;
+        }
+
+        long newGeneration = Math.max(System.currentTimeMillis(), generation + 1);
+        RandomAccessFile out = new RandomAccessFile(compactFile, "rw");
+        boolean success = false;
+
+        try {
+            out.setLength(0);
+            writeHeader(out, newGeneration);
+            long position = HEADER_SIZE;
+            HashMap newIndex = new HashMap(Math.max(16, snapshot.size() * 4 / 3));
+
+            // copy the current values
+            List records = new ArrayList();
+            int size = 0;
+            for (Iterator it = snapshot.keySet().iterator(); it.hasNext(); ) {
+                Record record = get((String) it.next(), snapshot);
+                records.add(record);
+                size += record.data.length;
+                if (size >= COMPACT_FRAME_SIZE || !it.hasNext()) {
+                    position += appendFrame(out, position, records, snapshotCounter, newIndex);
+                    records.clear();
+                    size = 0;
+                }
+            }
+
+            synchronized (this) {
+                // carry over the frames committed meanwhile
+                long newGarbage = 0;
+                long pos = snapshotLength;
+                while (pos < length) {
+                    file.seek(pos);
+                    int frameSize = file.readInt();
+                    file.seek(pos);
+                    byte[] frame = new byte[FRAME_HEADER_SIZE + frameSize];
+                    file.readFully(frame);
+                    out.seek(position);
+                    out.write(frame);
+                    byte[] body = new byte[frameSize];
+                    System.arraycopy(frame, FRAME_HEADER_SIZE, body, 0, frameSize);
+                    newGarbage += apply(body, position + FRAME_HEADER_SIZE, newIndex);
+                    position += frame.length;
+                    pos += frame.length;
+                }
+                out.getFD().sync();
+                out.close();
+
+                // replace the log
+                file.close();
+                if (!logFile.delete() || !compactFile.renameTo(logFile)) {
+                    file = new RandomAccessFile(logFile.exists() ? logFile : compactFile, "rw");
+                    throw new IOException("Can't replace " + logFile + " with " + compactFile);
+                }
+                file = new RandomAccessFile(logFile, "rw");
+                index = newIndex;
+                generation = newGeneration;
+                length = position;
+                garbage = newGarbage;
+                success = true;
+                writeIndex();
+            }
+        } finally {
+            if (!success) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                    // nothing to do
+                }
+                compactFile.delete();
+            }
+        }
+    }
+
+    // read a value using the given snapshot of the index
+    private synchronized Record get(String key, Map snapshot) throws IOException {
+        Entry entry = (Entry) snapshot.get(key);
+        byte[] data = new byte[entry.length];
+        file.seek(entry.offset);
+        file.readFully(data);
+        return new Record(key, entry.format, data);
+    }
+
+    // write a frame to the compacted log and index its records
+    private static int appendFrame(RandomAccessFile out, long position, List records,
+                                   long counter, Map index) throws IOException {
+        byte[] frame = render(records, counter);
+        out.seek(position);
+        out.write(frame);
+        byte[] body = new byte[frame.length - FRAME_HEADER_SIZE];
+        System.arraycopy(frame, FRAME_HEADER_SIZE, body, 0, body.length);
+        apply(body, position + FRAME_HEADER_SIZE, index);
+        return frame.length;
+    }
+
+    /**
+     * Close the log, writing a snapshot of the index.
+     */
+    public synchronized void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        try {
+            if (sync) {
+                file.getFD().sync();
+            }
+            writeIndex();
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+
+    public synchronized String toString() {
+        return "LogStore[" + logFile + ", " + index.size() + " keys, " + length +
+               " bytes, " + garbage + " garbage, " + commits + " commits in " +
+               groups + " writes]";
+    }
+
+    /**
+     * A commit waiting to be written.
+     */
+    static final class Commit {
+        final byte[] frame;
+        final long counter;
+        boolean done = false;
+        IOException error = null;
+
+        Commit(byte[] frame, long counter) {
+            this.frame = frame;
+            this.counter = counter;
+        }
+    }
+
+    /**
+     * The position of a value in the log.
+     */
+    static final class Entry {
+        final long offset;
+        final int length;
+        final byte format;
+
+        Entry(long offset, int length, byte format) {
+            this.offset = offset;
+            this.length = length;
+            this.format = format;
+        }
+    }
+
+    /**
+     * A value stored for a key, or a deletion if the data is null.
+     */
+    public static final class Record {
+        public final String key;
+        public final byte format;
+        public final byte[] data;
+
+        public Record(String key, byte format, byte[] data) {
+            this.key = key;
+            this.format = format;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.objectmodel.log;
+
+import helma.objectmodel.ObjectNotFoundException;
+import helma.objectmodel.dom.XmlIDGenerator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the objects of an XML database directory into a log store.
+ * The XML files are stored unchanged, so the XML database is left intact
+ * and can still be used if the log is removed.
+ *
+ * Can be run from the command line with the XML database directory and an
+ * optional target directory for the log, which defaults to the XML database
+ * directory.
+ */
+public class XmlMigrator {
+
+    // record format for objects stored in the XML format of XmlDatabase
+    public static final byte FORMAT_XML = 1;
+
+    // number of objects per commit
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Copy all objects of an XML database into a new log. The objects are
+     * written to a temporary log, which only replaces the target log once
+     * all objects have been copied. A migration that is interrupted leaves
+     * the target log empty and is started over the next time.
+     *
+     * @param xmlDir the XML database directory
+     * @param dir the directory of the log
+     * @param name the base name of the log files. The log must not be open.
+     * @return the number of objects copied
+     * @throws IOException if an object can't be read or written
+     */
+    public static int migrate(File xmlDir, File dir, String name) throws IOException {
+        String tmpName = name + "-migration";
+        // remove the remains of an interrupted migration
+        LogStore.delete(dir, tmpName);
+
+        int count;
+        LogStore tmp = new LogStore(dir, tmpName, true);
+        try {
+            count = migrate(xmlDir, tmp);
+        } finally {
+            tmp.close();
+        }
+
+        LogStore.rename(dir, tmpName, name);
+        return count;
+    }
+
+    /**
+     * Copy all objects of an XML database into a log store.
+     *
+     * @param xmlDir the XML database directory
+     * @param store the log store
+     * @return the number of objects copied
+     * @throws IOException if an object can't be read or written
+     */
+    public static int migrate(File xmlDir, LogStore store) throws IOException {
+        long counter = store.getCounter();
+        try {
+            XmlIDGenerator idgen = XmlIDGenerator.getIDGenerator(new File(xmlDir, "idgen.xml"));
+            counter = Math.max(counter, idgen.getValue());
+        } catch (ObjectNotFoundException notfound) {
+            // no ids handed out yet
+        }
+
+        String[] files = xmlDir.list();
+        if (files == null) {
+            throw new IOException("Can't read directory " + xmlDir);
+        }
+
+        List batch = new ArrayList();
+        int count = 0;
+
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i];
+            if (!name.endsWith(".xml") || "idgen.xml".equals(name)) {
+                continue;
+            }
+            String key = name.substring(0, name.length() - 4);
+            batch.add(new LogStore.Record(key, FORMAT_XML, readFile(new File(xmlDir, name))));
+            count++;
+            if (batch.size() >= BATCH_SIZE) {
+                store.commit(batch, counter);
+                batch.clear();
+            }
+        }
+
+        // always commit to store the id counter
+        store.commit(batch, counter);
+
+        return count;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            int offset = 0;
+            while (offset < data.length) {
+                int read = in.read(data, offset, data.length - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+                offset += read;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Migrate an XML database from the command line.
+     *
+     * @param args the XML database directory and an optional target directory
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java helma.objectmodel.log.XmlMigrator xmlDir [targetDir]");
+            System.exit(1);
+        }
+
+        File xmlDir = new File(args[0]);
+        File targetDir = args.length > 1 ? new File(args[1]) : xmlDir;
+        if (!targetDir.exists() && !targetDir.mkdirs()) {
+            System.err.println("Can't create directory " + targetDir);
+            System.exit(1);
+        }
+
+        LogStore store = new LogStore(targetDir, "nodes", false);
+        try {
+            if (store.size() > 0) {
+                System.err.println("Target log in " + targetDir + " is not empty");
+                System.exit(1);
+            }
+        } finally {
+            store.close();
+        }
+        int count = migrate(xmlDir, targetDir, "nodes");
+        System.out.println("Migrated " + count + " objects to " + targetDir);
+    }
+}
@@ -324,9 +324,13 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
     }
 
     /**
-     * Get a childObject by name/id or index
+     * Get a childObject by name/id or index. If the argument is an array, an array
+     * of the child objects is returned, with null for names or indexes that don't
+     * resolve to a child object. Child objects that aren't cached are then fetched
+     * with as few queries as possible.
      *
-     * @param id The name/id or index, depending if the argument is a String or Number.
+     * @param id The name/id or index, depending if the argument is a String or Number,
+     *           or an array of names/ids or indexes.
      *
      * @return ...
      */
@@ -338,6 +342,50 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         Object child;
         INode node = getNode();
 
+        if (id instanceof NativeArray) {
+            NativeArray array = (NativeArray) id;
+            Object[] children = new Object[(int) array.getLength()];
+            if (node instanceof Node) {
+                // resolve indexes and names separately, keeping their positions
+                int[] indexes = new int[children.length];
+                String[] names = new String[children.length];
+                boolean hasIndexes = false, hasNames = false;
+                for (int i = 0; i < children.length; i++) {
+                    Object elem = array.get(i, array);
+                    indexes[i] = -1;
+                    if (elem instanceof Number) {
+                        indexes[i] = ((Number) elem).intValue();
+                        hasIndexes = true;
+                    } else if (elem != null && elem != Undefined.instance &&
+                               elem != Scriptable.NOT_FOUND) {
+                        names[i] = ScriptRuntime.toString(elem);
+                        hasNames = true;
+                    }
+                }
+                // only look at the child list if there are indexes to resolve
+                Object[] byIndex = hasIndexes ? ((Node) node).getSubnodesAt(indexes) : null;
+                Object[] byName = hasNames ? ((Node) node).getChildElements(names) : null;
+                for (int i = 0; i < children.length; i++) {
+                    if (names[i] != null) {
+                        children[i] = byName[i];
+                    } else if (byIndex != null) {
+                        children[i] = byIndex[i];
+                    }
+                }
+            } else {
+                for (int i = 0; i < children.length; i++) {
+                    Object elem = array.get(i, array);
+                    if (elem instanceof Number) {
+                        children[i] = node.getSubnodeAt(((Number) elem).intValue());
+                    } else if (elem != null && elem != Undefined.instance &&
+                               elem != Scriptable.NOT_FOUND) {
+                        children[i] = node.getChildElement(ScriptRuntime.toString(elem));
+                    }
+                }
+            }
+            return wrapArray(children);
+        }
+
         if (id instanceof Number) {
             child = node.getSubnodeAt(((Number) id).intValue());
         } else {
@@ -351,9 +399,12 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
     }
 
     /**
-     * Get a child object by ID
+     * Get a child object by ID. If the argument is an array of ids, an array of
+     * the child objects is returned, with null for ids that aren't contained in
+     * this object. Child objects that aren't cached are then fetched with as few
+     * queries as possible.
      *
-     * @param id the child id.
+     * @param id the child id, or an array of child ids.
      *
      * @return ...
      */
@@ -363,10 +414,30 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         }
 
         INode node = getNode();
-        String idString = (id instanceof Double) ?
-                          Long.toString(((Double) id).longValue()) :
-                          id.toString();
-        Object n = node.getSubnode(idString);
+
+        if (id instanceof NativeArray) {
+            NativeArray array = (NativeArray) id;
+            String[] ids = new String[(int) array.getLength()];
+            for (int i = 0; i < ids.length; i++) {
+                Object elem = array.get(i, array);
+                if (elem != null && elem != Undefined.instance &&
+                        elem != Scriptable.NOT_FOUND) {
+                    ids[i] = toIdString(elem);
+                }
+            }
+            Object[] children;
+            if (node instanceof Node) {
+                children = ((Node) node).getSubnodes(ids);
+            } else {
+                children = new Object[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    children[i] = ids[i] == null ? null : node.getSubnode(ids[i]);
+                }
+            }
+            return wrapArray(children);
+        }
+
+        Object n = node.getSubnode(toIdString(id));
 
         if (n == null) {
             return null;
@@ -375,6 +446,85 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
         }
     }
 
+    /**
+     * Get the child objects whose property has the given value. For embedded
+     * objects whose prototype declares the property in _children.index,
+     * the children are looked up in an index instead of checking them all.
+     *
+     * @param propname the property name
+     * @param value the property value
+     *
+     * @return an array of the matching child objects, in no particular order
+     */
+    public Scriptable jsFunction_findChildren(String propname, Object value) {
+        return findChildren(propname, value, null, false);
+    }
+
+    /**
+     * Get the child objects whose property has a value within the given range,
+     * including the bounds. Like findChildren(), this uses the index declared
+     * in _children.index where available.
+     *
+     * @param propname the property name
+     * @param from the lower bound, or null
+     * @param to the upper bound, or null
+     *
+     * @return an array of the matching child objects, in no particular order
+     */
+    public Scriptable jsFunction_findChildrenInRange(String propname, Object from, Object to) {
+        return findChildren(propname, from, to, true);
+    }
+
+    private Scriptable findChildren(String propname, Object from, Object to, boolean range) {
+        INode node = proxy == null ? null : getNode();
+        if (!(node instanceof Node)) {
+            return wrapArray(new Object[0]);
+        }
+        Node[] children = ((Node) node).findSubnodes(propname,
+                toPropertyValue(from), toPropertyValue(to), range);
+        return wrapArray(children);
+    }
+
+    // convert a JavaScript value the way it would be stored as a property
+    private static Object toPropertyValue(Object value) {
+        if (value instanceof Wrapper) {
+            value = ((Wrapper) value).unwrap();
+        }
+        if (value == null || value == Undefined.instance) {
+            return null;
+        } else if (value instanceof Scriptable) {
+            Scriptable s = (Scriptable) value;
+            String className = s.getClassName();
+            if ("Date".equals(className)) {
+                return new Date((long) ScriptRuntime.toNumber(s));
+            } else if ("String".equals(className)) {
+                return ScriptRuntime.toString(s);
+            } else if ("Number".equals(className)) {
+                return new Double(ScriptRuntime.toNumber(s));
+            } else if ("Boolean".equals(className)) {
+                return ScriptRuntime.toBoolean(s) ? Boolean.TRUE : Boolean.FALSE;
+            }
+            return null;
+        }
+        return value;
+    }
+
+    private static String toIdString(Object id) {
+        return (id instanceof Double) ?
+               Long.toString(((Double) id).longValue()) :
+               id.toString();
+    }
+
+    // wrap child objects in a JavaScript array, keeping nulls
+    private Scriptable wrapArray(Object[] children) {
+        Object[] wrapped = new Object[children.length];
+        for (int i = 0; i < children.length; i++) {
+            wrapped[i] = children[i] == null ?
+                    null : Context.toObject(children[i], core.global);
+        }
+        return Context.getCurrentContext().newArray(core.global, wrapped);
+    }
+
     /**
      * Set a property on this HopObject
      *
@@ -410,15 +560,21 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
     }
 
     /**
+     * Count the child objects. If the optional argument is true, large
+     * relational collections are not counted exactly, but their size is
+     * estimated from the database's statistics.
      *
-     *
+     * @param approximate whether an approximate count is good enough
      * @return ...
      */
-    public int jsFunction_count() {
+    public int jsFunction_count(Object approximate) {
         if (proxy == null) {
             return 0;
         }
         INode node = getNode();
+        if (node instanceof Node && ScriptRuntime.toBoolean(approximate)) {
+            return ((Node) node).approximateNumberOfNodes();
+        }
         return node.numberOfNodes();
     }
 
@@ -428,35 +584,77 @@ public class HopObject extends ScriptableObject implements Wrapper, PropertyReco
      * @return ...
      */
     public int jsFunction_size() {
-        return jsFunction_count();
+        return jsFunction_count(Undefined.instance);
     }
 
     /**
-     *  Prefetch child objects from (relational) database.
+     *  Prefetch child objects from (relational) database. The optional third
+     *  argument is an array of reference property names whose objects are
+     *  prefetched along with the child objects.
      */
-    public void jsFunction_prefetchChildren(Object startArg, Object lengthArg) {
+    public void jsFunction_prefetchChildren(Object startArg, Object lengthArg,
+                                            Object referencesArg) {
+        String[] references = null;
+        if (referencesArg instanceof NativeArray) {
+            NativeArray array = (NativeArray) referencesArg;
+            references = new String[(int) array.getLength()];
+            for (int i = 0; i < references.length; i++) {
+                references[i] = ScriptRuntime.toString(array.get(i, array));
+            }
+        } else if (referencesArg != Undefined.instance && referencesArg != null) {
+            references = new String[] {ScriptRuntime.toString(referencesArg)};
+        }
+
         // check if we were called with no arguments
         if (startArg == Undefined.instance && lengthArg == Undefined.instance) {
-            prefetchChildren(0, 1000);
+            prefetchChildren(0, 1000, references);
         } else {
             int start = (int) ScriptRuntime.toNumber(startArg);
             int length = (int) ScriptRuntime.toNumber(lengthArg);
-            prefetchChildren(start, length);
+            prefetchChildren(start, length, references);
         }
     }
 
     private void prefetchChildren(int start, int length) {
+        prefetchChildren(start, length, null);
+    }
+
+    private void prefetchChildren(int start, int length, String[] references) {
         if (proxy != null) {
             INode node = getNode();
             if (node instanceof Node) {
                 Node n = (Node) node;
                 if (n.getState() != Node.TRANSIENT && n.getState() != Node.NEW) {
-                    n.prefetchChildren(start, length);
+                    n.prefetchChildren(start, length, references);
                 }
             }
         }
     }
 
+    /**
+     *  Return a forward-only cursor over the child objects, with hasNext(),
+     *  next() and close() methods. Relational collections are streamed from
+     *  the database instead of being loaded completely. The optional argument
+     *  is the number of child objects materialized at once, defaulting to 100.
+     *
+     *  The cursor reads committed data on a database connection of its own, so
+     *  child objects added or removed by the current request, including changes
+     *  that have been flushed, are not reflected. Opening a cursor fails if
+     *  the connection pool has no connection to spare.
+     */
+    public Object jsFunction_cursor(Object windowArg) {
+        int windowSize = windowArg == Undefined.instance ?
+                100 : (int) ScriptRuntime.toNumber(windowArg);
+        if (windowSize <= 0) {
+            throw new EvaluatorException("Window size must be positive in HopObject.cursor()");
+        }
+        INode node = getNode();
+        if (!(node instanceof Node)) {
+            throw new EvaluatorException("HopObject.cursor() is not supported for " + node);
+        }
+        return Context.toObject(((Node) node).getCursor(windowSize), core.global);
+    }
+
     /**
      *  Clear the node's cache node.
      */
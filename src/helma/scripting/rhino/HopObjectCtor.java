@@ -149,7 +149,9 @@ public class HopObjectCtor extends FunctionObject {
         }
 
         /**
-         * Retrieve any persistent HopObject by type name and id.
+         * Retrieve any persistent HopObject by type name and id. If the id
+         * argument is an array, an array of HopObjects is returned, fetching
+         * the objects that aren't cached with as few queries as possible.
          *
          * @return the HopObject or null if it doesn't exist
          */
@@ -165,6 +167,9 @@ public class HopObjectCtor extends FunctionObject {
             DbMapping dbmap = core.app.getDbMapping(type);
             if (dbmap == null)
                 return null;
+            if (args[0] instanceof NativeArray) {
+                return getByIds(cx, scope, dbmap, (NativeArray) args[0]);
+            }
             Object node = null;
             try {
                 DbKey key = new DbKey(dbmap, Context.toString(args[0]));
@@ -175,6 +180,29 @@ public class HopObjectCtor extends FunctionObject {
             return node == null ? null : Context.toObject(node, this);
         }
 
+        private Object getByIds(Context cx, Scriptable scope, DbMapping dbmap,
+                                NativeArray array) {
+            Object[] nodes = new Object[(int) array.getLength()];
+            DbKey[] keys = new DbKey[nodes.length];
+            for (int i = 0; i < keys.length; i++) {
+                Object id = array.get(i, array);
+                if (id != null && id != Undefined.instance && id != Scriptable.NOT_FOUND) {
+                    keys[i] = new DbKey(dbmap, Context.toString(id));
+                }
+            }
+            try {
+                nodes = core.app.getNodeManager().getNodes(keys);
+            } catch (Exception x) {
+                core.app.logError("Error retrieving " + dbmap.getTypeName() + " objects", x);
+            }
+            for (int i = 0; i < nodes.length; i++) {
+                if (nodes[i] != null) {
+                    nodes[i] = Context.toObject(nodes[i], this);
+                }
+            }
+            return cx.newArray(scope, nodes);
+        }
+
         public int getArity() {
             return 1; 
         }
@@ -0,0 +1,111 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import helma.objectmodel.ConcurrentObjectCache;
+
+import java.util.Random;
+
+/**
+ * Compares the throughput of {@link CacheMap} and {@link ConcurrentCacheMap}
+ * under the access pattern of the node manager: threads look up keys and
+ * put the objects they don't find. Keys are drawn from a range twice the
+ * size of the cache, so some lookups miss and entries are evicted.
+ *
+ * Usage: java helma.util.CacheBenchmark [maxThreads] [millis] [capacity]
+ */
+public class CacheBenchmark {
+
+    /**
+     * Run the benchmark from the command line.
+     */
+    public static void main(String[] args) throws Exception {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+        System.out.println("threads  CacheMap ops/s  ConcurrentCacheMap ops/s");
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            // warm up both implementations before measuring
+            if (threads == 1) {
+                run(new CacheMap(capacity, 0.75f), 1, millis / 2, capacity);
+                run(new ConcurrentCacheMap(capacity, 16), 1, millis / 2, capacity);
+            }
+            long plain = run(new CacheMap(capacity, 0.75f), threads, millis, capacity);
+            long striped = run(new ConcurrentCacheMap(capacity, 16), threads, millis, capacity);
+            System.out.println(pad(Integer.toString(threads), 7) +
+                    pad(Long.toString(plain), 16) + pad(Long.toString(striped), 26));
+        }
+    }
+
+    /**
+     * Run the workload on a cache with the given number of threads.
+     *
+     * @return the number of operations per second
+     */
+    static long run(final ConcurrentObjectCache cache, int threads, final long millis,
+                    final int capacity) throws InterruptedException {
+        final long[] counts = new long[threads];
+        final long end = System.currentTimeMillis() + millis;
+        Thread[] workers = new Thread[threads];
+
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            workers[i] = new Thread() {
+                public void run() {
+                    Random random = new Random(index);
+                    Integer[] keys = new Integer[capacity * 2];
+                    for (int k = 0; k < keys.length; k++) {
+                        keys[k] = new Integer(k);
+                    }
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.currentTimeMillis() < end) {
+                        Integer key = keys[random.nextInt(keys.length)];
+                        if (cache.get(key) == null) {
+                            cache.putIfAbsent(key, key);
+                        }
+                        count++;
+                    }
+                    counts[index] = count;
+                }
+            };
+        }
+
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < threads; i++) {
+            workers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        long total = 0;
+        for (int i = 0; i < threads; i++) {
+            total += counts[i];
+        }
+        return total * 1000 / elapsed;
+    }
+
+    private static String pad(String str, int width) {
+        StringBuffer b = new StringBuffer();
+        for (int i = str.length(); i < width; i++) {
+            b.append(' ');
+        }
+        return b.append(str).toString();
+    }
+}
@@ -31,10 +31,12 @@ package helma.util;
 
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Properties;
 
 import helma.framework.core.Application;
-import helma.objectmodel.ObjectCache;
+import helma.objectmodel.ConcurrentObjectCache;
+import helma.objectmodel.EvictionListener;
 
 
 /// A Hashtable that expires least-recently-used objects.
@@ -48,7 +50,7 @@ import helma.objectmodel.ObjectCache;
 // <P>
 // @see java.util.Hashtable
 
-public class CacheMap implements ObjectCache {
+public class CacheMap implements ConcurrentObjectCache {
 
     // Load factor.
     private float loadFactor;
@@ -66,6 +68,9 @@ public class CacheMap implements ObjectCache {
     // the application to output messages to
     private Application app = null;
 
+    // notified of entries lost on table rotation
+    private EvictionListener evictionListener = null;
+
     /**
      * Zero argument constructor. Creates a CacheMap with capacity of 1000
      * and load factor 0.75
@@ -144,11 +149,28 @@ public class CacheMap implements ObjectCache {
         eachCapacity = (int) (threshold / loadFactor) + 2;
         // if newtable is larger than threshold, rotate.
         if (newTable.size() > threshold) {
-            oldTable = newTable;
-            newTable = createTable(eachCapacity, loadFactor);
+            rotateTables();
         }
     }
 
+    // discard the old table, reporting its entries to the eviction listener
+    private void rotateTables() {
+        if (evictionListener != null) {
+            for (Iterator it = oldTable.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) it.next();
+                evictionListener.evicted(entry.getKey(), entry.getValue());
+            }
+        }
+        oldTable = newTable;
+        newTable = createTable(eachCapacity, loadFactor);
+    }
+
+    /// Set a listener to be notified of entries discarded on table rotation.
+    // @param listener the listener, or null
+    public synchronized void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+    }
+
     /// Returns true if the specified object is an element of the hashtable.
     // This operation is more expensive than the containsKey() method.
     // @param value the value that we are looking for
@@ -253,12 +275,37 @@ public class CacheMap implements ObjectCache {
             if (app != null)
                 app.logEvent("Rotating Cache tables at " + newTable.size() +
                         "/" + oldTable.size() + " (new/old)");
-            oldTable = newTable;
-            newTable = createTable(eachCapacity, loadFactor);
+            rotateTables();
         }
         return oldValue;
     }
 
+    /// Puts the specified element into the hashtable unless the key is
+    // already associated with a value.
+    // @param key the specified key in the hashtable
+    // @param value the specified element
+    // @return the value associated with the key, or null if value was stored
+    public synchronized Object putIfAbsent(Object key, Object value) {
+        Object oldValue = get(key);
+        if (oldValue != null)
+            return oldValue;
+        return put(key, value);
+    }
+
+    /// Replaces the element for a key only if it is currently associated
+    // with the given value, compared by identity.
+    // @param key the specified key in the hashtable
+    // @param oldValue the value expected to be associated with the key
+    // @param newValue the new value
+    // @return true if the value was replaced
+    public synchronized boolean replace(Object key, Object oldValue, Object newValue) {
+        Object value = get(key);
+        if (value == null || value != oldValue)
+            return false;
+        put(key, newValue);
+        return true;
+    }
+
     /// Removes the element corresponding to the key. Does nothing if the
     // key is not present.
     // @param key the key that needs to be removed
@@ -0,0 +1,351 @@
+/*
+ * Helma License Notice
+ *
+ * The contents of this file are subject to the Helma License
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. A copy of the License is available at
+ * http://adele.helma.org/download/helma/license.txt
+ *
+ * Copyright 1998-2003 Helma Software. All Rights Reserved.
+ *
+ * $RCSfile$
+ * $Author$
+ * $Revision$
+ * $Date$
+ */
+
+package helma.util;
+
+import helma.framework.core.Application;
+import helma.objectmodel.ConcurrentObjectCache;
+import helma.objectmodel.EvictionListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A lock-striped object cache. Keys are distributed over a number of segments
+ * by hash code, and each segment is locked separately, so threads accessing
+ * different keys rarely contend for the same monitor.
+ *
+ * Each segment expires least recently used entries the same way as
+ * {@link CacheMap}: it keeps a new and an old table, moves entries that are
+ * accessed from the old to the new table, and discards the old table when
+ * the new one reaches its share of the capacity.
+ *
+ * The capacity is read from the cachesize app property, the number of segments
+ * from cachesegments (default 16, rounded up to a power of two). To use this
+ * cache, set cacheimpl = helma.util.ConcurrentCacheMap. {@link CacheBenchmark}
+ * compares its throughput with CacheMap.
+ */
+public class ConcurrentCacheMap implements ConcurrentObjectCache {
+
+    private Segment[] segments;
+    private int capacity;
+    private EvictionListener evictionListener;
+
+    // the application to output messages to
+    private Application app = null;
+
+    /**
+     * Zero argument constructor. Creates a cache with capacity of 1000
+     * and 16 segments.
+     */
+    public ConcurrentCacheMap() {
+        this(1000, 16);
+    }
+
+    /**
+     * Create a cache with the given capacity and number of segments.
+     *
+     * @param capacity the maximum number of entries
+     * @param concurrency the number of segments, rounded up to a power of two
+     */
+    public ConcurrentCacheMap(int capacity, int concurrency) {
+        if (capacity <= 0 || concurrency <= 0)
+            throw new IllegalArgumentException();
+        this.capacity = capacity;
+        createSegments(concurrency);
+    }
+
+    private void createSegments(int concurrency) {
+        int count = 1;
+        while (count < concurrency) {
+            count <<= 1;
+        }
+        Segment[] newSegments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            newSegments[i] = new Segment(segmentThreshold(capacity, count));
+            newSegments[i].listener = evictionListener;
+        }
+        segments = newSegments;
+    }
+
+    private static int segmentThreshold(int capacity, int count) {
+        // each segment's tables together hold up to its share of the capacity
+        return Math.max(1, capacity / count / 2);
+    }
+
+    private Segment segmentFor(Object key) {
+        int h = key.hashCode();
+        // spread bits so keys with similar hash codes use different segments
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        Segment[] segs = segments;
+        return segs[h & (segs.length - 1)];
+    }
+
+    /**
+     * Set the capacity of the cache
+     */
+    public void setCapacity(int capacity) {
+        if (capacity != this.capacity) {
+            if (app != null)
+                app.logEvent("Setting cache capacity to " + capacity);
+            this.capacity = capacity;
+            Segment[] segs = segments;
+            int threshold = segmentThreshold(capacity, segs.length);
+            for (int i = 0; i < segs.length; i++) {
+                segs[i].setThreshold(threshold);
+            }
+        }
+    }
+
+    public boolean containsKey(Object key) {
+        return segmentFor(key).containsKey(key);
+    }
+
+    public int containsKeys(Object[] keys) {
+        int notfound = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (segmentFor(keys[i]).containsKey(keys[i]))
+                keys[i] = null;
+            else
+                notfound++;
+        }
+        return notfound;
+    }
+
+    public Object get(Object key) {
+        return segmentFor(key).get(key);
+    }
+
+    public Object put(Object key, Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        return segmentFor(key).put(key, value, false);
+    }
+
+    public Object putIfAbsent(Object key, Object value) {
+        if (value == null)
+            throw new NullPointerException();
+        return segmentFor(key).put(key, value, true);
+    }
+
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        if (newValue == null)
+            throw new NullPointerException();
+        return segmentFor(key).replace(key, oldValue, newValue);
+    }
+
+    public Object remove(Object key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public void setEvictionListener(EvictionListener listener) {
+        evictionListener = listener;
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].listener = listener;
+        }
+    }
+
+    public boolean clear() {
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].clear();
+        }
+        return true;
+    }
+
+    public int size() {
+        int size = 0;
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            size += segs[i].size();
+        }
+        return size;
+    }
+
+    public Object[] getCachedObjects() {
+        ArrayList list = new ArrayList();
+        Segment[] segs = segments;
+        for (int i = 0; i < segs.length; i++) {
+            segs[i].addKeys(list);
+        }
+        return list.toArray();
+    }
+
+    /**
+     * Called when the application using this cache is stopped. We
+     * simply clear out our cache contents.
+     */
+    public void shutdown() {
+        clear();
+    }
+
+    /**
+     * Set the application to use for debug and profiling output
+     */
+    public void init(Application app) {
+        this.app = app;
+        if (app != null) {
+            Properties props = app.getProperties();
+            String segs = props.getProperty("cachesegments");
+            if (segs != null) {
+                try {
+                    createSegments(Integer.parseInt(segs.trim()));
+                } catch (NumberFormatException x) {
+                    app.logError("Invalid cachesegments setting: " + segs);
+                }
+            }
+            updateProperties(props);
+        }
+    }
+
+    /**
+     * The app properties have been modified, reload settings
+     */
+    public void updateProperties(Properties props) {
+        try {
+            int cacheSize = Integer.parseInt(props.getProperty("cachesize", "1000"));
+            setCapacity(cacheSize);
+        } catch (Exception x) {
+            String message = "Invalid cachesize setting: " + props.getProperty("cachesize");
+            if (app != null) {
+                app.logError(message);
+            } else {
+                System.err.println(message);
+            }
+        }
+    }
+
+    public String toString() {
+        return "ConcurrentCacheMap[" + size() + "/" + capacity + ", " +
+                segments.length + " segments]";
+    }
+
+    /**
+     * One lock-protected part of the cache, with a new and an old table.
+     */
+    static class Segment {
+        private Map newTable = new HashMap();
+        private Map oldTable = new HashMap();
+        private int threshold;
+        volatile EvictionListener listener;
+
+        Segment(int threshold) {
+            this.threshold = threshold;
+        }
+
+        synchronized void setThreshold(int threshold) {
+            this.threshold = threshold;
+            if (newTable.size() > threshold) {
+                rotate();
+            }
+        }
+
+        private void rotate() {
+            EvictionListener l = listener;
+            if (l != null) {
+                for (Iterator it = oldTable.entrySet().iterator(); it.hasNext(); ) {
+                    Map.Entry entry = (Map.Entry) it.next();
+                    l.evicted(entry.getKey(), entry.getValue());
+                }
+            }
+            oldTable = newTable;
+            newTable = new HashMap((int) (threshold / 0.75f) + 2);
+        }
+
+        synchronized boolean containsKey(Object key) {
+            if (newTable.containsKey(key))
+                return true;
+            Object value = oldTable.remove(key);
+            if (value != null) {
+                // Move object from old table to new table.
+                store(key, value);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized Object get(Object key) {
+            Object value = newTable.get(key);
+            if (value != null)
+                return value;
+            value = oldTable.remove(key);
+            if (value != null) {
+                // Move object from old table to new table.
+                store(key, value);
+            }
+            return value;
+        }
+
+        synchronized Object put(Object key, Object value, boolean onlyIfAbsent) {
+            Object oldValue = newTable.get(key);
+            if (oldValue == null) {
+                oldValue = oldTable.remove(key);
+                if (oldValue != null && onlyIfAbsent) {
+                    store(key, oldValue);
+                    return oldValue;
+                }
+            } else if (onlyIfAbsent) {
+                return oldValue;
+            }
+            store(key, value);
+            return oldValue;
+        }
+
+        synchronized boolean replace(Object key, Object expected, Object value) {
+            Object current = get(key);
+            if (current == null || current != expected) {
+                return false;
+            }
+            // get() may have rotated the tables after moving the entry
+            oldTable.remove(key);
+            store(key, value);
+            return true;
+        }
+
+        // put a key into the new table, rotating tables if it grew beyond the threshold
+        private void store(Object key, Object value) {
+            if (newTable.put(key, value) == null && newTable.size() >= threshold) {
+                rotate();
+            }
+        }
+
+        synchronized Object remove(Object key) {
+            Object oldValue = newTable.remove(key);
+            if (oldValue == null)
+                oldValue = oldTable.remove(key);
+            return oldValue;
+        }
+
+        synchronized void clear() {
+            newTable.clear();
+            oldTable.clear();
+        }
+
+        synchronized int size() {
+            return newTable.size() + oldTable.size();
+        }
+
+        synchronized void addKeys(ArrayList list) {
+            list.addAll(newTable.keySet());
+            list.addAll(oldTable.keySet());
+        }
+    }
+}